@@ -0,0 +1,249 @@
+package benchmark;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The BenchmarkRunner class measures the average time of an operation in the style of JMH's
+ * average time mode. Each benchmark runs a number of warmup iterations, whose results are thrown
+ * away so the JIT compiler can settle, followed by the measured iterations. An iteration calls the
+ * operation in a loop for a fixed time and yields the nanoseconds per call. The score is the mean
+ * of the measured iterations and the error the half-width of its 99.9% confidence interval.
+ * <p>
+ * Results are written as JSON in the layout of JMH's JSON result format, so they can be kept as a
+ * baseline, compared with {@link #compare(String)}, or loaded into tools that read JMH results.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class BenchmarkRunner {
+    // Student's t quantiles for a two-sided 99.9% interval, by degrees of freedom 1 to 10
+    private static final double[] T_999 = {636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587};
+
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private long iterationMillis = 1000;
+    private Pattern filter;
+    private List<Result> results = new ArrayList<>();
+    private PrintStream log;
+    private volatile long sink;
+
+    /**
+     * An operation to benchmark. The returned value is consumed by the runner, so the JIT
+     * compiler cannot remove the work that produced it.
+     */
+    public interface Operation {
+        long run();
+    }
+
+    /**
+     * Constructs a BenchmarkRunner from command-line options: -wi warmup iterations, -i measured
+     * iterations, -r milliseconds per iteration, and a regular expression selecting benchmarks.
+     *
+     * @param args the options
+     * @param log  the stream progress and results are printed to
+     */
+    public BenchmarkRunner(String[] args, PrintStream log) {
+        this.log = log;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-wi") && i + 1 < args.length) {
+                warmupIterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-i") && i + 1 < args.length) {
+                measurementIterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-r") && i + 1 < args.length) {
+                iterationMillis = Long.parseLong(args[++i]);
+            } else if (!args[i].startsWith("-")) {
+                filter = Pattern.compile(args[i]);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Returns true if a benchmark is selected by the filter, so its state only has to be set up
+     * when it will run.
+     *
+     * @param name the name of the benchmark
+     * @return true if the benchmark runs
+     */
+    public boolean selected(String name) {
+        return filter == null || filter.matcher(name).find();
+    }
+
+    /**
+     * Runs one benchmark with the given parameters and records its result.
+     *
+     * @param name      the name of the benchmark
+     * @param params    the parameters of this run, shown with the result
+     * @param operation the operation to measure
+     */
+    public void run(String name, Map<String, String> params, Operation operation) {
+        if (!selected(name)) {
+            return;
+        }
+        log.println("# " + name + " " + params);
+        for (int i = 0; i < warmupIterations; i++) {
+            log.printf("Warmup %d: %.3f ns/op%n", i + 1, iteration(operation));
+        }
+        double[] raw = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            raw[i] = iteration(operation);
+            log.printf("Iteration %d: %.3f ns/op%n", i + 1, raw[i]);
+        }
+        Result result = new Result(name, new LinkedHashMap<>(params), raw);
+        results.add(result);
+        log.printf("Result: %.3f +- %.3f ns/op%n%n", result.score(), result.error());
+    }
+
+    private double iteration(Operation operation) {
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000;
+        long calls = 0;
+        long consumed = 0;
+        long start = System.nanoTime();
+        long now;
+        do {
+            // check the clock only every 64 calls, so reading it does not dominate short operations
+            for (int i = 0; i < 64; i++) {
+                consumed += operation.run();
+            }
+            calls += 64;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += consumed;
+        return (double) (now - start) / calls;
+    }
+
+    /**
+     * Prints a summary table of all results.
+     */
+    public void printSummary() {
+        log.printf("%-32s %-40s %14s %12s%n", "Benchmark", "Params", "Score ns/op", "Error");
+        for (Result result : results) {
+            log.printf("%-32s %-40s %14.3f %12.3f%n", result.name, result.params, result.score(), result.error());
+        }
+    }
+
+    /**
+     * Writes all results as a JMH-style JSON array.
+     *
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(String path) throws IOException {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append("    {\n");
+            json.append("        \"benchmark\" : \"").append(escape(result.name)).append("\",\n");
+            json.append("        \"mode\" : \"avgt\",\n");
+            json.append("        \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+            json.append("        \"measurementIterations\" : ").append(measurementIterations).append(",\n");
+            json.append("        \"measurementTime\" : \"").append(iterationMillis).append(" ms\",\n");
+            json.append("        \"jvm\" : \"").append(escape(System.getProperty("java.vm.name") + " " + System.getProperty("java.version"))).append("\",\n");
+            json.append("        \"params\" : {");
+            int p = 0;
+            for (Map.Entry<String, String> param : result.params.entrySet()) {
+                json.append(p++ == 0 ? " " : ", ").append('"').append(escape(param.getKey())).append("\" : \"").append(escape(param.getValue())).append('"');
+            }
+            json.append(" },\n");
+            json.append("        \"primaryMetric\" : {\n");
+            json.append("            \"score\" : ").append(result.score()).append(",\n");
+            json.append("            \"scoreError\" : ").append(result.error()).append(",\n");
+            json.append("            \"scoreUnit\" : \"ns/op\",\n");
+            json.append("            \"rawData\" : [ [");
+            for (int r = 0; r < result.raw.length; r++) {
+                json.append(r == 0 ? " " : ", ").append(result.raw[r]);
+            }
+            json.append(" ] ]\n        }\n    }").append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("]\n");
+        Files.write(Paths.get(path), json.toString().getBytes(StandardCharsets.UTF_8));
+        log.println("Results written to " + path);
+    }
+
+    /**
+     * Compares the results with a baseline written earlier by {@link #writeJson(String)}, printing
+     * the change of every benchmark found in both. A change is only reported as a regression or an
+     * improvement when the confidence intervals of the two scores do not overlap.
+     *
+     * @param path the baseline file
+     * @throws IOException if the file cannot be read
+     */
+    public void compare(String path) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        Map<String, double[]> baseline = new HashMap<>();
+        Matcher entry = Pattern.compile("\"benchmark\" : \"([^\"]*)\".*?\"params\" : \\{([^}]*)\\}.*?\"score\" : ([-0-9.Ee]+),\\s*\"scoreError\" : ([-0-9.EeNa]+)", Pattern.DOTALL).matcher(json);
+        while (entry.find()) {
+            String key = entry.group(1) + " {" + entry.group(2).replaceAll("[\"\\s]", "").replace(':', '=') + "}";
+            baseline.put(key, new double[] {Double.parseDouble(entry.group(3)), parseError(entry.group(4))});
+        }
+        log.printf("%-72s %12s %12s %9s%n", "Benchmark", "Baseline", "Now", "Change");
+        for (Result result : results) {
+            String key = result.name + " {" + result.params.toString().replaceAll("[{}\\s]", "").replace(", ", ",") + "}";
+            double[] before = baseline.get(key);
+            if (before == null) {
+                continue;
+            }
+            double change = (result.score() - before[0]) / before[0] * 100;
+            boolean significant = Math.abs(result.score() - before[0]) > result.error() + before[1];
+            String verdict = !significant ? "" : change > 0 ? " slower" : " faster";
+            log.printf("%-72s %12.3f %12.3f %+8.1f%%%s%n", key, before[0], result.score(), change, verdict);
+        }
+    }
+
+    private static double parseError(String text) {
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * The measured iterations of one benchmark run.
+     */
+    private static class Result {
+        private final String name;
+        private final Map<String, String> params;
+        private final double[] raw;
+
+        Result(String name, Map<String, String> params, double[] raw) {
+            this.name = name;
+            this.params = params;
+            this.raw = raw;
+        }
+
+        double score() {
+            double sum = 0;
+            for (double value : raw) {
+                sum += value;
+            }
+            return sum / raw.length;
+        }
+
+        double error() {
+            if (raw.length < 2) {
+                return Double.NaN;
+            }
+            double mean = score();
+            double squares = 0;
+            for (double value : raw) {
+                squares += (value - mean) * (value - mean);
+            }
+            double deviation = Math.sqrt(squares / (raw.length - 1));
+            int degrees = raw.length - 1;
+            double t = degrees <= T_999.length ? T_999[degrees - 1] : 3.291;
+            return t * deviation / Math.sqrt(raw.length);
+        }
+    }
+}
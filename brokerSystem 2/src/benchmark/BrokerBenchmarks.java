@@ -0,0 +1,173 @@
+package benchmark;
+
+import brokerSystem.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The BrokerBenchmarks class benchmarks the hot paths of the Broker with {@link BenchmarkRunner}:
+ * <ul>
+ * <li>publishFanOut: {@link Broker#handlePublic(String, String)} delivering to local Subscribers,
+ * for different numbers of Subscribers and topics</li>
+ * <li>brokerMessage: {@link BrokerConnection#handleBrokerMessage(String)} parsing and applying
+ * 'publish' and 'add'/'unsub' lines from another Broker</li>
+ * <li>subscriptionChurn: {@link Topic#addSub(int)} and {@link Topic#unsub(int)} of many clients</li>
+ * <li>topicLookup: {@link Broker#getTopic(String)} in catalogs of different sizes</li>
+ * </ul>
+ * Usage: java -cp out benchmark.BrokerBenchmarks [regex] [-wi 3] [-i 5] [-r 1000]
+ * [--json results.json] [--baseline baseline.json]
+ * <p>
+ * The benchmarks run in one JVM, one after another, with the Broker's console output switched
+ * off. Keep a JSON file of a known state as the baseline and pass it with --baseline to see the
+ * change of every benchmark.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class BrokerBenchmarks {
+    private static final String CONTENT = "17/10 12:00:00 t:Topic: temp=21.5 city=berlin";
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args the options described in the class comment
+     * @throws IOException if the JSON files cannot be written or read
+     */
+    public static void main(String[] args) throws IOException {
+        PrintStream console = System.out;
+        BenchmarkRunner runner = new BenchmarkRunner(args, console);
+        // the Broker reports every topic and connection on System.out
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        for (int topics : new int[] {1, 1000}) {
+            for (int subscribers : new int[] {1, 100, 1000}) {
+                publishFanOut(runner, topics, subscribers);
+            }
+        }
+        brokerMessage(runner, "publish");
+        brokerMessage(runner, "subscribe");
+        for (int clients : new int[] {10, 10000}) {
+            subscriptionChurn(runner, clients);
+        }
+        for (int topics : new int[] {1000, 100000}) {
+            topicLookup(runner, topics);
+        }
+
+        runner.printSummary();
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--json")) {
+                runner.writeJson(args[i + 1]);
+            } else if (args[i].equals("--baseline")) {
+                runner.compare(args[i + 1]);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Map<String, String> params(Object... pairs) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            params.put(String.valueOf(pairs[i]), String.valueOf(pairs[i + 1]));
+        }
+        return params;
+    }
+
+    /**
+     * Publishes round-robin to the topics, whose Subscribers are spread evenly over them. The
+     * Subscribers write to a discarding stream and drop their oldest message when they fall
+     * behind, so the benchmark measures the fan-out and not the network.
+     */
+    private static void publishFanOut(BenchmarkRunner runner, int topics, int subscribers) {
+        if (!runner.selected("publishFanOut")) {
+            return;
+        }
+        Broker broker = new Broker(0);
+        broker.setOutboundQueue(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        String[] topicIDs = new String[topics];
+        for (int t = 0; t < topics; t++) {
+            topicIDs[t] = "bench/" + t;
+            broker.handleCreateTopic(topicIDs[t], "Topic", "publisher");
+        }
+        for (int s = 0; s < subscribers; s++) {
+            SubscriberHandler handler = new SubscriberHandler(broker, new TextWriter(OutputStream.nullOutputStream()));
+            broker.addSubscriber(handler);
+            broker.subTopic(topicIDs[s % topics], "subscriber" + s, handler);
+        }
+        int[] next = new int[1];
+        runner.run("publishFanOut", params("topics", topics, "subscribers", subscribers), () -> {
+            String topicID = topicIDs[next[0]++ % topics];
+            broker.handlePublic(topicID, CONTENT);
+            return next[0];
+        });
+    }
+
+    /**
+     * Feeds lines from another Broker into a BrokerConnection: either 'publish' lines for a topic
+     * without local Subscribers, or pairs of 'add' and 'unsub' lines.
+     */
+    private static void brokerMessage(BenchmarkRunner runner, String kind) {
+        if (!runner.selected("brokerMessage")) {
+            return;
+        }
+        Broker broker = new Broker(0);
+        broker.handleCreateTopic("bench/topic", "Topic", "publisher");
+        BrokerConnection connection = new BrokerConnection(broker, new TextWriter(OutputStream.nullOutputStream()));
+        String publish = "publish,bench/topic," + CONTENT;
+        String add = "add,bench/topic,remote";
+        String unsub = "unsub,bench/topic,remote";
+        runner.run("brokerMessage", params("kind", kind), () -> {
+            if (kind.equals("publish")) {
+                connection.handleBrokerMessage(publish);
+            } else {
+                connection.handleBrokerMessage(add);
+                connection.handleBrokerMessage(unsub);
+            }
+            return 1;
+        });
+    }
+
+    /**
+     * Subscribes and unsubscribes a rotating client, with all other clients subscribed.
+     */
+    private static void subscriptionChurn(BenchmarkRunner runner, int clients) {
+        if (!runner.selected("subscriptionChurn")) {
+            return;
+        }
+        Topic topic = new Topic("bench/topic", 0, "Topic", "publisher", 0);
+        for (int c = 0; c < clients; c++) {
+            topic.addSub(c);
+        }
+        int[] next = new int[1];
+        runner.run("subscriptionChurn", params("clients", clients), () -> {
+            int client = next[0]++ % clients;
+            topic.unsub(client);
+            topic.addSub(client);
+            return topic.getNumSubscribe();
+        });
+    }
+
+    /**
+     * Looks up topics by ID in random order. The IDs are new String instances, as they are when
+     * decoded from a connection, so their hash codes are not cached.
+     */
+    private static void topicLookup(BenchmarkRunner runner, int topics) {
+        if (!runner.selected("topicLookup")) {
+            return;
+        }
+        Broker broker = new Broker(0);
+        for (int t = 0; t < topics; t++) {
+            broker.handleCreateTopic("bench/" + t, "Topic", "publisher");
+        }
+        Random random = new Random(42);
+        int[] order = new int[1 << 16];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = random.nextInt(topics);
+        }
+        int[] next = new int[1];
+        runner.run("topicLookup", params("topics", topics), () -> {
+            String topicID = "bench/" + order[next[0]++ & (order.length - 1)];
+            return broker.getTopic(topicID).getHandle();
+        });
+    }
+}
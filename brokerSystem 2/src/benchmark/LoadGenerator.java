@@ -0,0 +1,449 @@
+package benchmark;
+
+import brokerSystem.Broker;
+import brokerSystem.FrameCodec;
+import brokerSystem.Histogram;
+import directoryService.DirectoryService;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The LoadGenerator class drives a Broker network with synthetic Publishers and Subscribers over
+ * the real binary protocol and reports the throughput and the publish-to-deliver latency. It
+ * either starts a Directory Service and a number of Brokers in its own JVM, or uses the Brokers
+ * registered with a running Directory Service.
+ * <p>
+ * The clients speak the protocol of {@link FrameCodec} directly instead of going through the
+ * interactive Publisher and Subscriber, so thousands of them can be served by a few selector
+ * threads. Clients are spread round-robin over the Brokers. Every topic belongs to one Publisher
+ * and is subscribed by a fixed number of Subscribers, and a single thread publishes to the topics
+ * in turn at the target rate. Each message carries the Broker of its Publisher and the time it was
+ * due, so the latency of every delivery is measured from when it should have been sent, as
+ * HdrHistogram does, and a stalled Broker cannot hide the delay of the messages queued behind it.
+ * Latencies are recorded into one {@link Histogram} per number of Broker hops: 0 when the
+ * Subscriber is connected to the Publisher's Broker, and 1 when the message was forwarded, as the
+ * Brokers form a full mesh.
+ * <p>
+ * Usage: java -cp out benchmark.LoadGenerator [-brokers 2] [-engine thread|nio] [-port 17000]
+ * [-directory host:port] [-publishers 10] [-subscribers 100] [-topics 10] [-fanout 10]
+ * [-size 100] [-rate 10000] [-warmup 2] [-duration 10] [-readers 2]
+ * <p>
+ * -rate is the number of messages per second over all topics, 0 publishes as fast as the Brokers
+ * accept them. -fanout is the number of Subscribers of each topic. In-process Brokers are
+ * configured by the same system properties as on the command line, see
+ * {@link Broker#fromSystemProperties(int)}; they share them, so broker.logDir must not be set.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class LoadGenerator {
+    private static final String MARKER = "lg|";
+    private static final int MAX_HOPS = 1;
+
+    private int brokers = 2;
+    private String engine = "thread";
+    private int port = 17000;
+    private String directory;
+    private int publishers = 10;
+    private int subscribers = 100;
+    private int topics = 10;
+    private int fanout = 10;
+    private int size = 100;
+    private int rate = 10000;
+    private int warmupSeconds = 2;
+    private int durationSeconds = 10;
+    private int readers = 2;
+
+    private PrintStream console;
+    private List<Client> publisherClients = new ArrayList<>();
+    private List<Client> subscriberClients = new ArrayList<>();
+    private Histogram[] hops = new Histogram[MAX_HOPS + 1];
+    private AtomicLong delivered = new AtomicLong();
+    private AtomicInteger acks = new AtomicInteger();
+    private AtomicInteger errors = new AtomicInteger();
+    private volatile String firstError;
+
+    /**
+     * Constructs a LoadGenerator from command-line options.
+     *
+     * @param args    the options described in the class comment
+     * @param console the stream the report is printed to
+     */
+    public LoadGenerator(String[] args, PrintStream console) {
+        this.console = console;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-brokers": brokers = Integer.parseInt(value); break;
+                case "-engine": engine = value; break;
+                case "-port": port = Integer.parseInt(value); break;
+                case "-directory": directory = value; break;
+                case "-publishers": publishers = Integer.parseInt(value); break;
+                case "-subscribers": subscribers = Integer.parseInt(value); break;
+                case "-topics": topics = Integer.parseInt(value); break;
+                case "-fanout": fanout = Integer.parseInt(value); break;
+                case "-size": size = Integer.parseInt(value); break;
+                case "-rate": rate = Integer.parseInt(value); break;
+                case "-warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "-duration": durationSeconds = Integer.parseInt(value); break;
+                case "-readers": readers = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (fanout > subscribers) {
+            throw new IllegalArgumentException("-fanout cannot be larger than -subscribers");
+        }
+        publishers = Math.min(publishers, topics);
+        for (int i = 0; i < hops.length; i++) {
+            hops[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args the options described in the class comment
+     * @throws Exception if the Brokers cannot be started or reached
+     */
+    public static void main(String[] args) throws Exception {
+        PrintStream console = System.out;
+        LoadGenerator generator = new LoadGenerator(args, console);
+        // in-process Brokers log topics and connections to System.out
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        generator.run();
+        System.exit(0);
+    }
+
+    /**
+     * Sets up the Brokers and clients, publishes for the warmup and the measured period, and
+     * prints the report.
+     *
+     * @throws Exception if the Brokers cannot be started or reached
+     */
+    public void run() throws Exception {
+        List<InetSocketAddress> brokerAddresses = directory == null ? startCluster() : queryBrokers(directory);
+        if (brokerAddresses.isEmpty()) {
+            throw new IOException("No brokers available");
+        }
+        console.println("Brokers: " + brokerAddresses);
+
+        for (int p = 0; p < publishers; p++) {
+            publisherClients.add(new Client("PUBLISHER", "lg-pub-" + p, p % brokerAddresses.size(), brokerAddresses));
+        }
+        for (int s = 0; s < subscribers; s++) {
+            subscriberClients.add(new Client("SUBSCRIBER", "lg-sub-" + s, s % brokerAddresses.size(), brokerAddresses));
+        }
+        startReaders();
+
+        // topics are created on their Publisher's Broker and announced to the others before anyone subscribes
+        for (int t = 0; t < topics; t++) {
+            publisherClients.get(t % publishers).send(FrameCodec.encode("create", topicID(t), "load", "lg-pub-" + (t % publishers)));
+        }
+        awaitAcks(topics, "create");
+        Thread.sleep(500);
+        int subscriptions = 0;
+        for (int t = 0; t < topics; t++) {
+            for (int k = 0; k < fanout; k++) {
+                subscriberClients.get((t * fanout + k) % subscribers).send(FrameCodec.encode("sub", topicID(t)));
+                subscriptions++;
+            }
+        }
+        awaitAcks(topics + subscriptions, "sub");
+        Thread.sleep(500);
+
+        console.printf("%d publishers, %d subscribers, %d topics with %d subscribers each, %d byte payloads, %s%n",
+                publishers, subscribers, topics, fanout, size, rate == 0 ? "unthrottled" : rate + " msg/s");
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long[] published = new long[2];
+        Thread publisherThread = new Thread(() -> publish(warmupEnd, end, published), "load-publisher");
+        publisherThread.start();
+
+        LockSupport.parkNanos(Math.max(0, warmupEnd - System.nanoTime()));
+        for (Histogram histogram : hops) {
+            histogram.reset();
+        }
+        long deliveredBefore = delivered.get();
+        publisherThread.join();
+        long measuredDelivered = delivered.get() - deliveredBefore;
+        long expected = (published[0] + published[1]) * fanout;
+        awaitDeliveries(expected);
+
+        report(published[1], measuredDelivered, expected);
+        for (Client client : publisherClients) {
+            client.send(FrameCodec.encode("disconnect"));
+        }
+    }
+
+    /**
+     * Starts a Directory Service and the Brokers in this JVM, one after another, so every Broker
+     * is listening before the next one connects to it.
+     */
+    private List<InetSocketAddress> startCluster() throws Exception {
+        DirectoryService directoryService = new DirectoryService();
+        Thread directoryThread = new Thread(() -> directoryService.startDirectoryService(port), "directory-service");
+        directoryThread.setDaemon(true);
+        directoryThread.start();
+        String address = "localhost:" + port;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                queryBrokers(address);
+                break;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+        for (int i = 1; i <= brokers; i++) {
+            Broker broker = Broker.fromSystemProperties(port + i);
+            if (engine.equals("nio")) {
+                broker.startNioBroker("localhost", port, Runtime.getRuntime().availableProcessors());
+            } else {
+                broker.startBroker("localhost", port);
+            }
+        }
+        return queryBrokers(address);
+    }
+
+    /**
+     * Asks a Directory Service for its Brokers.
+     */
+    private static List<InetSocketAddress> queryBrokers(String address) throws IOException {
+        String[] hostPort = address.split(":");
+        List<InetSocketAddress> brokerAddresses = new ArrayList<>();
+        try (Socket socket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            out.println("query");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] details = line.split(",");
+                brokerAddresses.add(new InetSocketAddress(details[0], Integer.parseInt(details[1])));
+            }
+        }
+        return brokerAddresses;
+    }
+
+    private void startReaders() throws IOException {
+        List<Client> clients = new ArrayList<>(publisherClients);
+        clients.addAll(subscriberClients);
+        for (int r = 0; r < readers; r++) {
+            Selector selector = Selector.open();
+            for (int c = r; c < clients.size(); c += readers) {
+                Client client = clients.get(c);
+                client.channel.configureBlocking(false);
+                client.channel.register(selector, SelectionKey.OP_READ, client);
+            }
+            Thread thread = new Thread(() -> read(selector), "load-reader-" + r);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void awaitAcks(int count, String command) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (acks.get() + errors.get() < count) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Timed out waiting for " + command + " replies: " + acks.get() + " of " + count);
+            }
+            Thread.sleep(10);
+        }
+        if (errors.get() > 0) {
+            throw new IOException(errors.get() + " " + command + " commands failed, first: " + firstError);
+        }
+    }
+
+    /**
+     * Waits until every message published was delivered, or until no delivery arrived for a second.
+     */
+    private void awaitDeliveries(long expected) throws InterruptedException {
+        long last = -1;
+        while (delivered.get() < expected && delivered.get() != last) {
+            last = delivered.get();
+            Thread.sleep(1000);
+        }
+    }
+
+    /**
+     * Publishes to the topics in turn until the end of the measured period, counting the messages
+     * published during the warmup and during the measurement.
+     */
+    private void publish(long warmupEnd, long end, long[] published) {
+        long interval = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        StringBuilder payload = new StringBuilder(size);
+        try {
+            for (long i = 0; ; i++) {
+                long due = start + i * interval;
+                long now = System.nanoTime();
+                if (due > now) {
+                    LockSupport.parkNanos(due - now);
+                    now = System.nanoTime();
+                }
+                if (now >= end) {
+                    return;
+                }
+                int t = (int) (i % topics);
+                Client publisher = publisherClients.get(t % publishers);
+                payload.setLength(0);
+                payload.append(MARKER).append(publisher.broker).append('|').append(rate == 0 ? now : due).append('|');
+                while (payload.length() < size) {
+                    payload.append('x');
+                }
+                publisher.send(FrameCodec.encode("publish", topicID(t), payload.toString()));
+                published[now < warmupEnd ? 0 : 1]++;
+            }
+        } catch (IOException e) {
+            console.println("Publishing failed: " + e.getMessage());
+        }
+    }
+
+    private void read(Selector selector) {
+        try {
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Client client = (Client) key.attachment();
+                    try {
+                        client.read();
+                    } catch (IOException e) {
+                        key.cancel();
+                        console.println(client.name + " disconnected: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            console.println("Reader failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles a frame received by a client: replies count as acknowledgements of the set-up
+     * commands, and messages are timed.
+     */
+    private void handleFrame(Client client, String[] frame) {
+        if (frame[0].equals("reply") && frame.length > 1) {
+            if (frame[1].startsWith("success")) {
+                acks.incrementAndGet();
+            } else if (frame[1].startsWith("error")) {
+                if (errors.getAndIncrement() == 0) {
+                    firstError = client.name + ": " + frame[1];
+                }
+            }
+        } else if (frame[0].equals("message") && frame.length > 2) {
+            long received = System.nanoTime();
+            String content = frame[2];
+            int position = content.indexOf(MARKER);
+            if (position < 0) {
+                return;
+            }
+            position += MARKER.length();
+            int separator = content.indexOf('|', position);
+            int publisherBroker = Integer.parseInt(content, position, separator, 10);
+            long due = Long.parseLong(content, separator + 1, content.indexOf('|', separator + 1), 10);
+            hops[publisherBroker == client.broker ? 0 : MAX_HOPS].record(received - due);
+            delivered.incrementAndGet();
+        }
+    }
+
+    private void report(long published, long measuredDelivered, long expected) {
+        double seconds = durationSeconds;
+        console.printf("Published: %d messages, %.0f msg/s%n", published, published / seconds);
+        console.printf("Delivered: %d messages, %.0f msg/s%n", measuredDelivered, measuredDelivered / seconds);
+        long missing = expected - delivered.get();
+        if (missing > 0) {
+            console.printf("Not delivered: %d of %d messages%n", missing, expected);
+        }
+        Histogram all = new Histogram();
+        console.printf("%-12s %10s %9s %9s %9s %9s %9s %9s %9s%n", "Latency ms", "count", "mean", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+        for (int h = 0; h < hops.length; h++) {
+            if (hops[h].getCount() > 0) {
+                printLatency(hops[h], h + (h == 1 ? " hop" : " hops"));
+                all.add(hops[h]);
+            }
+        }
+        printLatency(all, "all");
+    }
+
+    private void printLatency(Histogram histogram, String label) {
+        console.printf("%-12s %10d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", label, histogram.getCount(),
+                histogram.getMean() / 1e6, histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+                histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+                histogram.getValueAtPercentile(99.99) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    private static String topicID(int t) {
+        return "load/" + t;
+    }
+
+    /**
+     * One synthetic Publisher or Subscriber connection.
+     */
+    private class Client {
+        private final String name;
+        private final int broker;
+        private final SocketChannel channel;
+        private ByteBuffer received = ByteBuffer.allocate(64 * 1024);
+
+        Client(String clientType, String name, int broker, List<InetSocketAddress> brokerAddresses) throws IOException {
+            this.name = name;
+            this.broker = broker;
+            this.channel = SocketChannel.open(brokerAddresses.get(broker));
+            channel.socket().setTcpNoDelay(true);
+            ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+            FrameCodec.writeHandshake(handshake, clientType, name);
+            send(handshake.toByteArray());
+        }
+
+        /**
+         * Writes a frame, waiting while the socket buffer is full. Only one thread writes to a
+         * client at a time.
+         */
+        void send(byte[] frame) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    LockSupport.parkNanos(50_000);
+                }
+            }
+        }
+
+        void read() throws IOException {
+            if (channel.read(received) < 0) {
+                throw new EOFException("connection closed");
+            }
+            byte[] buffer = received.array();
+            int position = 0;
+            int size;
+            while ((size = FrameCodec.frameSize(buffer, position, received.position() - position)) > 0) {
+                handleFrame(this, FrameCodec.decode(buffer, position + 4, size - 4));
+                position += size;
+            }
+            received.limit(received.position()).position(position);
+            received.compact();
+            if (!received.hasRemaining()) {
+                // a frame larger than the buffer
+                ByteBuffer larger = ByteBuffer.allocate(received.capacity() * 2);
+                received.flip();
+                larger.put(received);
+                received = larger;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package brokerSystem;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * The BoundedQueue class is a linked queue whose bound is kept by a separate counter, so an empty
+ * queue holds no slots for the items it may take, only a few small objects.
+ * <p>
+ * {@link #put(Object)} waits while the queue is full, except on a thread that must never wait,
+ * such as an event loop of the {@link NioBrokerServer}. Such a thread registers, with
+ * {@link #setPausableProducer(Supplier)}, how to pause the input it is handling. A full queue then
+ * takes the item anyway, pauses that input, and resumes it once an item has been taken out and
+ * the queue has room again. A producer that is paused this way adds at most one item beyond the
+ * bound, and a slow consumer holds back only the connections feeding it, not the whole loop.
+ *
+ * @param <T> the type of the items
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class BoundedQueue<T> {
+    private static final ThreadLocal<Supplier<Runnable>> PAUSABLE_PRODUCER = new ThreadLocal<>();
+
+    private final int capacity;
+    private final LinkedBlockingQueue<T> items = new LinkedBlockingQueue<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Queue<Runnable> pausedProducers = new ConcurrentLinkedQueue<>();
+    private volatile int waiting;
+
+    /**
+     * Constructs an empty BoundedQueue.
+     *
+     * @param capacity the number of items the queue holds before producers wait or are paused
+     */
+    public BoundedQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Declares that the calling thread must not wait for room in a full queue while it handles
+     * the input of one connection, and how to pause that input instead.
+     *
+     * @param pause pauses the input and returns the action resuming it, or null once the input
+     *              has been handled
+     */
+    public static void setPausableProducer(Supplier<Runnable> pause) {
+        if (pause == null) {
+            PAUSABLE_PRODUCER.remove();
+        } else {
+            PAUSABLE_PRODUCER.set(pause);
+        }
+    }
+
+    /**
+     * Adds an item if the queue has room.
+     *
+     * @param item the item
+     * @return false if the queue is full
+     */
+    public boolean offer(T item) {
+        if (!reserve()) {
+            return false;
+        }
+        items.add(item);
+        return true;
+    }
+
+    /**
+     * Adds an item, waiting for room while the queue is full. On a thread with a pausable
+     * producer, the item is added at once and the producer's input is paused until there is room.
+     *
+     * @param item the item
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(T item) throws InterruptedException {
+        if (!reserve()) {
+            Supplier<Runnable> pausable = PAUSABLE_PRODUCER.get();
+            if (pausable != null) {
+                count.incrementAndGet();
+                pausedProducers.add(pausable.get());
+                // an item may have been taken out before the producer was recorded
+                if (count.get() <= capacity) {
+                    resumeProducers();
+                }
+            } else {
+                awaitRoom();
+            }
+        }
+        items.add(item);
+    }
+
+    /**
+     * Removes the oldest item.
+     *
+     * @return the item, or null if the queue is empty
+     */
+    public T poll() {
+        T item = items.poll();
+        if (item != null) {
+            released();
+        }
+        return item;
+    }
+
+    /**
+     * Removes the oldest item, waiting while the queue is empty.
+     *
+     * @return the item
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        T item = items.take();
+        released();
+        return item;
+    }
+
+    /**
+     * Removes all items, letting waiting and paused producers continue.
+     */
+    public void clear() {
+        while (poll() != null) {
+            // each removal makes room for one producer
+        }
+    }
+
+    /**
+     * Returns the number of items in the queue, counting those being added.
+     *
+     * @return the number of items
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Returns true if the queue holds no items.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    private boolean reserve() {
+        while (true) {
+            int current = count.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void awaitRoom() throws InterruptedException {
+        lock.lock();
+        try {
+            // counted before the retry, so a consumer taking an item after it signals
+            waiting++;
+            while (!reserve()) {
+                notFull.await();
+            }
+        } finally {
+            waiting--;
+            lock.unlock();
+        }
+    }
+
+    private void released() {
+        if (count.decrementAndGet() >= capacity) {
+            return;
+        }
+        if (!pausedProducers.isEmpty()) {
+            resumeProducers();
+        }
+        if (waiting > 0) {
+            lock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void resumeProducers() {
+        Runnable resume;
+        while ((resume = pausedProducers.poll()) != null) {
+            resume.run();
+        }
+    }
+}
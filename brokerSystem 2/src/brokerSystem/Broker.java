@@ -1,9 +1,24 @@
 package brokerSystem;
 
 
+import com.sun.net.httpserver.HttpServer;
+
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -16,12 +31,48 @@ import java.time.format.DateTimeFormatter;
  * student id:1166053
  */
 public class Broker {
+    // topics per bulk cluster command, well below the 255 fields a binary frame can carry
+    private static final int BULK_TOPICS = 250;
+    private static final int LISTING_CACHE_PAGES = 1024;
+    private static final BrokerLog LOG = BrokerLog.get("broker");
+    private static final BrokerLog LINK_LOG = BrokerLog.get("link");
+
     private ServerSocket serverSocket;
     private List<BrokerConnection> brokerConnections; 
     private int port;
     private Map<String, Topic> topicMap;
+    private NavigableMap<String, Topic> topicCatalog;
+    private AtomicLong catalogVersion;
+    private Map<String, ListingPage> listingCache;
+    private int listPageSize;
+    private Handles topicHandles;
+    private Handles clientHandles;
+    private volatile AtomicReferenceArray<Set<Topic>> authorTopics;
     private Map<Socket, String> publisherNames;
-    private List<SubscriberHandler> subscriberConnections;
+    private Set<SubscriberHandler> subscriberConnections;
+    private Map<String, Set<SubscriberHandler>> topicSubscribers;
+    private TopicTrie<SubscriberHandler> patternSubscribers;
+    private Map<String, Map<String, FilterGroup>> filteredSubscribers;
+    private ThreadFactory threadFactory;
+    private Thread acceptThread;
+    private ExecutorService outboundWriters;
+    private int outboundCapacity;
+    private OutboundQueue.OverflowPolicy overflowPolicy;
+    private ScheduledExecutorService linkFlusher;
+    private int linkBatchBytes;
+    private int linkLingerMillis;
+    private int linkCompressBytes;
+    private MessageLog messageLog;
+    private Dispatcher dispatcher;
+    private int recentCapacity;
+    private long recentMillis;
+    private long recentTopicBytes;
+    private RecentMessages.MemoryBudget recentBudget;
+    private BrokerMetrics metrics;
+    private int loadReportMillis;
+    private ScheduledExecutorService loadReporter;
+    private Socket loadSocket;
+    private PrintWriter loadOut;
 
     
     /**
@@ -31,10 +82,309 @@ public class Broker {
      */
     public Broker(int port) {
         this.port = port;
-        brokerConnections = new ArrayList<>();
-        topicMap = new HashMap<>();
-        publisherNames = new HashMap<>();
-        subscriberConnections = new ArrayList<>();
+        // read on every publish and rarely changed
+        brokerConnections = new CopyOnWriteArrayList<>();
+        topicMap = new ConcurrentHashMap<>();
+        topicCatalog = new ConcurrentSkipListMap<>();
+        catalogVersion = new AtomicLong();
+        listingCache = new ConcurrentHashMap<>();
+        listPageSize = 100;
+        topicHandles = new Handles();
+        clientHandles = new Handles();
+        authorTopics = new AtomicReferenceArray<>(64);
+        publisherNames = new ConcurrentHashMap<>();
+        subscriberConnections = ConcurrentHashMap.newKeySet();
+        topicSubscribers = new ConcurrentHashMap<>();
+        patternSubscribers = new TopicTrie<>();
+        filteredSubscribers = new ConcurrentHashMap<>();
+        threadFactory = ConnectionThreads.platform();
+        outboundWriters = Executors.newCachedThreadPool(task -> threadFactory.newThread(task));
+        outboundCapacity = 1024;
+        overflowPolicy = OutboundQueue.OverflowPolicy.BLOCK;
+        linkFlusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "broker-link-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        linkBatchBytes = 32 * 1024;
+        linkLingerMillis = 1;
+        linkCompressBytes = 4096;
+        metrics = new BrokerMetrics();
+        loadReportMillis = 1000;
+    }
+    
+    /**
+     * Sets how messages sent to other Brokers are coalesced into batches.
+     * 
+     * @param batchBytes    a batch is sent as soon as it holds this many bytes
+     * @param lingerMillis  the longest time a message waits for the rest of its batch, or 0 to send every message immediately
+     * @param compressBytes batches of at least this many bytes are compressed on binary links, or 0 to never compress
+     */
+    public void setBrokerLinkBatching(int batchBytes, int lingerMillis, int compressBytes) {
+        this.linkBatchBytes = Math.min(batchBytes, FrameCodec.MAX_FRAME_LENGTH / 2);
+        this.linkLingerMillis = lingerMillis;
+        this.linkCompressBytes = compressBytes;
+    }
+    
+    /**
+     * Returns the size at which a batch of messages to another Broker is sent.
+     * 
+     * @return the batch size in bytes
+     */
+    public int getLinkBatchBytes() {
+        return linkBatchBytes;
+    }
+    
+    /**
+     * Returns the longest time a message to another Broker waits for the rest of its batch.
+     * 
+     * @return the linger time in milliseconds, 0 if batching is disabled
+     */
+    public int getLinkLingerMillis() {
+        return linkLingerMillis;
+    }
+    
+    /**
+     * Returns the size from which batches to other Brokers are compressed.
+     * 
+     * @return the compression threshold in bytes, 0 if compression is disabled
+     */
+    public int getLinkCompressBytes() {
+        return linkCompressBytes;
+    }
+    
+    /**
+     * Sets the durable log every published message is appended to before it is delivered.
+     * 
+     * @param messageLog the message log, or null to keep no log
+     */
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+    
+    /**
+     * Returns the durable log of published messages.
+     * 
+     * @return the message log, or null if none is kept
+     */
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+    
+    /**
+     * Fans published messages out to the local Subscribers on shard threads, see
+     * {@link Dispatcher}, instead of the thread that received the message.
+     * 
+     * @param threads        the number of shard threads, or 0 to deliver on the receiving thread
+     * @param queueCapacity  the maximum number of messages waiting for one shard
+     * @param splitThreshold the number of Subscribers above which one message is delivered by
+     *                       fork-join subtasks, or 0 to never split
+     */
+    public void setDispatcher(int threads, int queueCapacity, int splitThreshold) {
+        this.dispatcher = threads > 0 ? new Dispatcher(threads, queueCapacity, splitThreshold) : null;
+    }
+    
+    /**
+     * Returns the dispatcher fanning out published messages.
+     * 
+     * @return the dispatcher, or null if messages are delivered on the receiving thread
+     */
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+    
+    /**
+     * Sets how often the Broker reports its load to the Directory Service once registered, so
+     * Publishers and Subscribers can be sent to the least-loaded Broker.
+     * 
+     * @param loadReportMillis the interval between reports, or 0 to never report
+     */
+    public void setLoadReportMillis(int loadReportMillis) {
+        this.loadReportMillis = loadReportMillis;
+    }
+    
+    /**
+     * Returns the number of Publishers and Subscribers connected to the Broker.
+     * 
+     * @return the number of client connections
+     */
+    public int getClientCount() {
+        return publisherNames.size() + subscriberConnections.size();
+    }
+    
+    /**
+     * Returns the metrics of the Broker.
+     * 
+     * @return the metrics
+     */
+    public BrokerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Serves the metrics of the Broker as JSON at http://localhost:port/stats, for monitoring
+     * tools to scrape. The server only listens on the loopback address and answers on a thread
+     * of its own.
+     * 
+     * @param statsPort the port of the HTTP server
+     * @throws IOException if the port cannot be bound
+     */
+    public void startStatsServer(int statsPort) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), statsPort), 0);
+        server.createContext("/stats", exchange -> {
+            byte[] body = metrics.toJson(this).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        LOG.info("Broker stats served at http://localhost:" + statsPort + "/stats");
+    }
+    
+    /**
+     * Sets the number of topics a 'list' command returns when it does not ask for a page size.
+     * 
+     * @param listPageSize the default page size of topic listings
+     */
+    public void setListPageSize(int listPageSize) {
+        this.listPageSize = listPageSize;
+    }
+    
+    /**
+     * Makes every topic created from now on keep its most recent messages in memory, so new
+     * subscriptions can be served the recent tail, see {@link RecentMessages}.
+     * 
+     * @param capacity    the number of messages kept per topic, or 0 to keep none
+     * @param maxMillis   the maximum age of kept messages, or 0 for none
+     * @param topicBytes  the maximum size of the messages kept per topic
+     * @param totalBytes  the maximum size of the messages kept by all topics together
+     */
+    public void setRecentMessages(int capacity, long maxMillis, long topicBytes, long totalBytes) {
+        this.recentCapacity = capacity;
+        this.recentMillis = maxMillis;
+        this.recentTopicBytes = topicBytes;
+        this.recentBudget = new RecentMessages.MemoryBudget(totalBytes);
+    }
+    
+    /**
+     * Returns the handle of a client name.
+     * 
+     * @param name the name of a Publisher or Subscriber
+     * @return the client handle, or -1 if no connection, topic or subscription holds the name
+     */
+    public int getClientHandle(String name) {
+        return clientHandles.get(name);
+    }
+    
+    /**
+     * Acquires the handle of a client name for a connection, see {@link Handles#acquire(String)}.
+     * 
+     * @param name the name of a Publisher or Subscriber
+     * @return the client handle
+     */
+    public int acquireClientHandle(String name) {
+        return clientHandles.acquire(name);
+    }
+    
+    /**
+     * Releases a client handle acquired with {@link #acquireClientHandle(String)}.
+     * 
+     * @param handle the client handle, ignored if it is -1
+     */
+    public void releaseClientHandle(int handle) {
+        clientHandles.release(handle);
+    }
+    
+    /**
+     * Returns the recent messages kept for a topic.
+     * 
+     * @param topicID the ID of the topic
+     * @return the recent messages, or null if the topic does not exist or keeps none
+     */
+    public RecentMessages getRecentMessages(String topicID) {
+        Topic topic = topicMap.get(topicID);
+        return topic == null ? null : topic.getRecentMessages();
+    }
+    
+    /**
+     * Runs the flush of a Broker link batch on a writer thread once the linger time has passed.
+     * 
+     * @param flush sends the pending batch
+     */
+    public void scheduleLinkFlush(Runnable flush) {
+        linkFlusher.schedule(() -> outboundWriters.execute(flush), linkLingerMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Sets the size and overflow policy of the outbound queue given to each Subscriber.
+     * 
+     * @param capacity the maximum number of messages waiting for one Subscriber
+     * @param policy   what to do when a Subscriber's queue is full
+     */
+    public void setOutboundQueue(int capacity, OutboundQueue.OverflowPolicy policy) {
+        this.outboundCapacity = capacity;
+        this.overflowPolicy = policy;
+    }
+    
+    /**
+     * Creates an outbound queue for a Subscriber, drained by the Broker's shared writer threads.
+     * 
+     * @param writer       writes one message to the Subscriber
+     * @param onDisconnect closes the Subscriber's connection when it falls too far behind
+     * @return the new outbound queue
+     */
+    public <T> OutboundQueue<T> newOutboundQueue(Consumer<T> writer, Runnable onDisconnect) {
+        return new OutboundQueue<>(outboundCapacity, overflowPolicy, outboundWriters, writer, onDisconnect);
+    }
+    
+    /**
+     * Returns the total number of messages waiting in the Subscribers' outbound queues.
+     * 
+     * @return the total outbound queue depth
+     */
+    public long getOutboundDepth() {
+        long depth = 0;
+        for (SubscriberHandler subscriber : subscriberConnections) {
+            depth += subscriber.getOutboundQueue().depth();
+        }
+        return depth;
+    }
+    
+    /**
+     * Returns the total number of messages dropped by the Subscribers' outbound queues.
+     * 
+     * @return the total number of dropped messages
+     */
+    public long getOutboundDrops() {
+        long drops = 0;
+        for (SubscriberHandler subscriber : subscriberConnections) {
+            drops += subscriber.getOutboundQueue().dropped();
+        }
+        return drops;
+    }
+    
+    /**
+     * Sets the factory used for the accept loop and every connection handler thread,
+     * e.g. {@link ConnectionThreads#virtual()} to run them as virtual threads.
+     * 
+     * @param threadFactory the factory creating connection threads
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+    
+    /**
+     * Waits until the accept loop of the Broker ends. Needed when connection threads are
+     * virtual threads, as those do not keep the JVM alive on their own.
+     * 
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public void awaitShutdown() throws InterruptedException {
+        if (acceptThread != null) {
+            acceptThread.join();
+        }
     }
 
     /**
@@ -50,48 +400,148 @@ public class Broker {
           	List<String> brokerList = registerWithDirectoryService(directoryServiceIP, directoryServicePort);
             connectToExistingBrokers(brokerList);
             serverSocket = new ServerSocket(port);
-            System.out.println("Broker started on port " + port);
+            LOG.info("Broker started on port " + port);
 
             
-            new Thread(() -> {
+            acceptThread = threadFactory.newThread(() -> {
                 while (true) {
                     try {
                         Socket socket = serverSocket.accept();
-                        ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
-                        String clientType = input.readUTF();  // read the connection type.
+                        // binary clients open with the FrameCodec preface, text clients with an object stream header
+                        PushbackInputStream stream = new PushbackInputStream(socket.getInputStream());
+                        int first = stream.read();
+                        stream.unread(first);
+                        boolean binary = first == FrameCodec.PREFACE[0];
+                        ObjectInputStream input = null;
+                        String[] hello = null;
+                        String clientType;
+                        if (binary) {
+                            DataInputStream frameIn = new DataInputStream(stream);
+                            FrameCodec.readPreface(frameIn);
+                            hello = FrameCodec.readFrame(frameIn);
+                            clientType = hello[1];
+                        } else {
+                            input = new ObjectInputStream(stream);
+                            clientType = input.readUTF();  // read the connection type.
+                        }
 
                         if (clientType.equals("PUBLISHER")) {
-                            	String publisherName = input.readUTF();  // read the publisher name
-                            publisherNames.put(socket, publisherName);
-                            PublisherHandler publisher = new PublisherHandler(socket, this);
+                            	String publisherName = binary ? hello[2] : input.readUTF();  // read the publisher name
+                            addPublisher(socket, publisherName);
+                            PublisherHandler publisher = new PublisherHandler(socket, this, binary);
                             publisher.setName(publisherName);
-                            System.out.println("Publisher connected: " + publisherName);
-                            new Thread(publisher).start(); // thread to deal with publisher command
+                            LOG.info("Publisher connected: " + publisherName);
+                            threadFactory.newThread(publisher).start(); // thread to deal with publisher command
                         } else if (clientType.equals("BROKER")) {
                             // deal with the connection between the broker
-                            BrokerConnection connection = new BrokerConnection(socket, this);
-                            brokerConnections.add(connection);
-                            System.out.println("New broker connected");
-                            new Thread(connection).start();
+                            BrokerConnection connection = new BrokerConnection(socket, this, binary);
+                            addBrokerConnection(connection);
+                            LOG.info("New broker connected");
+                            threadFactory.newThread(connection).start();
                         } else if (clientType.equals("SUBSCRIBER")) {
                          	// deal with the connection between the subscriber
-                        	    String subscriberName = input.readUTF();
-                           	SubscriberHandler subscriber = new SubscriberHandler(socket, this);
+                        	    String subscriberName = binary ? hello[2] : input.readUTF();
+                           	SubscriberHandler subscriber = new SubscriberHandler(socket, this, binary);
                           	subscriber.setName(subscriberName);
-                         	subscriberConnections.add(subscriber);
-                         	System.out.println("Subsciber " + subscriberName + " connected.");
-                            new Thread(subscriber).start();                           
+                         	addSubscriber(subscriber);
+                         	LOG.info("Subsciber " + subscriberName + " connected.");
+                            threadFactory.newThread(subscriber).start();                           
                         }
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
                 }
-            }).start();
+            });
+            acceptThread.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
     
+    /**
+     * Starts the Broker on the non-blocking network engine. Instead of one thread per connection,
+     * all Publisher, Subscriber and Broker connections are multiplexed over a small number of
+     * selector event loops.
+     * 
+     * @param directoryServiceIP   the IP address of the Directory Service
+     * @param directoryServicePort the port of the Directory Service
+     * @param eventLoops           the number of selector threads serving connections
+     */
+    public void startNioBroker(String directoryServiceIP, int directoryServicePort, int eventLoops) {
+        try {
+            List<String> brokerList = registerWithDirectoryService(directoryServiceIP, directoryServicePort);
+            connectToExistingBrokers(brokerList);
+            NioBrokerServer server = new NioBrokerServer(this, port, eventLoops);
+            server.start();
+            LOG.info("Broker started on port " + port + " with " + eventLoops + " event loops");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Records the name of a newly connected Publisher.
+     * 
+     * @param socket        the socket of the Publisher connection
+     * @param publisherName the name of the Publisher
+     */
+    public void addPublisher(Socket socket, String publisherName) {
+        publisherNames.put(socket, publisherName);
+    }
+    
+    /**
+     * Adds a connection to another Broker so that it receives broadcast messages, and tells the
+     * other Broker about every local subscription with the 'add' messages sent when they were made,
+     * so a Broker that joins later learns the interest that already exists. The connection is
+     * added first, so a subscription made meanwhile may be announced twice but is never missed.
+     * 
+     * @param connection the connection to the other Broker
+     */
+    public void addBrokerConnection(BrokerConnection connection) {
+        brokerConnections.add(connection);
+        for (SubscriberHandler subscriber : subscriberConnections) {
+            for (String topicID : subscriber.getSubscriberTopic()) {
+                connection.sendMessage("add", topicID, subscriber.getName());
+            }
+        }
+    }
+    
+    /**
+     * Removes a closed connection to another Broker.
+     * 
+     * @param connection the connection to the other Broker
+     */
+    public void removeBrokerConnection(BrokerConnection connection) {
+        brokerConnections.remove(connection);
+    }
+    
+    /**
+     * Adds a newly connected Subscriber.
+     * 
+     * @param subscriber the SubscriberHandler of the Subscriber
+     */
+    public void addSubscriber(SubscriberHandler subscriber) {
+        subscriberConnections.add(subscriber);
+    }
+    
+    /**
+     * Returns the connected Subscribers.
+     * 
+     * @return a live view of the Subscribers' handlers
+     */
+    public Set<SubscriberHandler> getSubscribers() {
+        return Collections.unmodifiableSet(subscriberConnections);
+    }
+    
+    /**
+     * Returns the number of connections to other Brokers.
+     * 
+     * @return the number of Broker connections
+     */
+    public int getBrokerConnectionCount() {
+        return brokerConnections.size();
+    }
+    
     /**
      * Checks if a topic with the given ID exists.
      * 
@@ -113,33 +563,68 @@ public class Broker {
         try {
             Socket socket = new Socket(brokerIP, brokerPort);
             
-            ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
-            output.writeUTF("BROKER");
-            output.flush();
+            FrameCodec.writeHandshake(socket.getOutputStream(), "BROKER", null);
 
-            BrokerConnection connection = new BrokerConnection(socket, this);
-            brokerConnections.add(connection);
-            new Thread(connection).start();
-            System.out.println("Connected to Broker at " + brokerIP + ":" + brokerPort);
+            BrokerConnection connection = new BrokerConnection(socket, this, true);
+            addBrokerConnection(connection);
+            threadFactory.newThread(connection).start();
+            LOG.info("Connected to Broker at " + brokerIP + ":" + brokerPort);
         } catch (IOException e) {
-            System.err.println("Failed to connect to Broker at " + brokerIP + ":" + brokerPort);
+            LOG.warn("Failed to connect to Broker at " + brokerIP + ":" + brokerPort);
         }
     }
     
     /**
      * Broadcasts a message to all connected Brokers.
      * 
-     * @param message the message to broadcast
+     * @param parts the command name followed by its arguments
      */
-    public void broadcastToOtherBrokers(String message) {
-        System.out.println("Broadcasting message: " + message);
+    public void broadcastToOtherBrokers(String... parts) {
+        if (LINK_LOG.sampled(BrokerLog.Level.DEBUG)) {
+            LINK_LOG.debug("Broadcasting message: " + String.join(",", parts));
+        }
         for (BrokerConnection connection : brokerConnections) {
-            connection.sendMessage(message);
+            connection.sendMessage(parts);
+        }
+    }
+    
+    /**
+     * Broadcasts a bulk command about many topics of one client, e.g. 'deleteall' or 'unsuball',
+     * sending up to {@link #BULK_TOPICS} topic IDs per message instead of one message per topic.
+     * 
+     * @param command  the bulk command
+     * @param name     the name of the client
+     * @param topicIDs the IDs of the topics
+     */
+    public void broadcastToOtherBrokers(String command, String name, List<String> topicIDs) {
+        for (int start = 0; start < topicIDs.size(); start += BULK_TOPICS) {
+            List<String> chunk = topicIDs.subList(start, Math.min(start + BULK_TOPICS, topicIDs.size()));
+            String[] parts = new String[2 + chunk.size()];
+            parts[0] = command;
+            parts[1] = name;
+            for (int i = 0; i < chunk.size(); i++) {
+                parts[2 + i] = chunk.get(i);
+            }
+            broadcastToOtherBrokers(parts);
         }
     }
     
     
 
+    /**
+     * Forwards a published message to the connected Brokers that have Subscribers of its topic,
+     * sharing one encoding per protocol.
+     * 
+     * @param message the published message
+     */
+    public void broadcastPublish(EncodedMessage message) {
+        for (BrokerConnection connection : brokerConnections) {
+            if (connection.hasInterest(message.getTopicID())) {
+                connection.sendPublish(message);
+            }
+        }
+    }
+    
     /**
      * Handles the 'show' command for topics, showing the details of a specific topic or all topics created by a publisher.
      * 
@@ -150,20 +635,19 @@ public class Broker {
     public void handleShow(String topicID, PrintWriter out, PublisherHandler publisher) {
     	    if (topicID.equals("all")) {
     	    	int count = 0;
-    		    for (Topic topic : topicMap.values()) {
-        		    if (publisher.getName().equals(topic.getAuthorName())) {
-        			    out.println(topic.showTopic());
-        			    count++;
-        		    }
+    		    for (Topic topic : getAuthorTopics(publisher.getHandle())) {
+        		    out.println(topic.showTopic());
+        		    count++;
         	    }
     	    	if (count == 0) {
     	    		out.println("You haven't create any topic.");
     	    	}
         	}
     	    else {
-    		    if (topicMap.containsKey(topicID)) {
-    			    if (publisher.getName().equals(topicMap.get(topicID).getAuthorName())) {
-    				    out.println(topicMap.get(topicID).showTopic());
+    		    Topic topic = topicMap.get(topicID);
+    		    if (topic != null) {
+    			    if (publisher.getHandle() == topic.getAuthorHandle()) {
+    				    out.println(topic.showTopic());
     			    }
     			    else {
     				    out.println("It is not your topic");
@@ -182,24 +666,178 @@ public class Broker {
      * @param content the content of the message
      */
     public void handlePublic(String topicID, String content) {
-    	
-     	for (SubscriberHandler connection : subscriberConnections) {
-    		    connection.publicMessage(topicID,  content);
+        handlePublic(new EncodedMessage(topicID, content));
+    }
+    
+    /**
+     * Publishes a message to all subscribers of its topic. The message is encoded once and the
+     * same bytes are written to every subscriber. The message is logged on the calling thread;
+     * with a {@link Dispatcher} the subscribers are then found and sent the message on the
+     * topic's shard.
+     * 
+     * @param message the published message
+     */
+    public void handlePublic(EncodedMessage message) {
+        Topic topic = topicMap.get(message.getTopicID());
+        if (topic != null) {
+            message.setTopicHandle(topic.getHandle());
+            RecentMessages recent = topic.getRecentMessages();
+            if (messageLog != null) {
+                try {
+                    message.setOffset(messageLog.append(message));
+                } catch (IOException e) {
+                    LOG.warn("Could not log message: " + e.getMessage());
+                }
+            } else if (recent != null) {
+                message.setOffset(recent.nextOffset());
+            }
+            if (recent != null) {
+                recent.add(message);
+            }
+        }
+        if (dispatcher == null) {
+            deliver(topic, message);
+        } else {
+            dispatcher.execute(message.getTopicID(), () -> deliver(topic, message));
         }
     }
     
     /**
-     * Lists all topics for the connected Subscriber.
+     * Sends a published message to the local subscribers of its topic, its matching wildcard
+     * filters and the filter groups the message passes.
+     * 
+     * @param topic   the topic, or null if it is not known
+     * @param message the published message
+     */
+    private void deliver(Topic topic, EncodedMessage message) {
+        Set<SubscriberHandler> subscribers = topicSubscribers.get(message.getTopicID());
+        Map<String, FilterGroup> groups = filteredSubscribers.get(message.getTopicID());
+        if (!patternSubscribers.isEmpty() || groups != null && !groups.isEmpty()) {
+            // a subscriber matched by several subscriptions still gets the message once
+            Set<SubscriberHandler> matched = subscribers == null ? new HashSet<>() : new HashSet<>(subscribers);
+            patternSubscribers.match(message.getTopicID(), matched::add);
+            List<FilterGroup> rejected = null;
+            if (groups != null) {
+                // each distinct filter is evaluated once for all subscribers sharing it
+                MessageFields fields = new MessageFields(message.getTopicID(), topic == null ? null : topic.getName(), message.getContent());
+                for (FilterGroup group : groups.values()) {
+                    if (group.getFilter().test(fields)) {
+                        matched.addAll(group.getSubscribers());
+                    } else if (message.getOffset() >= 0) {
+                        if (rejected == null) {
+                            rejected = new ArrayList<>();
+                        }
+                        rejected.add(group);
+                    }
+                }
+            }
+            if (rejected != null) {
+                // subscribers replaying the topic track its offsets, which must move past the message
+                for (FilterGroup group : rejected) {
+                    for (SubscriberHandler connection : group.getSubscribers()) {
+                        if (!matched.contains(connection)) {
+                            connection.skipMessage(message);
+                        }
+                    }
+                }
+            }
+            subscribers = matched;
+        }
+        metrics.recordPublish(topic, subscribers == null ? 0 : subscribers.size());
+        if (subscribers == null) {
+            return;
+        }
+        message.setQueuedNanos(System.nanoTime());
+        if (dispatcher != null && dispatcher.splits(subscribers.size())) {
+            dispatcher.fanOut(new ArrayList<>(subscribers), connection -> connection.publicMessage(message));
+            return;
+        }
+        for (SubscriberHandler connection : subscribers) {
+            connection.publicMessage(message);
+        }
+    }
+    
+    /**
+     * Lists the first page of all topics for the connected Subscriber.
      * 
      * @param out the PrintWriter for sending the list to the client
      */
     public void listAllTopic(PrintWriter out) {
-    	if (topicMap.isEmpty()) {
-    		out.println("There is no topic right now.");
-    	}
-     	for (Topic topic : topicMap.values()) {
-    		    out.println(topic.listTopic());
-        } 
+        listTopics("", listPageSize, null, out);
+    }
+    
+    /**
+     * Lists one page of the topics whose ID starts with a prefix, in the order of their IDs. If
+     * more topics follow, the page ends with the command that lists the next page, which
+     * continues after the last topic ID shown, so pages stay consistent while topics are created
+     * and deleted. A page is rendered once and then served from a cache until the next topic is
+     * created or deleted.
+     * 
+     * @param prefix the prefix of the topic IDs, empty for all topics
+     * @param limit  the maximum number of topics on the page, 0 for the default page size
+     * @param after  the topic ID the page starts after, or null to start at the first topic
+     * @param out    the PrintWriter for sending the list to the client
+     */
+    public void listTopics(String prefix, int limit, String after, PrintWriter out) {
+        int pageSize = limit > 0 ? limit : listPageSize;
+        String key = prefix + '\n' + pageSize + '\n' + (after == null ? "" : after);
+        // read before rendering, so a page that raced with a create or delete is not reused
+        long version = catalogVersion.get();
+        ListingPage page = listingCache.get(key);
+        if (page == null || page.version != version) {
+            page = new ListingPage(version, renderListing(prefix, pageSize, after));
+            if (listingCache.size() >= LISTING_CACHE_PAGES) {
+                listingCache.clear();
+            }
+            listingCache.put(key, page);
+        }
+        out.print(page.text);
+        out.flush();
+    }
+    
+    private String renderListing(String prefix, int pageSize, String after) {
+        String newline = System.lineSeparator();
+        NavigableMap<String, Topic> topics = prefix.isEmpty() ? topicCatalog
+                : topicCatalog.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        if (after != null) {
+            topics = topics.tailMap(after, false);
+        }
+        StringBuilder text = new StringBuilder();
+        int count = 0;
+        String last = null;
+        for (Topic topic : topics.values()) {
+            if (count == pageSize) {
+                text.append("More topics: list ").append(prefix.isEmpty() ? "all" : prefix).append(' ')
+                        .append(pageSize).append(" after ").append(last).append(newline);
+                return text.toString();
+            }
+            text.append(topic.listTopic()).append(newline);
+            last = topic.getTopicID();
+            count++;
+        }
+        if (count == 0) {
+            if (after != null) {
+                text.append("There are no more topics.").append(newline);
+            } else if (prefix.isEmpty()) {
+                text.append("There is no topic right now.").append(newline);
+            } else {
+                text.append("There is no topic starting with ").append(prefix).append('.').append(newline);
+            }
+        }
+        return text.toString();
+    }
+    
+    /**
+     * A rendered page of a topic listing and the catalog version it was rendered from.
+     */
+    private static class ListingPage {
+        private final long version;
+        private final String text;
+
+        ListingPage(long version, String text) {
+            this.version = version;
+            this.text = text;
+        }
     }
     
     /**
@@ -210,21 +848,112 @@ public class Broker {
      * @return true if subscription was successful, false otherwise
      */
     public boolean subTopic(String printID, String name) {
-    	    if (topicMap.containsKey(printID)) {
-    		    Topic topic = topicMap.get(printID);
-    		    topic.addSub(name);
-    		    return true;
+    	    Topic topic = topicMap.get(printID);
+    	    if (topic != null) {
+    		    return addSub(topic, name);
      	    } 
     	    else {
     		    return false;
      	}
     }
     
+    /**
+     * Subscribes a local Subscriber to a topic and records its handler in the
+     * topic index so that published messages only reach interested connections.
+     * A wildcard filter such as "sensors/#" is recorded in the {@link TopicTrie} instead
+     * and also covers topics created later.
+     * 
+     * @param printID the ID of the topic, or a wildcard topic filter
+     * @param name    the name of the subscriber
+     * @param handler the SubscriberHandler of the local subscriber
+     * @return true if subscription was successful, false otherwise
+     */
+    public boolean subTopic(String printID, String name, SubscriberHandler handler) {
+        return subTopic(printID, name, handler, null);
+    }
+    
+    /**
+     * Subscribes a local Subscriber to a topic, delivering only the messages that pass the filter.
+     * Subscribers of a topic using the same filter form one {@link FilterGroup}.
+     * 
+     * @param printID the ID of the topic, or a wildcard topic filter if no message filter is given
+     * @param name    the name of the subscriber
+     * @param handler the SubscriberHandler of the local subscriber
+     * @param filter  the message filter, or null to receive every message
+     * @return true if subscription was successful, false otherwise
+     */
+    public boolean subTopic(String printID, String name, SubscriberHandler handler, MessageFilter filter) {
+        if (filter != null) {
+            Topic topic = topicMap.get(printID);
+            if (topic == null || !addSub(topic, name)) {
+                return false;
+            }
+            filteredSubscribers.computeIfAbsent(printID, k -> new ConcurrentHashMap<>()).compute(filter.getExpression(), (expression, group) -> {
+                FilterGroup joined = group == null ? new FilterGroup(filter) : group;
+                joined.getSubscribers().add(handler);
+                return joined;
+            });
+            return checkNotDeleted(topic, name, handler);
+        }
+        if (TopicTrie.isPattern(printID)) {
+            patternSubscribers.add(printID, handler);
+            return true;
+        }
+        Topic topic = topicMap.get(printID);
+        if (topic == null || !addSub(topic, name)) {
+            return false;
+        }
+        // added inside compute, so an unsubscribe dropping the emptied set cannot lose it
+        topicSubscribers.compute(printID, (key, subscribers) -> {
+            Set<SubscriberHandler> joined = subscribers == null ? ConcurrentHashMap.newKeySet() : subscribers;
+            joined.add(handler);
+            return joined;
+        });
+        return checkNotDeleted(topic, name, handler);
+    }
+    
+    /**
+     * Counts a subscription of a client to a topic, which holds the client's handle until the
+     * subscription ends or the topic is deleted.
+     * 
+     * @param topic the topic
+     * @param name  the name of the subscriber
+     * @return false if the topic was deleted meanwhile
+     */
+    private boolean addSub(Topic topic, String name) {
+        int client = clientHandles.acquire(name);
+        if (topic.addSub(client)) {
+            return true;
+        }
+        clientHandles.release(client);
+        return false;
+    }
+    
+    /**
+     * Undoes a subscription if its topic was deleted while the handler was being indexed, as the
+     * delete may have cleared the index before the handler was added.
+     * 
+     * @param topic   the subscribed topic
+     * @param name    the name of the subscriber
+     * @param handler the SubscriberHandler of the local subscriber
+     * @return true if the topic still exists
+     */
+    private boolean checkNotDeleted(Topic topic, String name, SubscriberHandler handler) {
+        if (topicMap.get(topic.getTopicID()) == topic) {
+            return true;
+        }
+        unsubTopic(topic.getTopicID(), name, handler);
+        return false;
+    }
+    
     
     public void listTopic(List<String> topicIDs, PrintWriter out) {
     	    for (String topicID : topicIDs) {
-    		    if (topicMap.containsKey(topicID)) {
-    			    out.println(topicMap.get(topicID).listTopic());
+    		    Topic topic = topicMap.get(topicID);
+    		    if (topic != null) {
+    			    out.println(topic.listTopic());
+    		    } else if (TopicTrie.isPattern(topicID)) {
+    		        out.println(topicID + " (wildcard subscription)");
     		    }
     		
       	}
@@ -237,7 +966,41 @@ public class Broker {
      * @param name    the name of the subscriber
      */
     public void unsubTopic(String printID, String name) {
-    	    topicMap.get(printID).unsub(name);
+        Topic topic = topicMap.get(printID);
+        if (topic != null) {
+            int client = clientHandles.get(name);
+            if (topic.unsub(client)) {
+                clientHandles.release(client);
+            }
+        }
+    }
+    
+    /**
+     * Unsubscribes a local Subscriber from a topic and removes its handler from the topic index.
+     * 
+     * @param printID the ID of the topic, or a wildcard topic filter
+     * @param name    the name of the subscriber
+     * @param handler the SubscriberHandler of the local subscriber
+     */
+    public void unsubTopic(String printID, String name, SubscriberHandler handler) {
+        if (TopicTrie.isPattern(printID)) {
+            patternSubscribers.remove(printID, handler);
+            return;
+        }
+        unsubTopic(printID, name);
+        topicSubscribers.computeIfPresent(printID, (key, subscribers) -> {
+            subscribers.remove(handler);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+        Map<String, FilterGroup> groups = filteredSubscribers.get(printID);
+        if (groups != null) {
+            for (String expression : groups.keySet()) {
+                groups.computeIfPresent(expression, (key, group) -> {
+                    group.getSubscribers().remove(handler);
+                    return group.getSubscribers().isEmpty() ? null : group;
+                });
+            }
+        }
     }
     
     /**
@@ -246,14 +1009,33 @@ public class Broker {
      * @param topicID   the ID of the topic
      * @param topicName the name of the topic
      * @param authorName the name of the publisher creating the topic
+     * @return false if a topic with the ID already exists
      */
-    public void handleCreateTopic(String topicID, String topicName,String authorName) {
-        if (!topicMap.containsKey(topicID)) {
-            Topic topic = new Topic(topicID, topicName, authorName);  // create new topic name
-            topicMap.put(topicID, topic);  
-            System.out.println("Topic created by " + authorName + " " + topic);
+    public boolean handleCreateTopic(String topicID, String topicName,String authorName) {
+        Topic topic = new Topic(topicID, topicHandles.acquire(topicID), topicName, authorName, clientHandles.acquire(authorName));  // create new topic name
+        if (recentCapacity > 0) {
+            topic.setRecentMessages(new RecentMessages(recentCapacity, recentMillis, recentTopicBytes, recentBudget));
+        }
+        // two publishers creating the same ID at once: only the first one wins. The catalog and the
+        // author index are updated in the same step, so a delete, which removes the topic from the
+        // map first, always finds it in both
+        Topic created = topicMap.compute(topicID, (key, existing) -> {
+            if (existing != null) {
+                return existing;
+            }
+            topicCatalog.put(topicID, topic);
+            catalogVersion.incrementAndGet();
+            authorIndex(topic.getAuthorHandle()).add(topic);
+            return topic;
+        });
+        if (created == topic) {
+            LOG.info("Topic created by " + authorName + " " + topic);
+            return true;
         } else {
-            System.out.println("Topic already exists with ID: " + topicID);
+            LOG.warn("Topic already exists with ID: " + topicID);
+            topicHandles.release(topic.getHandle());
+            clientHandles.release(topic.getAuthorHandle());
+            return false;
         }
     }
     
@@ -271,11 +1053,100 @@ public class Broker {
      * @param topicID the ID of the topic to delete
      */
     public void handleDelete(String topicID) {
-    	    topicMap.remove(topicID);
-       	System.out.println(topicID + " successfully delete");
-    	    for (SubscriberHandler connection: subscriberConnections) {
-    		    connection.removeTopic(topicID);
-      	}
+    	    Topic topic = topicMap.remove(topicID);
+    	    if (topic != null) {
+       	    LOG.info(topicID + " successfully delete");
+            removeTopicSubscribers(topic);
+    	    }
+    }
+    
+    /**
+     * Returns the topics created by an author, from the index kept next to the topic map, so
+     * finding them does not scan all topics. The index is an array by client handle, so looking
+     * up an author boxes nothing.
+     * 
+     * @param authorHandle the client handle of the author
+     * @return the author's topics, empty if there are none
+     */
+    public Set<Topic> getAuthorTopics(int authorHandle) {
+        AtomicReferenceArray<Set<Topic>> index = authorTopics;
+        Set<Topic> topics = authorHandle >= 0 && authorHandle < index.length() ? index.get(authorHandle) : null;
+        return topics == null ? Collections.emptySet() : topics;
+    }
+    
+    /**
+     * Returns the set of an author's topics in the index, creating it the first time. Sets are
+     * never removed, so a topic added to one cannot be lost to a concurrent removal; a handle that
+     * is reused by another author only gets its set once all topics of the previous one are gone.
+     * 
+     * @param authorHandle the client handle of the author
+     * @return the author's set of topics
+     */
+    private Set<Topic> authorIndex(int authorHandle) {
+        AtomicReferenceArray<Set<Topic>> current = authorTopics;
+        Set<Topic> topics = authorHandle < current.length() ? current.get(authorHandle) : null;
+        if (topics != null) {
+            return topics;
+        }
+        synchronized (this) {
+            AtomicReferenceArray<Set<Topic>> index = authorTopics;
+            if (authorHandle >= index.length()) {
+                // only grown here, so no set is created in the old array meanwhile
+                AtomicReferenceArray<Set<Topic>> grown = new AtomicReferenceArray<>(Math.max(authorHandle + 1, index.length() * 2));
+                for (int i = 0; i < index.length(); i++) {
+                    grown.set(i, index.get(i));
+                }
+                authorTopics = index = grown;
+            }
+            topics = index.get(authorHandle);
+            if (topics == null) {
+                topics = ConcurrentHashMap.newKeySet();
+                index.set(authorHandle, topics);
+            }
+            return topics;
+        }
+    }
+    
+    /**
+     * Drops the topic from the catalog, the author index, the subscriber index, the message log,
+     * the recent messages and the interest of the linked Brokers, notifies every local subscriber
+     * of it and releases the handles the topic held.
+     * 
+     * @param topic the deleted topic, already removed from the topic map
+     */
+    private void removeTopicSubscribers(Topic topic) {
+        String topicID = topic.getTopicID();
+        topicCatalog.remove(topicID, topic);
+        catalogVersion.incrementAndGet();
+        getAuthorTopics(topic.getAuthorHandle()).remove(topic);
+        if (messageLog != null) {
+            messageLog.delete(topicID);
+        }
+        if (topic.getRecentMessages() != null) {
+            topic.getRecentMessages().clear();
+        }
+        for (BrokerConnection connection : brokerConnections) {
+            connection.removeInterest(topicID);
+        }
+        for (int client : topic.close()) {
+            clientHandles.release(client);
+        }
+        clientHandles.release(topic.getAuthorHandle());
+        topicHandles.release(topic.getHandle());
+        Set<SubscriberHandler> subscribers = topicSubscribers.remove(topicID);
+        if (subscribers != null) {
+            for (SubscriberHandler connection : subscribers) {
+                connection.removeTopic(topicID);
+            }
+        }
+        Map<String, FilterGroup> groups = filteredSubscribers.remove(topicID);
+        if (groups != null) {
+            for (FilterGroup group : groups.values()) {
+                for (SubscriberHandler connection : group.getSubscribers()) {
+                    connection.removeTopic(topicID);
+                }
+            }
+        }
     }
     
     /**
@@ -287,13 +1158,15 @@ public class Broker {
      * @return true if the topic was successfully deleted, false otherwise
      */
     public boolean handleDelete(String topicID, String authorName, PrintWriter out) {
-    	    if (topicMap.containsKey(topicID)) {
-    		    if (topicMap.get(topicID).getAuthorName().equals(authorName)) {
-    			    topicMap.remove(topicID);
-    	    	        System.out.println(topicID + " successfully delete");
-    	         	for (SubscriberHandler connection: subscriberConnections) {
-    	    		    connection.removeTopic(topicID);
-    	       	    }
+    	    Topic topic = topicMap.get(topicID);
+    	    if (topic != null) {
+    		    if (topic.getAuthorHandle() == clientHandles.get(authorName)) {
+    		        if (!topicMap.remove(topicID, topic)) {
+    		            out.println("error: This topic is not exists.");
+    		            return false;
+    		        }
+    	    	        LOG.info(topicID + " successfully delete");
+    	         	removeTopicSubscribers(topic);
     	    	    return true;
     		    }
     		    else {
@@ -312,7 +1185,7 @@ public class Broker {
     
     
     public void handleMessage(String message) {
-        System.out.println("Handling message: " + message);
+        LOG.debug("Handling message: " + message);
     }
     
     /**
@@ -320,7 +1193,11 @@ public class Broker {
      * It registers the Broker with the Directory Service and allows the user
      * to input messages from the console to broadcast to other Brokers.
      * 
-     * @param args the command-line arguments: args[0] is the port number, args[1] is the Directory Service IP address, and args[2] is the Directory Service port number
+     * @param args the command-line arguments: args[0] is the port number, args[1] is the Directory Service IP address, and args[2] is the Directory Service port number;
+     *             an optional args[3] of "nio" selects the non-blocking network engine, with args[4] the number of event loops,
+     *             and "virtual" runs the accept loop and connection handlers on virtual threads.
+     *             The Broker is configured by system properties, see {@link #fromSystemProperties(int)},
+     *             and broker.statsPort serves its metrics over HTTP, see {@link #startStatsServer(int)}
      */
     public static void main(String[] args) {
         // get port number and directoryService IP and port;
@@ -328,8 +1205,67 @@ public class Broker {
         String directoryServiceIP = args[1];
         int directoryServicePort = Integer.parseInt(args[2]);
         
-        Broker broker = new Broker(port);
+        Broker broker = fromSystemProperties(port);
+        int statsPort = Integer.getInteger("broker.statsPort", 0);
+        if (statsPort > 0) {
+            try {
+                broker.startStatsServer(statsPort);
+            } catch (IOException e) {
+                LOG.warn("Could not serve stats on port " + statsPort + ": " + e.getMessage());
+            }
+        }
+        if (args.length > 3 && args[3].equals("nio")) {
+            int eventLoops = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+            broker.startNioBroker(directoryServiceIP, directoryServicePort, eventLoops);
+            return;
+        }
+        if (args.length > 3 && args[3].equals("virtual")) {
+            broker.setThreadFactory(ConnectionThreads.virtual());
+        }
         broker.startBroker(directoryServiceIP, directoryServicePort);
+        try {
+            broker.awaitShutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Constructs a Broker configured by system properties, as it is started from the command line.
+     * The system properties broker.outboundCapacity and broker.overflowPolicy configure the Subscribers' outbound queues,
+     * and broker.linkBatchBytes, broker.linkLingerMillis and broker.linkCompressBytes the batching of messages to other Brokers.
+     * Setting broker.logDir keeps a durable log of published messages, see {@link MessageLog},
+     * broker.recentMessages keeps the most recent messages of each topic in memory, see {@link RecentMessages},
+     * broker.listPageSize sets the number of topics a 'list' command shows by default,
+     * broker.loadReportMillis how often the load is reported to the Directory Service,
+     * and broker.dispatchThreads, broker.dispatchQueue and broker.dispatchSplitSubscribers configure the {@link Dispatcher}.
+     * 
+     * @param port the port the Broker will listen on
+     * @return the configured Broker, not started yet
+     */
+    public static Broker fromSystemProperties(int port) {
+        Broker broker = new Broker(port);
+        broker.setOutboundQueue(Integer.getInteger("broker.outboundCapacity", 1024),
+                OutboundQueue.OverflowPolicy.valueOf(System.getProperty("broker.overflowPolicy", "BLOCK").toUpperCase()));
+        broker.setBrokerLinkBatching(Integer.getInteger("broker.linkBatchBytes", 32 * 1024),
+                Integer.getInteger("broker.linkLingerMillis", 1), Integer.getInteger("broker.linkCompressBytes", 4096));
+        String logDir = System.getProperty("broker.logDir");
+        if (logDir != null) {
+            MessageLog messageLog = new MessageLog(Paths.get(logDir));
+            messageLog.setSegments(Integer.getInteger("broker.logSegmentBytes", 16 * 1024 * 1024),
+                    Long.getLong("broker.logSegmentMillis", 60 * 60 * 1000L));
+            messageLog.setFsync(Long.getLong("broker.logFsyncMillis", 1000), Integer.getInteger("broker.logFsyncMessages", 0));
+            messageLog.setRetention(Long.getLong("broker.logRetentionBytes", 1024L * 1024 * 1024),
+                    Long.getLong("broker.logRetentionMillis", 7 * 24 * 60 * 60 * 1000L));
+            broker.setMessageLog(messageLog);
+        }
+        broker.setListPageSize(Integer.getInteger("broker.listPageSize", 100));
+        broker.setLoadReportMillis(Integer.getInteger("broker.loadReportMillis", 1000));
+        broker.setDispatcher(Integer.getInteger("broker.dispatchThreads", 0),
+                Integer.getInteger("broker.dispatchQueue", 4096), Integer.getInteger("broker.dispatchSplitSubscribers", 0));
+        broker.setRecentMessages(Integer.getInteger("broker.recentMessages", 0), Long.getLong("broker.recentMillis", 0),
+                Long.getLong("broker.recentTopicBytes", 1024 * 1024), Long.getLong("broker.recentTotalBytes", 64L * 1024 * 1024));
+        return broker;
     }
     
     /**
@@ -347,24 +1283,81 @@ public class Broker {
             BufferedReader in = new BufferedReader(new InputStreamReader(directorySocket.getInputStream()));
 
      
-            out.println("register," + InetAddress.getLocalHost().getHostAddress() + "," + port);
+            String address = InetAddress.getLocalHost().getHostAddress();
+            out.println("register," + address + "," + port);
             String brokerInfo;
             String info = in.readLine();
-            System.out.println(info);
+            LOG.info(info);
             
             while ((brokerInfo = in.readLine()) != null) {
                 brokerList.add(brokerInfo);
                 String[] part = brokerInfo.split(",", 3);
-                System.out.println(part[0] + " " + part[1] + " " + part[2]);
+                LOG.info(part[0] + " " + part[1] + " " + part[2]);
             }
 
             directorySocket.close();
+            startLoadReports(directoryServiceIP, directoryServicePort, address);
         } catch (IOException e) {
             e.printStackTrace();
         }
         return brokerList;
     }
     
+    /**
+     * Reports the load of the Broker to the Directory Service every load report interval: the
+     * number of client connections, the messages in and out per second since the last report,
+     * and the number of messages waiting in the outbound queues and the dispatcher. The reports
+     * share one connection, which is opened again by the next report if it fails.
+     * 
+     * @param directoryServiceIP   the IP address of the Directory Service
+     * @param directoryServicePort the port of the Directory Service
+     * @param address              the address the Broker registered with
+     */
+    private synchronized void startLoadReports(String directoryServiceIP, int directoryServicePort, String address) {
+        if (loadReportMillis <= 0 || loadReporter != null) {
+            return;
+        }
+        loadReporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "broker-load-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] last = {System.nanoTime(), metrics.getMessagesIn() + metrics.getMessagesOut()};
+        loadReporter.scheduleWithFixedDelay(() -> {
+            long now = System.nanoTime();
+            long messages = metrics.getMessagesIn() + metrics.getMessagesOut();
+            long rate = (messages - last[1]) * TimeUnit.SECONDS.toNanos(1) / Math.max(1, now - last[0]);
+            last[0] = now;
+            last[1] = messages;
+            long depth = getOutboundDepth() + (dispatcher == null ? 0 : dispatcher.depth());
+            try {
+                if (loadOut == null) {
+                    loadSocket = new Socket(directoryServiceIP, directoryServicePort);
+                    loadOut = new PrintWriter(loadSocket.getOutputStream(), true);
+                }
+                loadOut.println("load," + address + "," + port + "," + getClientCount() + "," + rate + "," + depth);
+                if (loadOut.checkError()) {
+                    throw new IOException("connection lost");
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not report load to the directory service: " + e.getMessage());
+                closeLoadReports();
+            }
+        }, loadReportMillis, loadReportMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    private void closeLoadReports() {
+        loadOut = null;
+        if (loadSocket != null) {
+            try {
+                loadSocket.close();
+            } catch (IOException e) {
+                // the connection is given up anyway
+            }
+            loadSocket = null;
+        }
+    }
+    
     /**
      * Handles the disconnection of a Publisher, cleaning up any topics created by the Publisher.
      * 
@@ -372,43 +1365,62 @@ public class Broker {
      */
     public void handlePublisherDisconnect(PublisherHandler handler) {
         String publisherName = handler.getName();
-        System.out.println("Cleaning up topics for publisher: " + publisherName);
-        Iterator<Map.Entry<String, Topic>> iterator = topicMap.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, Topic> entry = iterator.next();
-            String topicID = entry.getKey();
-            String authorName = entry.getValue().getAuthorName();
-            if (publisherName.equals(authorName)) {
-                iterator.remove();  
-                System.out.println("Topic " + topicID + " removed.");
-                String message = "delete," + topicID;
-                broadcastToOtherBrokers(message);
+        LOG.info("Cleaning up topics for publisher: " + publisherName);
+        removeAuthorTopics(handler.getHandle(), publisherName);
+        publisherNames.values().remove(publisherName);
+    }
+    
+    /**
+     * Removes every topic of an author and announces the deletes to the other Brokers with
+     * 'deleteall' messages. Only the author's own topics are visited.
+     * 
+     * @param authorHandle the client handle of the author
+     * @param authorName   the name of the author
+     */
+    private void removeAuthorTopics(int authorHandle, String authorName) {
+        List<String> removed = new ArrayList<>();
+        for (Topic topic : getAuthorTopics(authorHandle)) {
+            String topicID = topic.getTopicID();
+            // removed only if it is still this topic, so a topic recreated meanwhile stays
+            if (topicMap.remove(topicID, topic)) {
+                LOG.info("Topic " + topicID + " removed.");
+                removeTopicSubscribers(topic);
+                removed.add(topicID);
             }
         }
-        publisherNames.values().remove(publisherName);
+        broadcastToOtherBrokers("deleteall", authorName, removed);
     }
     
     /**
-     * Connects to existing Brokers based on a list of Broker information received from the Directory Service.
+     * Deletes the listed topics of an author in one pass, as announced by another Broker with a
+     * 'deleteall' message. Topics that meanwhile belong to someone else are kept.
      * 
-     * @param brokerList a list of strings containing information about Brokers
+     * @param authorName the name of the author
+     * @param topicIDs   the IDs of the author's deleted topics
+     * @return the IDs of the topics that were deleted
      */
-    public void handlePublisherDisconnect(String name) {
-        System.out.println("Cleaning up topics for publisher: " + name);
-
-        
-        Iterator<Map.Entry<String, Topic>> iterator = topicMap.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, Topic> entry = iterator.next();
-            String topicID = entry.getKey();
-            String authorName = entry.getValue().getAuthorName();
-            if (name.equals(authorName)) {
-                iterator.remove();
-                System.out.println("Topic " + topicID + " removed.");
-                String message = "delete," + topicID;
-                broadcastToOtherBrokers(message);
+    public List<String> handleDeleteAll(String authorName, List<String> topicIDs) {
+        List<String> deleted = new ArrayList<>();
+        int authorHandle = clientHandles.get(authorName);
+        for (String topicID : topicIDs) {
+            Topic topic = topicMap.get(topicID);
+            if (topic != null && topic.getAuthorHandle() == authorHandle && topicMap.remove(topicID, topic)) {
+                removeTopicSubscribers(topic);
+                deleted.add(topicID);
             }
         }
+        LOG.info(deleted.size() + " topics of " + authorName + " successfully delete");
+        return deleted;
+    }
+    
+    /**
+     * Handles the disconnection of a Publisher by its name, cleaning up any topics created by the Publisher.
+     * 
+     * @param name the name of the Publisher
+     */
+    public void handlePublisherDisconnect(String name) {
+        LOG.info("Cleaning up topics for publisher: " + name);
+        removeAuthorTopics(clientHandles.get(name), name);
 
         // cancel the name of publish
         publisherNames.values().remove(name);
@@ -424,13 +1436,15 @@ public class Broker {
     public void handleSubscriberDisconnect(SubscriberHandler handler, String name) {
         // get all subscribed topic
         List<String> subscribedTopics = handler.getSubscriberTopic();
-        System.out.println("Cleaning up subscriptions for subscriber.");
+        LOG.info("Cleaning up subscriptions for subscriber.");
 
-        for (String topicID : subscribedTopics) {
-            unsubTopic(topicID,name); 
-            String message = "unsub," + topicID + "," + name;
-            broadcastToOtherBrokers(message);
+        List<String> removed = new ArrayList<>(subscribedTopics);
+        for (String topicID : removed) {
+            unsubTopic(topicID, name, handler);
         }
+        broadcastToOtherBrokers("unsuball", name, removed);
+        // a later disconnect of the same handler must not unsubscribe again
+        subscribedTopics.clear();
         subscriberConnections.remove(handler);
     }
     
@@ -462,6 +1476,24 @@ public class Broker {
     	    return topicMap.get(topicID);
     }
     
+    /**
+     * Returns all topics known to the Broker.
+     * 
+     * @return a live view of the topics
+     */
+    public Collection<Topic> getTopics() {
+        return Collections.unmodifiableCollection(topicMap.values());
+    }
+    
+    /**
+     * Returns the number of topics known to the Broker.
+     * 
+     * @return the number of topics
+     */
+    public int getTopicCount() {
+        return topicMap.size();
+    }
+    
     
  
 }
@@ -7,16 +7,35 @@ package brokerSystem;
 
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
 /**
  * The BrokerConnection class handles the connection between Brokers in a distributed publish-subscribe system.
  * It allows Brokers to communicate and exchange messages such as creating, deleting, subscribing, and publishing topics.
  * This class implements the Runnable interface to allow concurrent handling of messages from other Brokers.
  */
-public class BrokerConnection implements Runnable {
+public class BrokerConnection implements Runnable, FrameCodec.FrameHandler {
+    private static final BrokerLog LOG = BrokerLog.get("link");
+
     private Socket socket;
-    private PrintWriter out;
     private BufferedReader in;
+    private DataInputStream frameIn;
+    private ConnectionWriter writer;
+    private boolean binary;
+    private Map<String, Set<String>> remoteSubscribers = new ConcurrentHashMap<>();
+    private TopicTrie<String> remotePatterns = new TopicTrie<>();
+    private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private int batchedMessages;
+    private boolean flushScheduled;
+    private ReentrantLock batchLock = new ReentrantLock();
+    private Deflater deflater;
+    private String[] aliasesSent = new String[64];
+    private String[] aliasesReceived = new String[64];
     private Broker broker;
 
     /**
@@ -26,17 +45,48 @@ public class BrokerConnection implements Runnable {
      * @param broker the Broker object managing this connection
      */
     public BrokerConnection(Socket socket, Broker broker) {
+        this(socket, broker, false);
+    }
+
+    /**
+     * Constructs a BrokerConnection using the text or the binary protocol.
+     * 
+     * @param socket the Socket representing the connection to another Broker
+     * @param broker the Broker object managing this connection
+     * @param binary true if the connection uses the binary protocol of {@link FrameCodec}
+     */
+    public BrokerConnection(Socket socket, Broker broker, boolean binary) {
         this.socket = socket;
         this.broker = broker;
+        this.binary = binary;
         try {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            
+            if (binary) {
+                frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                writer = new FrameWriter(socket.getOutputStream());
+            } else {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                writer = new TextWriter(socket.getOutputStream());
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Constructs a BrokerConnection whose outgoing messages are written to the given writer instead
+     * of a blocking socket. Used by the non-blocking network engine, which feeds incoming lines in
+     * through {@link #handleBrokerMessage(String)} or decoded frames through
+     * {@link #handleBrokerCommand(String[])}.
+     * 
+     * @param broker the Broker object managing this connection
+     * @param writer the writer for sending messages to the other Broker, a FrameWriter for binary connections
+     */
+    public BrokerConnection(Broker broker, ConnectionWriter writer) {
+        this.broker = broker;
+        this.writer = writer;
+        this.binary = writer instanceof FrameWriter;
+    }
+
     /**
     * Listens for incoming messages from other Brokers and processes them.
     * This method is executed in a separate thread for concurrent message handling.
@@ -46,8 +96,12 @@ public class BrokerConnection implements Runnable {
     public void run() {
         String message;
         try {
+            if (frameIn != null) {
+                while (true) {
+                    FrameCodec.readFrames(frameIn, this);
+                }
+            }
             while ((message = in.readLine()) != null) {
-                System.out.println("Received and handling message from another broker:" + message);
                 handleBrokerMessage(message);  
             }
         } catch (IOException e) {
@@ -63,39 +117,292 @@ public class BrokerConnection implements Runnable {
      */
     public void handleBrokerMessage(String message) {
         String[] parts = message.split(",", 3);
+        if (parts[0].equals("create") && parts.length == 3) {
+            // the author name is the last field, the topic name may contain commas
+            int split = parts[2].lastIndexOf(',');
+            if (split < 0) {
+                return;
+            }
+            parts = new String[] {parts[0], parts[1], parts[2].substring(0, split), parts[2].substring(split + 1)};
+        } else if ((parts[0].equals("deleteall") || parts[0].equals("unsuball")) && parts.length == 3) {
+            // the client name is followed by the list of topic IDs
+            String[] topicIDs = parts[2].split(",");
+            String[] expanded = new String[2 + topicIDs.length];
+            expanded[0] = parts[0];
+            expanded[1] = parts[1];
+            System.arraycopy(topicIDs, 0, expanded, 2, topicIDs.length);
+            parts = expanded;
+        }
+        handleBrokerCommand(parts);
+    }
+
+    /**
+     * Handles a message from another Broker given as the command name followed by its arguments,
+     * as parsed from a text line or decoded from a binary frame.
+     * 
+     * @param parts the command name followed by its arguments
+     */
+    public void handleBrokerCommand(String[] parts) {
         String command = parts[0];
+        if (LOG.sampled(BrokerLog.Level.DEBUG)) {
+            LOG.debug("Received and handling message from another broker:" + String.join(",", parts));
+        }
+        broker.getMetrics().recordBrokerMessageIn(command.equals("publish"));
 
-        if (command.equals("create") && parts.length == 3) {
+        if (command.equals("create") && parts.length == 4) {
             String topicID = parts[1];
-            String[] newString = parts[2].split(",",2);
-            String topicName = newString[0];
-            String authorName = newString[1];
+            String topicName = parts[2];
+            String authorName = parts[3];
             broker.handleCreateTopic(topicID, topicName,authorName); 
         } else if (command.equals("delete") && parts.length == 2) {
             String topicID = parts[1];
+            removeInterest(topicID);
             broker.handleDelete(topicID);
         } else if (command.equals("add") && parts.length == 3) {
          	String topicID = parts[1];
          	String name = parts[2];
-        	broker.subTopic(topicID,name);
-        } else if (command.equals("unsub")) {
-        	    String topicID = parts[1];
-           	String name = parts[2];
-        	broker.unsubTopic(topicID,name);
+         	if (remoteSub(topicID, name)) {
+        	    broker.subTopic(topicID,name);
+         	}
+        } else if (command.equals("unsub") && parts.length == 3) {
+        	    remoteUnsub(parts[1], parts[2]);
+        } else if (command.equals("deleteall") && parts.length >= 2) {
+            for (String topicID : broker.handleDeleteAll(parts[1], Arrays.asList(parts).subList(2, parts.length))) {
+                removeInterest(topicID);
+            }
+        } else if (command.equals("unsuball") && parts.length >= 2) {
+            for (int i = 2; i < parts.length; i++) {
+                remoteUnsub(parts[i], parts[1]);
+            }
         } else if (command.equals("publish")) {
           	String topicID = parts[1];
           	String content = parts[2];
-        	broker.handlePublic(topicID, content);
+        	broker.handlePublic(new EncodedMessage(topicID, content));
+        } else if (command.equals("alias") && parts.length == 3) {
+            int handle = Integer.parseInt(parts[1]);
+            if (handle < 0) {
+                return;
+            }
+            if (handle >= aliasesReceived.length) {
+                aliasesReceived = Arrays.copyOf(aliasesReceived, Math.max(handle + 1, aliasesReceived.length * 2));
+            }
+            aliasesReceived[handle] = parts[2];
         }
         
     }
 
     /**
-     * Sends a message to the connected Broker.
+     * Handles a decoded binary frame from the connected Broker.
+     * 
+     * @param parts the command name followed by its arguments
+     */
+    @Override
+    public void handleFrame(String[] parts) {
+        handleBrokerCommand(parts);
+    }
+
+    /**
+     * Handles a message the connected Broker published by topic handle, naming its topic by the
+     * ID the last 'alias' frame announced for the handle.
+     * 
+     * @param topicHandle the connected Broker's handle of the topic
+     * @param content     the published content
+     */
+    @Override
+    public void handlePublish(int topicHandle, String content) {
+        if (LOG.sampled(BrokerLog.Level.DEBUG)) {
+            LOG.debug("Received and handling message from another broker:hpublish," + topicHandle + "," + content);
+        }
+        broker.getMetrics().recordBrokerMessageIn(true);
+        String topicID = topicHandle >= 0 && topicHandle < aliasesReceived.length ? aliasesReceived[topicHandle] : null;
+        if (topicID == null) {
+            LOG.warn("Dropped message for unknown topic handle " + topicHandle);
+            return;
+        }
+        // the same String instance for every message, so its hash is only computed once
+        broker.handlePublic(new EncodedMessage(topicID, content));
+    }
+
+    /**
+     * Records that a Subscriber of the connected Broker joined a topic or wildcard filter. The
+     * Subscribers are kept by name, so a subscription announced again when the link was set up is
+     * only counted once.
+     * 
+     * @param topicID the ID of the topic, or a wildcard topic filter
+     * @param name    the name of the Subscriber
+     * @return false if the Subscriber was already recorded
+     */
+    private boolean remoteSub(String topicID, String name) {
+        boolean[] first = new boolean[1];
+        boolean[] added = new boolean[1];
+        remoteSubscribers.compute(topicID, (topic, names) -> {
+            Set<String> joined = names == null ? ConcurrentHashMap.newKeySet() : names;
+            first[0] = names == null;
+            added[0] = joined.add(name);
+            return joined;
+        });
+        if (first[0] && TopicTrie.isPattern(topicID)) {
+            remotePatterns.add(topicID, topicID);
+        }
+        return added[0];
+    }
+
+    /**
+     * Records that a Subscriber of the connected Broker left a topic or wildcard filter, and
+     * removes its subscription from the topic if it was recorded.
      * 
-     * @param message the message to send to the other Broker
+     * @param topicID the ID of the topic, or a wildcard topic filter
+     * @param name    the name of the Subscriber
      */
-    public void sendMessage(String message) {
-        out.println(message);
+    private void remoteUnsub(String topicID, String name) {
+        boolean[] removed = new boolean[1];
+        if (remoteSubscribers.computeIfPresent(topicID, (topic, names) -> {
+                    removed[0] = names.remove(name);
+                    return names.isEmpty() ? null : names;
+                }) == null && TopicTrie.isPattern(topicID)) {
+            remotePatterns.remove(topicID, topicID);
+        }
+        // only a recorded subscription was counted by the topic
+        if (removed[0]) {
+            broker.unsubTopic(topicID, name);
+        }
+    }
+
+    /**
+     * Forgets the connected Broker's Subscribers of a deleted topic. Wildcard filters are kept, as
+     * they also cover topics created later.
+     * 
+     * @param topicID the ID of the deleted topic
+     */
+    public void removeInterest(String topicID) {
+        remoteSubscribers.remove(topicID);
+    }
+
+    /**
+     * Returns true if the connected Broker has at least one local Subscriber of the topic. The
+     * other Broker announces each of its subscriptions with 'add' and 'unsub' messages, which are
+     * recorded per topic or wildcard filter here.
+     * 
+     * @param topicID the ID of the topic
+     * @return true if published messages of the topic must be forwarded to the connected Broker
+     */
+    public boolean hasInterest(String topicID) {
+        return remoteSubscribers.containsKey(topicID) || !remotePatterns.isEmpty() && remotePatterns.matches(topicID);
+    }
+
+    /**
+     * Sends a message to the connected Broker. Messages are coalesced into batches, see
+     * {@link #send(byte[])}.
+     * 
+     * @param parts the command name followed by its arguments
+     */
+    public void sendMessage(String... parts) {
+        broker.getMetrics().recordBrokerMessageOut(false);
+        if (binary) {
+            send(FrameCodec.encode(parts));
+        } else {
+            send((String.join(",", parts) + System.lineSeparator()).getBytes(EncodedMessage.TEXT_CHARSET));
+        }
+    }
+
+    /**
+     * Forwards a published message to the connected Broker, reusing the encoding shared by all
+     * Broker connections of the same protocol. On a binary link the message names its topic by
+     * handle, and the first message of each topic is preceded by the 'alias' frame for it. As a
+     * handle is given to another topic once its topic is deleted, the alias is sent again whenever
+     * the handle last announced another topic ID.
+     * 
+     * @param message the published message
+     */
+    public void sendPublish(EncodedMessage message) {
+        broker.getMetrics().recordBrokerMessageOut(true);
+        if (!binary) {
+            send(message.brokerText());
+            return;
+        }
+        int handle = message.getTopicHandle();
+        batchLock.lock();
+        try {
+            if (handle >= 0 && !message.getTopicID().equals(aliasSent(handle))) {
+                if (handle >= aliasesSent.length) {
+                    aliasesSent = Arrays.copyOf(aliasesSent, Math.max(handle + 1, aliasesSent.length * 2));
+                }
+                aliasesSent[handle] = message.getTopicID();
+                broker.getMetrics().recordBrokerMessageOut(false);
+                send(FrameCodec.encode("alias", Integer.toString(handle), message.getTopicID()));
+            }
+            send(message.brokerFrame());
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    private String aliasSent(int handle) {
+        return handle < aliasesSent.length ? aliasesSent[handle] : null;
+    }
+
+    /**
+     * Adds an encoded message to the pending batch. The batch is sent once it reaches the Broker's
+     * batch size, or when the linger time started by its first message has passed. On binary links
+     * a batch of several frames is packed into one 'batch' frame, compressed if it is large enough.
+     * Messages larger than a whole batch are sent on their own, right after the pending batch.
+     * 
+     * @param bytes the encoded message
+     */
+    private void send(byte[] bytes) {
+        batchLock.lock();
+        try {
+            if (broker.getLinkLingerMillis() <= 0 || bytes.length >= broker.getLinkBatchBytes()) {
+                flushBatch();
+                write(bytes);
+                return;
+            }
+            batch.write(bytes, 0, bytes.length);
+            batchedMessages++;
+            if (batch.size() >= broker.getLinkBatchBytes()) {
+                flushBatch();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                broker.scheduleLinkFlush(this::lingerExpired);
+            }
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    private void lingerExpired() {
+        batchLock.lock();
+        try {
+            flushScheduled = false;
+            flushBatch();
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    private void flushBatch() {
+        if (batchedMessages == 0) {
+            return;
+        }
+        byte[] bytes = batch.toByteArray();
+        if (binary && batchedMessages > 1) {
+            Deflater compressor = null;
+            int compressBytes = broker.getLinkCompressBytes();
+            if (compressBytes > 0 && bytes.length >= compressBytes) {
+                if (deflater == null) {
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                }
+                compressor = deflater;
+            }
+            bytes = FrameCodec.encodeBatch(bytes, compressor);
+        }
+        batch.reset();
+        batchedMessages = 0;
+        write(bytes);
+    }
+
+    private void write(byte[] bytes) {
+        broker.getMetrics().recordBrokerWrite(bytes.length);
+        writer.writeBytes(bytes);
     }
 }
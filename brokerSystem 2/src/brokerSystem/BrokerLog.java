@@ -0,0 +1,213 @@
+package brokerSystem;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The BrokerLog class is the Broker's logging facility. Each category of events, such as
+ * "publisher" or "link", has a logger with its own level, so the debug output of one part of the
+ * Broker can be turned on without the others. A disabled level costs a single volatile read, and
+ * the message text is only built by callers that checked the level first.
+ * <p>
+ * Records are not written by the thread that logs them. They are put into a bounded ring buffer
+ * and written to System.out in batches by one background appender thread, so a handler thread
+ * never waits for the console. When the buffer is full, records are dropped and counted, and the
+ * appender reports the number dropped.
+ * <p>
+ * Per-message events, e.g. every command received, are logged at DEBUG through
+ * {@link #sampled(Level)}, which only lets one in every broker.log.sample events through.
+ * <p>
+ * Configured by system properties: broker.log.level sets the level of all categories (default
+ * INFO), broker.log.category, e.g. broker.log.link=DEBUG, the level of one category,
+ * broker.log.sample the sampling of per-message events (default 100, 1 logs every event) and
+ * broker.log.bufferSize the capacity of the ring buffer (default 8192 records).
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class BrokerLog {
+
+    /**
+     * The levels of log records, from the most to the least severe.
+     */
+    public enum Level {
+        OFF, ERROR, WARN, INFO, DEBUG
+    }
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final Map<String, BrokerLog> LOGGERS = new ConcurrentHashMap<>();
+    private static final BlockingQueue<Entry> BUFFER = new ArrayBlockingQueue<>(Integer.getInteger("broker.log.bufferSize", 8192));
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final int SAMPLE = Math.max(1, Integer.getInteger("broker.log.sample", 100));
+
+    static {
+        Thread appender = new Thread(BrokerLog::append, "broker-log-appender");
+        appender.setDaemon(true);
+        appender.start();
+        // write what is still buffered when the Broker exits
+        Runtime.getRuntime().addShutdownHook(new Thread(BrokerLog::flush));
+    }
+
+    private final String category;
+    private volatile Level level;
+    private final AtomicLong events = new AtomicLong();
+
+    private BrokerLog(String category) {
+        this.category = category;
+        String configured = System.getProperty("broker.log." + category, System.getProperty("broker.log.level", "INFO"));
+        this.level = Level.valueOf(configured.toUpperCase());
+    }
+
+    /**
+     * Returns the logger of a category, creating it the first time.
+     *
+     * @param category the category, e.g. "broker", "publisher", "subscriber" or "link"
+     * @return the logger
+     */
+    public static BrokerLog get(String category) {
+        return LOGGERS.computeIfAbsent(category, BrokerLog::new);
+    }
+
+    /**
+     * Sets the level of this category at runtime.
+     *
+     * @param level the most detailed level that is logged
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Returns true if records of the given level are logged.
+     *
+     * @param level the level
+     * @return true if the level is enabled
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) <= 0 && level != Level.OFF;
+    }
+
+    /**
+     * Returns true if a per-message event at the given level should be logged: the level is
+     * enabled and the event is one of the sampled ones. Callers build the message only when this
+     * returns true.
+     *
+     * @param level the level
+     * @return true if the event is logged
+     */
+    public boolean sampled(Level level) {
+        return isEnabled(level) && (SAMPLE == 1 || events.getAndIncrement() % SAMPLE == 0);
+    }
+
+    /**
+     * Logs an ERROR record.
+     *
+     * @param message the message
+     */
+    public void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Logs a WARN record.
+     *
+     * @param message the message
+     */
+    public void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    /**
+     * Logs an INFO record.
+     *
+     * @param message the message
+     */
+    public void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Logs a DEBUG record.
+     *
+     * @param message the message
+     */
+    public void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Logs a record if its level is enabled, without waiting: when the ring buffer is full the
+     * record is dropped.
+     *
+     * @param level   the level
+     * @param message the message
+     */
+    public void log(Level level, String message) {
+        if (isEnabled(level) && !BUFFER.offer(new Entry(System.currentTimeMillis(), level, category, message))) {
+            DROPPED.increment();
+        }
+    }
+
+    private static void append() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(BUFFER.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            BUFFER.drainTo(batch);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private static synchronized void flush() {
+        List<Entry> batch = new ArrayList<>();
+        BUFFER.drainTo(batch);
+        write(batch);
+    }
+
+    private static synchronized void write(List<Entry> batch) {
+        StringBuilder text = new StringBuilder(batch.size() * 96);
+        long dropped = DROPPED.sumThenReset();
+        if (dropped > 0) {
+            text.append(TIME_FORMAT.format(Instant.now())).append(" WARN  [log] ")
+                    .append(dropped).append(" log records dropped, the log buffer was full").append(System.lineSeparator());
+        }
+        for (Entry entry : batch) {
+            text.append(TIME_FORMAT.format(Instant.ofEpochMilli(entry.millis))).append(' ')
+                    .append(String.format("%-5s", entry.level)).append(" [").append(entry.category).append("] ")
+                    .append(entry.message).append(System.lineSeparator());
+        }
+        System.out.print(text);
+        System.out.flush();
+    }
+
+    /**
+     * One buffered log record.
+     */
+    private static class Entry {
+        private final long millis;
+        private final Level level;
+        private final String category;
+        private final String message;
+
+        Entry(long millis, Level level, String category, String message) {
+            this.millis = millis;
+            this.level = level;
+            this.category = category;
+            this.message = message;
+        }
+    }
+}
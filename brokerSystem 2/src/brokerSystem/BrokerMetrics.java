@@ -0,0 +1,209 @@
+package brokerSystem;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * The BrokerMetrics class collects the counters and histograms of one Broker: messages in and
+ * out, the fan-out of every publish, the time a message waits in a Subscriber's outbound queue
+ * before it is written, and the traffic to and from other Brokers. Everything is recorded into
+ * {@link LongAdder}s and {@link Histogram}s, so the handler, dispatcher and writer threads record
+ * without contending on a shared counter. The messages of each topic are counted on the
+ * {@link Topic} itself.
+ * <p>
+ * {@link #toJson(Broker)} renders a snapshot for the 'stats' command and the HTTP endpoint. It
+ * lists the busiest topics and the Subscribers with the largest backlog, at most
+ * {@value #TOP_ENTRIES} of each, so the snapshot stays small with any number of topics.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class BrokerMetrics {
+    public static final int TOP_ENTRIES = 100;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesWritten = new LongAdder();
+    private final Histogram fanOut = new Histogram();
+    private final Histogram writeLatency = new Histogram();
+    private final LongAdder brokerMessagesIn = new LongAdder();
+    private final LongAdder brokerPublishesIn = new LongAdder();
+    private final LongAdder brokerMessagesOut = new LongAdder();
+    private final LongAdder brokerPublishesOut = new LongAdder();
+    private final LongAdder brokerWrites = new LongAdder();
+    private final LongAdder brokerBytesOut = new LongAdder();
+
+    /**
+     * Records a message published on this Broker or forwarded to it, and the number of local
+     * Subscribers it is queued for.
+     *
+     * @param topic      the topic of the message, or null if it is not known
+     * @param recipients the number of Subscribers
+     */
+    public void recordPublish(Topic topic, int recipients) {
+        messagesIn.increment();
+        fanOut.record(recipients);
+        if (topic != null) {
+            topic.recordPublish(recipients);
+        }
+    }
+
+    /**
+     * Records a message written to a Subscriber.
+     *
+     * @param queuedNanos the {@link System#nanoTime()} the message was queued at, or 0 if unknown
+     */
+    public void recordWrite(long queuedNanos) {
+        messagesWritten.increment();
+        if (queuedNanos != 0) {
+            writeLatency.record(System.nanoTime() - queuedNanos);
+        }
+    }
+
+    /**
+     * Records a message received from another Broker.
+     *
+     * @param publish true if it is a published message
+     */
+    public void recordBrokerMessageIn(boolean publish) {
+        brokerMessagesIn.increment();
+        if (publish) {
+            brokerPublishesIn.increment();
+        }
+    }
+
+    /**
+     * Records a message queued for another Broker.
+     *
+     * @param publish true if it is a published message
+     */
+    public void recordBrokerMessageOut(boolean publish) {
+        brokerMessagesOut.increment();
+        if (publish) {
+            brokerPublishesOut.increment();
+        }
+    }
+
+    /**
+     * Records a write to another Broker, a single message or a whole batch.
+     *
+     * @param bytes the number of bytes written
+     */
+    public void recordBrokerWrite(int bytes) {
+        brokerWrites.increment();
+        brokerBytesOut.add(bytes);
+    }
+
+    /**
+     * Returns the number of messages published on this Broker or forwarded to it.
+     *
+     * @return the messages in
+     */
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    /**
+     * Returns the number of messages written to Subscribers.
+     *
+     * @return the messages out
+     */
+    public long getMessagesOut() {
+        return messagesWritten.sum();
+    }
+
+    /**
+     * Renders a snapshot of the metrics as a JSON object.
+     *
+     * @param broker the Broker whose topics, queues and connections are included
+     * @return the JSON text, on one line
+     */
+    public String toJson(Broker broker) {
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\"uptimeMillis\":").append(System.currentTimeMillis() - startMillis);
+        json.append(",\"messagesIn\":").append(messagesIn.sum());
+        json.append(",\"messagesOut\":").append(messagesWritten.sum());
+        json.append(",\"dropped\":").append(broker.getOutboundDrops());
+        json.append(",\"outboundBacklog\":").append(broker.getOutboundDepth());
+        Dispatcher dispatcher = broker.getDispatcher();
+        json.append(",\"dispatcherBacklog\":").append(dispatcher == null ? 0 : dispatcher.depth());
+        json.append(",\"fanOut\":");
+        fanOut.appendJson(json);
+        json.append(",\"enqueueToWriteNanos\":");
+        writeLatency.appendJson(json);
+        json.append(",\"brokerLinks\":{\"connections\":").append(broker.getBrokerConnectionCount());
+        json.append(",\"messagesIn\":").append(brokerMessagesIn.sum());
+        json.append(",\"publishesIn\":").append(brokerPublishesIn.sum());
+        json.append(",\"messagesOut\":").append(brokerMessagesOut.sum());
+        json.append(",\"publishesOut\":").append(brokerPublishesOut.sum());
+        json.append(",\"writesOut\":").append(brokerWrites.sum());
+        json.append(",\"bytesOut\":").append(brokerBytesOut.sum()).append('}');
+
+        json.append(",\"topicCount\":").append(broker.getTopicCount());
+        json.append(",\"topics\":[");
+        List<Topic> topics = top(broker.getTopics(), Topic::getMessagesIn);
+        for (int i = 0; i < topics.size(); i++) {
+            Topic topic = topics.get(i);
+            json.append(i == 0 ? "{" : ",{").append("\"id\":\"").append(escape(topic.getTopicID()))
+                    .append("\",\"subscribers\":").append(topic.getNumSubscribe())
+                    .append(",\"in\":").append(topic.getMessagesIn())
+                    .append(",\"out\":").append(topic.getMessagesOut()).append('}');
+        }
+        json.append("],\"subscriberCount\":").append(broker.getSubscribers().size());
+        json.append(",\"subscribers\":[");
+        List<SubscriberHandler> subscribers = top(broker.getSubscribers(), subscriber -> subscriber.getOutboundQueue().depth());
+        for (int i = 0; i < subscribers.size(); i++) {
+            SubscriberHandler subscriber = subscribers.get(i);
+            String name = subscriber.getName();
+            json.append(i == 0 ? "{" : ",{").append("\"name\":")
+                    .append(name == null ? "null" : "\"" + escape(name) + "\"")
+                    .append(",\"backlog\":").append(subscriber.getOutboundQueue().depth())
+                    .append(",\"dropped\":").append(subscriber.getOutboundQueue().dropped()).append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Returns the entries with the largest keys, largest first. The keys are read once, as queue
+     * depths and counters keep changing while the entries are sorted.
+     */
+    private static <T> List<T> top(Collection<T> items, ToLongFunction<T> key) {
+        List<Map.Entry<T, Long>> largest = new ArrayList<>();
+        Comparator<Map.Entry<T, Long>> order = Map.Entry.<T, Long>comparingByValue().reversed();
+        for (T item : items) {
+            largest.add(new AbstractMap.SimpleEntry<>(item, key.applyAsLong(item)));
+            if (largest.size() > 2 * TOP_ENTRIES) {
+                largest.sort(order);
+                largest.subList(TOP_ENTRIES, largest.size()).clear();
+            }
+        }
+        largest.sort(order);
+        List<T> top = new ArrayList<>();
+        for (int i = 0; i < largest.size() && i < TOP_ENTRIES; i++) {
+            top.add(largest.get(i).getKey());
+        }
+        return top;
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
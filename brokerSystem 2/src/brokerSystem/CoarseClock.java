@@ -0,0 +1,45 @@
+package brokerSystem;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * The CoarseClock class provides the current time formatted for published messages. Messages only
+ * show whole seconds, so the formatted text is cached and rebuilt at most once per second instead
+ * of once per message.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class CoarseClock {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("dd/MM HH:mm:ss");
+    private static volatile Tick tick = new Tick(-1, "");
+
+    /**
+     * Returns the current time formatted as "dd/MM HH:mm:ss".
+     *
+     * @return the formatted current time
+     */
+    public static String now() {
+        long second = System.currentTimeMillis() / 1000;
+        Tick current = tick;
+        if (current.second != second) {
+            current = new Tick(second, LocalDateTime.now().format(FORMATTER));
+            tick = current;
+        }
+        return current.text;
+    }
+
+    /**
+     * A second and its formatted text, replaced as one immutable pair.
+     */
+    private static class Tick {
+        private final long second;
+        private final String text;
+
+        Tick(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
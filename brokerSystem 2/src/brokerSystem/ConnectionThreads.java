@@ -0,0 +1,40 @@
+package brokerSystem;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The ConnectionThreads class provides the thread factories used to run the Broker's accept loop
+ * and connection handlers, either as platform threads or as virtual threads.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class ConnectionThreads {
+
+    /**
+     * Returns a factory creating one platform thread per task.
+     *
+     * @return the platform thread factory
+     */
+    public static ThreadFactory platform() {
+        return Thread::new;
+    }
+
+    /**
+     * Returns a factory creating virtual threads. The lookup is reflective so the Broker still
+     * compiles and runs on releases without virtual threads.
+     *
+     * @return the virtual thread factory
+     * @throws UnsupportedOperationException if the running Java release has no virtual threads
+     */
+    public static ThreadFactory virtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+        }
+    }
+}
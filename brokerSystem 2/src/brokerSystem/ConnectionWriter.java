@@ -0,0 +1,96 @@
+package brokerSystem;
+
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ConnectionWriter class is the base of the writers used for connection output. Text written
+ * through it, for example by a PrintWriter used for replies, is encoded by the subclass for its
+ * protocol, while bytes that are already encoded, such as a published message shared by all
+ * Subscribers, can be written directly with {@link #writeBytes(byte[])}.
+ * <p>
+ * Writes to the stream are made under a ReentrantLock rather than a monitor, so a virtual thread
+ * blocked on the socket unmounts instead of pinning its carrier thread. A PrintWriter on top still
+ * holds its own monitor while it writes; the message delivery path uses {@link #writeBytes(byte[])}
+ * directly and does not go through it.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public abstract class ConnectionWriter extends Writer {
+    protected OutputStream out;
+    protected StringBuilder text = new StringBuilder();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private boolean trouble;
+
+    /**
+     * Constructs a ConnectionWriter writing to the given stream.
+     *
+     * @param out the stream of the connection
+     */
+    protected ConnectionWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes already encoded bytes, after any text written before them. The array is handed to the
+     * stream as is and must not be modified afterwards. Like PrintWriter, errors are not thrown but
+     * can be checked with {@link #checkError()}.
+     *
+     * @param bytes the encoded bytes
+     */
+    public void writeBytes(byte[] bytes) {
+        writeLock.lock();
+        try {
+            writeText();
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            trouble = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if writing bytes has failed.
+     *
+     * @return true if an error occurred
+     */
+    public boolean checkError() {
+        return trouble;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        writeLock.lock();
+        try {
+            text.append(chars, offset, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            writeText();
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Encodes the buffered text and writes it to the stream. Called with the write lock held.
+     *
+     * @throws IOException if the stream cannot be written
+     */
+    protected abstract void writeText() throws IOException;
+}
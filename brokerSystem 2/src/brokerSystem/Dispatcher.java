@@ -0,0 +1,172 @@
+package brokerSystem;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * The Dispatcher class fans published messages out to Subscribers on a fixed set of shard
+ * threads instead of the thread that received the message. Every topic is assigned to one shard
+ * by the hash of its ID, and each shard runs its tasks one after another, so the messages of a
+ * topic are delivered in the order they were published while different topics are delivered in
+ * parallel on all shards.
+ * <p>
+ * Each shard has a {@link BoundedQueue}. When it is full, the publishing thread waits, or an event
+ * loop stops reading from the publishing connection, so a publisher cannot run ahead of delivery
+ * without limit. A task that blocks, e.g. on a full outbound queue with the BLOCK policy, holds up
+ * the other topics of its shard.
+ * <p>
+ * A message with very many recipients can be split into {@link ForkJoinPool} subtasks. The shard
+ * waits for all of them, so the next message of the topic still starts after every recipient of
+ * the previous one got it.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class Dispatcher {
+    private Shard[] shards;
+    private int splitThreshold;
+    private ForkJoinPool splitPool;
+
+    /**
+     * Constructs a Dispatcher and starts its shard threads.
+     *
+     * @param threads        the number of shards
+     * @param queueCapacity  the maximum number of tasks waiting in one shard
+     * @param splitThreshold the number of recipients above which a message is delivered by
+     *                       fork-join subtasks, or 0 to always deliver on the shard thread
+     */
+    public Dispatcher(int threads, int queueCapacity, int splitThreshold) {
+        this.shards = new Shard[threads];
+        this.splitThreshold = splitThreshold;
+        if (splitThreshold > 0) {
+            // a pool of its own, as deliveries may block on a full outbound queue
+            splitPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new Shard(queueCapacity);
+            Thread thread = new Thread(shards[i], "dispatcher-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Runs a task on the shard of a topic, after the tasks queued for the topic before it. Waits
+     * while the shard's queue is full, see {@link BoundedQueue#put(Object)}.
+     *
+     * @param topicID the ID of the topic
+     * @param task    the task
+     */
+    public void execute(String topicID, Runnable task) {
+        int hash = topicID.hashCode();
+        hash ^= hash >>> 16;
+        Shard shard = shards[Math.floorMod(hash, shards.length)];
+        try {
+            shard.tasks.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Calls the action for every recipient, splitting the work into fork-join subtasks when there
+     * are more recipients than the split threshold. Returns once every call has finished.
+     *
+     * @param recipients the recipients
+     * @param action     delivers the message to one recipient
+     * @param <T>        the type of the recipients
+     */
+    public <T> void fanOut(List<T> recipients, Consumer<T> action) {
+        if (splitPool == null || recipients.size() <= splitThreshold) {
+            for (T recipient : recipients) {
+                action.accept(recipient);
+            }
+            return;
+        }
+        splitPool.invoke(new FanOut<>(recipients, action, splitThreshold));
+    }
+
+    /**
+     * Returns true if large fan-outs are split into fork-join subtasks.
+     *
+     * @param recipients the number of recipients of a message
+     * @return true if {@link #fanOut(List, Consumer)} would split them
+     */
+    public boolean splits(int recipients) {
+        return splitPool != null && recipients > splitThreshold;
+    }
+
+    /**
+     * Returns the number of tasks waiting in all shards.
+     *
+     * @return the total queue depth
+     */
+    public int depth() {
+        int depth = 0;
+        for (Shard shard : shards) {
+            depth += shard.tasks.size();
+        }
+        return depth;
+    }
+
+    /**
+     * One shard: a queue of tasks run in order by a single thread.
+     */
+    private static class Shard implements Runnable {
+        private final BoundedQueue<Runnable> tasks;
+
+        Shard(int capacity) {
+            this.tasks = new BoundedQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = tasks.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // one failed delivery must not stop the other topics of the shard
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers to a range of recipients, halving the range until it is at most the threshold.
+     */
+    private static class FanOut<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<T> recipients;
+        private final Consumer<T> action;
+        private final int threshold;
+
+        FanOut(List<T> recipients, Consumer<T> action, int threshold) {
+            this.recipients = recipients;
+            this.action = action;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (recipients.size() <= threshold) {
+                for (T recipient : recipients) {
+                    action.accept(recipient);
+                }
+                return;
+            }
+            int middle = recipients.size() / 2;
+            invokeAll(new FanOut<>(recipients.subList(0, middle), action, threshold),
+                    new FanOut<>(recipients.subList(middle, recipients.size()), action, threshold));
+        }
+    }
+}
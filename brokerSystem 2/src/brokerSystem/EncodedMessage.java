@@ -0,0 +1,211 @@
+package brokerSystem;
+
+import java.nio.charset.Charset;
+import java.util.function.LongConsumer;
+
+/**
+ * The EncodedMessage class holds one published message together with its wire encodings. Each
+ * encoding is built the first time a connection of that kind needs it, and the same byte array is
+ * then written to every Subscriber and Broker using that protocol. The arrays are shared and must
+ * not be modified. A holder that accounts for the memory of the message, such as
+ * {@link RecentMessages}, is told the size of every encoding built after it took the message.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class EncodedMessage {
+    public static final Charset TEXT_CHARSET = Charset.defaultCharset();
+    private static final String PROMPT = "Please select command: list, sub, current, unsub.";
+    private static final String NEWLINE = System.lineSeparator();
+
+    private String topicID;
+    private int topicHandle = -1;
+    private String content;
+    private long offset = -1;
+    private long queuedNanos;
+    private volatile byte[] subscriberText;
+    private volatile byte[] subscriberFrames;
+    private volatile byte[] brokerText;
+    private volatile byte[] brokerFrame;
+    private volatile LongConsumer encodingListener;
+
+    /**
+     * Constructs an EncodedMessage for a published message.
+     *
+     * @param topicID the ID of the topic the message is published to
+     * @param content the formatted content of the message
+     */
+    public EncodedMessage(String topicID, String content) {
+        this.topicID = topicID;
+        this.content = content;
+    }
+
+    /**
+     * Returns the message and the command prompt as text lines for a text Subscriber.
+     *
+     * @return the shared encoded bytes
+     */
+    public byte[] subscriberText() {
+        byte[] bytes = subscriberText;
+        if (bytes == null) {
+            bytes = (content + NEWLINE + PROMPT + NEWLINE).getBytes(TEXT_CHARSET);
+            subscriberText = bytes;
+            encoded(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the 'message' frame followed by the prompt 'reply' frame for a binary Subscriber.
+     *
+     * @return the shared encoded bytes
+     */
+    public byte[] subscriberFrames() {
+        byte[] bytes = subscriberFrames;
+        if (bytes == null) {
+            byte[] message = FrameCodec.encode("message", topicID, content);
+            byte[] prompt = FrameCodec.encode("reply", PROMPT);
+            bytes = new byte[message.length + prompt.length];
+            System.arraycopy(message, 0, bytes, 0, message.length);
+            System.arraycopy(prompt, 0, bytes, message.length, prompt.length);
+            subscriberFrames = bytes;
+            encoded(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the 'publish' line forwarded over a text Broker link.
+     *
+     * @return the shared encoded bytes
+     */
+    public byte[] brokerText() {
+        byte[] bytes = brokerText;
+        if (bytes == null) {
+            bytes = ("publish," + topicID + "," + content + NEWLINE).getBytes(TEXT_CHARSET);
+            brokerText = bytes;
+            encoded(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the frame forwarded over a binary Broker link: an 'hpublish' frame carrying the
+     * topic handle if the topic has one, otherwise a 'publish' frame carrying the topic ID.
+     *
+     * @return the shared encoded bytes
+     */
+    public byte[] brokerFrame() {
+        byte[] bytes = brokerFrame;
+        if (bytes == null) {
+            bytes = topicHandle >= 0 ? FrameCodec.encodePublish(topicHandle, content) : FrameCodec.encode("publish", topicID, content);
+            brokerFrame = bytes;
+            encoded(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the total size of the encodings built so far.
+     *
+     * @return the size in bytes
+     */
+    public long getEncodedBytes() {
+        long size = 0;
+        for (byte[] bytes : new byte[][] {subscriberText, subscriberFrames, brokerText, brokerFrame}) {
+            size += bytes == null ? 0 : bytes.length;
+        }
+        return size;
+    }
+
+    /**
+     * Sets the listener told the size of each encoding built from now on.
+     *
+     * @param encodingListener the listener, or null for none
+     */
+    public void setEncodingListener(LongConsumer encodingListener) {
+        this.encodingListener = encodingListener;
+    }
+
+    private void encoded(byte[] bytes) {
+        LongConsumer listener = encodingListener;
+        if (listener != null) {
+            listener.accept(bytes.length);
+        }
+    }
+
+    /**
+     * Returns the ID of the topic the message is published to.
+     *
+     * @return the topic ID
+     */
+    public String getTopicID() {
+        return topicID;
+    }
+
+    /**
+     * Returns the handle of the topic, see {@link Handles}.
+     *
+     * @return the topic handle, or -1 if the topic is not known
+     */
+    public int getTopicHandle() {
+        return topicHandle;
+    }
+
+    /**
+     * Sets the handle of the topic. Must be called before the message is handed to any Broker
+     * connection.
+     *
+     * @param topicHandle the topic handle
+     */
+    public void setTopicHandle(int topicHandle) {
+        this.topicHandle = topicHandle;
+    }
+
+    /**
+     * Returns the offset of the message in the Broker's message log.
+     *
+     * @return the offset, or -1 if the message was not logged
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Sets the offset the message got in the Broker's message log. Must be called before the
+     * message is handed to any Subscriber.
+     *
+     * @param offset the offset of the message
+     */
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * Returns when the message was queued for the Subscribers, for {@link BrokerMetrics}.
+     *
+     * @return the {@link System#nanoTime()} of queueing, or 0 if it was not queued
+     */
+    public long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    /**
+     * Sets when the message was queued for the Subscribers. Must be called before the message is
+     * handed to any Subscriber.
+     *
+     * @param queuedNanos the {@link System#nanoTime()} of queueing
+     */
+    public void setQueuedNanos(long queuedNanos) {
+        this.queuedNanos = queuedNanos;
+    }
+
+    /**
+     * Returns the formatted content of the message.
+     *
+     * @return the content
+     */
+    public String getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,33 @@
+package brokerSystem;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The FilterGroup class holds the local Subscribers of a topic that subscribed with the same
+ * {@link MessageFilter}, so the filter is evaluated once per published message for all of them.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class FilterGroup {
+    private MessageFilter filter;
+    private Set<SubscriberHandler> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs an empty FilterGroup.
+     *
+     * @param filter the filter shared by the group
+     */
+    public FilterGroup(MessageFilter filter) {
+        this.filter = filter;
+    }
+
+    public MessageFilter getFilter() {
+        return filter;
+    }
+
+    public Set<SubscriberHandler> getSubscribers() {
+        return subscribers;
+    }
+}
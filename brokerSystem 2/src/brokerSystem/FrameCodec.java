@@ -0,0 +1,444 @@
+package brokerSystem;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The FrameCodec class implements the binary wire protocol shared by Publishers, Subscribers and
+ * Brokers. A binary connection starts with a four byte preface ('P', 'S', 'B', version) instead of
+ * the ObjectOutputStream handshake of text connections, followed by a 'hello' frame carrying the
+ * client type and name. Every frame after that is laid out as:
+ *
+ * <pre>
+ * int  length of the rest of the frame
+ * byte opcode
+ * byte number of fields
+ * for each field: int length, UTF-8 bytes
+ * </pre>
+ *
+ * Frames are handled as string arrays whose first element is the command name, the same shape the
+ * text protocol produces with split(","), so handlers can serve both protocols. Unlike text lines,
+ * fields may contain commas and newlines.
+ * <p>
+ * Brokers may pack several frames into one 'batch' frame, whose body is laid out as:
+ *
+ * <pre>
+ * byte opcode of 'batch'
+ * byte flags, 1 if the frames are compressed with Deflater
+ * int  total size of the packed frames before compression
+ * the packed frames, each with its length prefix
+ * </pre>
+ *
+ * Between Brokers, a published message may name its topic by the sending Broker's int handle,
+ * see {@link Handles}. The sender first announces the handle with an 'alias' frame carrying the
+ * handle and the topic ID, and then sends 'hpublish' frames whose first field is the handle as a
+ * four byte int instead of the topic ID. A decoded 'hpublish' frame is passed to a
+ * {@link FrameHandler} with its handle as an int, so the handle is never formatted as a string.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class FrameCodec {
+    public static final byte VERSION = 1;
+    public static final byte[] PREFACE = {'P', 'S', 'B', VERSION};
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    public static final byte BATCH = 14;
+    public static final byte HPUBLISH = 16;
+    private static final byte COMPRESSED = 1;
+
+    private static final String[] COMMANDS = {
+        null, "hello", "create", "delete", "show", "publish", "sub", "unsub",
+        "list", "current", "disconnect", "add", "reply", "message", "batch", "alias", "hpublish",
+        "deleteall", "unsuball", "stats"
+    };
+
+    /**
+     * Receives the frames decoded from a connection that may carry 'hpublish' frames.
+     */
+    public interface FrameHandler {
+        /**
+         * Handles a decoded frame other than 'hpublish'.
+         *
+         * @param parts the command name followed by the fields of the frame
+         */
+        void handleFrame(String[] parts);
+
+        /**
+         * Handles a decoded 'hpublish' frame.
+         *
+         * @param topicHandle the sending Broker's handle of the topic
+         * @param content     the published content
+         */
+        void handlePublish(int topicHandle, String content);
+    }
+
+    /**
+     * Returns the opcode of a command name.
+     *
+     * @param command the command name
+     * @return the opcode of the command
+     * @throws IllegalArgumentException if the command has no opcode
+     */
+    public static byte opcode(String command) {
+        for (int i = 1; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown command: " + command);
+    }
+
+    /**
+     * Returns the command name of an opcode.
+     *
+     * @param opcode the opcode
+     * @return the command name
+     * @throws IOException if the opcode is unknown
+     */
+    public static String command(int opcode) throws IOException {
+        if (opcode < 1 || opcode >= COMMANDS.length) {
+            throw new IOException("Unknown opcode: " + opcode);
+        }
+        return COMMANDS[opcode];
+    }
+
+    /**
+     * Encodes a frame, including its length prefix.
+     *
+     * @param parts the command name followed by the fields of the frame
+     * @return the encoded frame
+     */
+    public static byte[] encode(String... parts) {
+        byte[][] fields = new byte[parts.length - 1][];
+        int length = 2;
+        for (int i = 1; i < parts.length; i++) {
+            fields[i - 1] = parts[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + fields[i - 1].length;
+        }
+        byte[] frame = new byte[4 + length];
+        int position = putInt(frame, 0, length);
+        frame[position++] = opcode(parts[0]);
+        frame[position++] = (byte) fields.length;
+        for (byte[] field : fields) {
+            position = putInt(frame, position, field.length);
+            System.arraycopy(field, 0, frame, position, field.length);
+            position += field.length;
+        }
+        return frame;
+    }
+
+    /**
+     * Encodes an 'hpublish' frame, including its length prefix.
+     *
+     * @param topicHandle the sending Broker's handle of the topic, announced by an 'alias' frame
+     * @param content     the content of the message
+     * @return the encoded frame
+     */
+    public static byte[] encodePublish(int topicHandle, String content) {
+        byte[] field = content.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + 8 + 4 + field.length;
+        byte[] frame = new byte[4 + length];
+        int position = putInt(frame, 0, length);
+        frame[position++] = HPUBLISH;
+        frame[position++] = 2;
+        position = putInt(frame, position, 4);
+        position = putInt(frame, position, topicHandle);
+        position = putInt(frame, position, field.length);
+        System.arraycopy(field, 0, frame, position, field.length);
+        return frame;
+    }
+
+    /**
+     * Writes the connection preface followed by the 'hello' frame.
+     *
+     * @param out        the stream of the new connection
+     * @param clientType PUBLISHER, SUBSCRIBER or BROKER
+     * @param name       the client name, or null for a Broker
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeHandshake(OutputStream out, String clientType, String name) throws IOException {
+        byte[] hello = name == null ? encode("hello", clientType) : encode("hello", clientType, name);
+        byte[] handshake = new byte[PREFACE.length + hello.length];
+        System.arraycopy(PREFACE, 0, handshake, 0, PREFACE.length);
+        System.arraycopy(hello, 0, handshake, PREFACE.length, hello.length);
+        out.write(handshake);
+        out.flush();
+    }
+
+    /**
+     * Reads and checks the connection preface.
+     *
+     * @param in the stream of the new connection
+     * @throws IOException if the preface is missing or of another version
+     */
+    public static void readPreface(DataInputStream in) throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        in.readFully(preface);
+        checkPreface(preface, 0);
+    }
+
+    /**
+     * Checks a connection preface held in a buffer.
+     *
+     * @param buffer the buffer holding the preface
+     * @param offset the position of the preface in the buffer
+     * @throws IOException if the preface is missing or of another version
+     */
+    public static void checkPreface(byte[] buffer, int offset) throws IOException {
+        for (int i = 0; i < PREFACE.length - 1; i++) {
+            if (buffer[offset + i] != PREFACE[i]) {
+                throw new IOException("Invalid binary protocol preface");
+            }
+        }
+        if (buffer[offset + PREFACE.length - 1] != VERSION) {
+            throw new IOException("Unsupported binary protocol version " + buffer[offset + PREFACE.length - 1]);
+        }
+    }
+
+    /**
+     * Writes one frame to a stream.
+     *
+     * @param out   the stream to write to
+     * @param parts the command name followed by the fields of the frame
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeFrame(OutputStream out, String... parts) throws IOException {
+        out.write(encode(parts));
+        out.flush();
+    }
+
+    /**
+     * Reads one frame from a stream.
+     *
+     * @param in the stream to read from
+     * @return the command name followed by the fields of the frame
+     * @throws EOFException if the stream ends before a frame starts
+     * @throws IOException  if the frame is malformed or the stream cannot be read
+     */
+    public static String[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decode(frame, 0, length);
+    }
+
+    /**
+     * Reads one frame from a stream, unpacking it if it is a 'batch' frame.
+     *
+     * @param in      the stream to read from
+     * @param handler receives the frames read, in the order they were sent
+     * @throws EOFException if the stream ends before a frame starts
+     * @throws IOException  if a frame is malformed or the stream cannot be read
+     */
+    public static void readFrames(DataInputStream in, FrameHandler handler) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        if (isBatch(frame, 0)) {
+            unpackBatch(frame, 0, length, handler);
+        } else {
+            decode(frame, 0, length, handler);
+        }
+    }
+
+    /**
+     * Packs complete frames into one 'batch' frame.
+     *
+     * @param frames   the frames to pack, each with its length prefix
+     * @param deflater the Deflater compressing the frames, or null to send them uncompressed;
+     *                 the frames are also sent uncompressed if compressing does not make them smaller
+     * @return the encoded 'batch' frame
+     */
+    public static byte[] encodeBatch(byte[] frames, Deflater deflater) {
+        byte[] payload = frames;
+        int payloadLength = frames.length;
+        byte flags = 0;
+        if (deflater != null) {
+            byte[] compressed = new byte[frames.length];
+            deflater.reset();
+            deflater.setInput(frames);
+            deflater.finish();
+            int compressedLength = deflater.deflate(compressed);
+            if (deflater.finished()) {
+                payload = compressed;
+                payloadLength = compressedLength;
+                flags = COMPRESSED;
+            }
+        }
+        int length = 6 + payloadLength;
+        byte[] frame = new byte[4 + length];
+        int position = putInt(frame, 0, length);
+        frame[position++] = BATCH;
+        frame[position++] = flags;
+        position = putInt(frame, position, frames.length);
+        System.arraycopy(payload, 0, frame, position, payloadLength);
+        return frame;
+    }
+
+    /**
+     * Returns true if the frame body at the given position is a 'batch' frame.
+     *
+     * @param buffer the buffer holding the frame body
+     * @param offset the position where the body starts
+     * @return true if the frame must be unpacked with {@link #unpackBatch(byte[], int, int, FrameHandler)}
+     */
+    public static boolean isBatch(byte[] buffer, int offset) {
+        return buffer[offset] == BATCH;
+    }
+
+    /**
+     * Unpacks the body of a 'batch' frame into the frames it carries.
+     *
+     * @param buffer  the buffer holding the frame body
+     * @param offset  the position where the body starts
+     * @param length  the length of the body
+     * @param handler receives the packed frames, in the order they were sent
+     * @throws IOException if the batch or one of its frames is malformed
+     */
+    public static void unpackBatch(byte[] buffer, int offset, int length, FrameHandler handler) throws IOException {
+        if (length < 6) {
+            throw new IOException("Truncated batch");
+        }
+        int rawLength = getInt(buffer, offset + 2);
+        byte[] frames = buffer;
+        int position = offset + 6;
+        if ((buffer[offset + 1] & COMPRESSED) != 0) {
+            if (rawLength < 0 || rawLength > 2 * MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid batch length " + rawLength);
+            }
+            frames = new byte[rawLength];
+            position = 0;
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(buffer, offset + 6, length - 6);
+                if (inflater.inflate(frames) != rawLength || !inflater.finished()) {
+                    throw new IOException("Corrupt batch");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt batch", e);
+            } finally {
+                inflater.end();
+            }
+        } else if (rawLength != length - 6) {
+            throw new IOException("Truncated batch");
+        }
+        int end = position + rawLength;
+        while (position < end) {
+            int frameSize = frameSize(frames, position, end - position);
+            if (frameSize < 0) {
+                throw new IOException("Truncated batch");
+            }
+            decode(frames, position + 4, frameSize - 4, handler);
+            position += frameSize;
+        }
+    }
+
+    /**
+     * Returns the total size of the frame starting at the given position, if it is complete.
+     *
+     * @param buffer    the buffer holding received bytes
+     * @param offset    the position where the frame starts
+     * @param available the number of received bytes from that position
+     * @return the size of the frame including its length prefix, or -1 if more bytes are needed
+     * @throws IOException if the length prefix is invalid
+     */
+    public static int frameSize(byte[] buffer, int offset, int available) throws IOException {
+        if (available < 4) {
+            return -1;
+        }
+        int length = getInt(buffer, offset);
+        checkLength(length);
+        return available < 4 + length ? -1 : 4 + length;
+    }
+
+    /**
+     * Decodes the body of a frame and passes it to a handler, an 'hpublish' frame with its topic
+     * handle as an int.
+     *
+     * @param buffer  the buffer holding the frame body
+     * @param offset  the position where the body starts
+     * @param length  the length of the body
+     * @param handler receives the decoded frame
+     * @throws IOException if the frame is malformed
+     */
+    public static void decode(byte[] buffer, int offset, int length, FrameHandler handler) throws IOException {
+        if (length < 2 || buffer[offset] != HPUBLISH) {
+            handler.handleFrame(decode(buffer, offset, length));
+            return;
+        }
+        int end = offset + length;
+        if ((buffer[offset + 1] & 0xff) != 2 || length < 14 || getInt(buffer, offset + 2) != 4) {
+            throw new IOException("Invalid topic handle");
+        }
+        int topicHandle = getInt(buffer, offset + 6);
+        int contentLength = getInt(buffer, offset + 10);
+        if (contentLength < 0 || offset + 14 + contentLength > end) {
+            throw new IOException("Truncated frame");
+        }
+        handler.handlePublish(topicHandle, new String(buffer, offset + 14, contentLength, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes the body of a frame, i.e. the bytes after its length prefix. An 'hpublish' frame
+     * must be decoded with {@link #decode(byte[], int, int, FrameHandler)} instead.
+     *
+     * @param buffer the buffer holding the frame body
+     * @param offset the position where the body starts
+     * @param length the length of the body
+     * @return the command name followed by the fields of the frame
+     * @throws IOException if the frame is malformed or an 'hpublish' frame
+     */
+    public static String[] decode(byte[] buffer, int offset, int length) throws IOException {
+        if (length < 2) {
+            throw new IOException("Truncated frame");
+        }
+        if (isBatch(buffer, offset)) {
+            throw new IOException("Unexpected batch frame");
+        }
+        if (buffer[offset] == HPUBLISH) {
+            throw new IOException("Unexpected hpublish frame");
+        }
+        int end = offset + length;
+        int position = offset;
+        String[] parts = new String[1 + (buffer[position + 1] & 0xff)];
+        parts[0] = command(buffer[position] & 0xff);
+        position += 2;
+        for (int i = 1; i < parts.length; i++) {
+            if (position + 4 > end) {
+                throw new IOException("Truncated frame");
+            }
+            int fieldLength = getInt(buffer, position);
+            position += 4;
+            if (fieldLength < 0 || position + fieldLength > end) {
+                throw new IOException("Truncated frame");
+            }
+            parts[i] = new String(buffer, position, fieldLength, StandardCharsets.UTF_8);
+            position += fieldLength;
+        }
+        return parts;
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 2 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    private static int putInt(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+        return position + 4;
+    }
+
+    private static int getInt(byte[] buffer, int position) {
+        return ((buffer[position] & 0xff) << 24) | ((buffer[position + 1] & 0xff) << 16)
+                | ((buffer[position + 2] & 0xff) << 8) | (buffer[position + 3] & 0xff);
+    }
+}
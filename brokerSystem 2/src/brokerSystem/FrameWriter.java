@@ -0,0 +1,47 @@
+package brokerSystem;
+
+import java.io.*;
+
+/**
+ * The FrameWriter class is the output side of a binary connection. Text written through it, for
+ * example by a PrintWriter used for replies, is sent as one 'reply' frame per line, while other
+ * frames can be sent directly with {@link #writeFrame(String...)}.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class FrameWriter extends ConnectionWriter {
+
+    /**
+     * Constructs a FrameWriter sending frames to the given stream. Each frame is handed to the
+     * stream in a single write.
+     *
+     * @param out the stream of the binary connection
+     */
+    public FrameWriter(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Sends one frame, after any complete reply lines written before it. Like PrintWriter, errors
+     * are not thrown but can be checked with {@link #checkError()}.
+     *
+     * @param parts the command name followed by the fields of the frame
+     */
+    public void writeFrame(String... parts) {
+        writeBytes(FrameCodec.encode(parts));
+    }
+
+    @Override
+    protected void writeText() throws IOException {
+        int lineStart = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                int end = i > lineStart && text.charAt(i - 1) == '\r' ? i - 1 : i;
+                out.write(FrameCodec.encode("reply", text.substring(lineStart, end)));
+                lineStart = i + 1;
+            }
+        }
+        text.delete(0, lineStart);
+    }
+}
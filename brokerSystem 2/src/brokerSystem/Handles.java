@@ -0,0 +1,113 @@
+package brokerSystem;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Handles class interns names, such as topic IDs or client names, into dense int handles.
+ * A name is hashed once, when it is acquired, and afterwards the handle can be compared with ==,
+ * used as an index into an array or sent as four bytes instead of the name. Handles start at 0.
+ * <p>
+ * Every holder of a handle, such as a topic or a subscription, acquires it and releases it once
+ * it is done. A name that is no longer held is dropped and its handle is given to the next new
+ * name, so deleted topics and disconnected clients do not keep their names and handles forever.
+ * A peer that was told a handle must therefore be told again when the handle names another
+ * string, see {@link BrokerConnection#sendPublish(EncodedMessage)}.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class Handles {
+    private Map<String, Integer> handles = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int[] holders = new int[64];
+    private int[] freeHandles = new int[16];
+    private int freeCount;
+    private int assigned;
+
+    /**
+     * Returns the handle of a name and counts one more holder of it, assigning a free handle if
+     * the name is not held yet.
+     *
+     * @param name the name
+     * @return the handle of the name
+     */
+    public synchronized int acquire(String name) {
+        Integer handle = handles.get(name);
+        if (handle == null) {
+            handle = assign(name);
+            handles.put(name, handle);
+        }
+        holders[handle]++;
+        return handle;
+    }
+
+    /**
+     * Counts one holder less of a handle, dropping its name once no one holds it.
+     *
+     * @param handle the handle, ignored if it is -1
+     */
+    public synchronized void release(int handle) {
+        if (handle < 0 || handle >= assigned || holders[handle] == 0) {
+            return;
+        }
+        if (--holders[handle] == 0) {
+            handles.remove(names[handle]);
+            names[handle] = null;
+            if (freeCount == freeHandles.length) {
+                freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+            }
+            freeHandles[freeCount++] = handle;
+        }
+    }
+
+    /**
+     * Returns the handle of a name without acquiring it.
+     *
+     * @param name the name, may be null
+     * @return the handle, or -1 if the name is not held
+     */
+    public int get(String name) {
+        Integer handle = name == null ? null : handles.get(name);
+        return handle == null ? -1 : handle;
+    }
+
+    /**
+     * Returns the name of a handle.
+     *
+     * @param handle the handle
+     * @return the name, or null if the handle is not held
+     */
+    public String name(int handle) {
+        String[] current = names;
+        return handle >= 0 && handle < current.length ? current[handle] : null;
+    }
+
+    /**
+     * Returns the number of names currently held.
+     *
+     * @return the number of names
+     */
+    public synchronized int size() {
+        return handles.size();
+    }
+
+    private int assign(String name) {
+        String[] current = names;
+        int handle;
+        if (freeCount > 0) {
+            handle = freeHandles[--freeCount];
+        } else {
+            handle = assigned++;
+            if (handle == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+                holders = Arrays.copyOf(holders, current.length);
+            }
+        }
+        current[handle] = name;
+        // republished after the write, so name() sees the new entry once the handle is returned
+        names = current;
+        return handle;
+    }
+}
@@ -0,0 +1,172 @@
+package brokerSystem;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Histogram class records non-negative values, such as latencies in nanoseconds or fan-out
+ * counts, into log-linear buckets, in the manner of HdrHistogram. Values below 256 have a bucket
+ * each; above that, every power of two is split into 128 buckets, so any recorded value is known
+ * to within 1% while the histogram stays a fixed array of a few thousand buckets. Every bucket is
+ * counted by a {@link LongAdder}, created when the bucket records its first value, as are the
+ * total and the sum, so many threads can record into one histogram, even the same value, without
+ * contending on a shared counter.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class Histogram {
+    private static final int SUB_BUCKETS = 128;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + 56 * SUB_BUCKETS;
+
+    private final AtomicReferenceArray<LongAdder> counts = new AtomicReferenceArray<>(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one value. Negative values, e.g. from clocks of different hosts, count as 0.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        bucket(index(value)).increment();
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Adds all values of another histogram to this one.
+     *
+     * @param other the histogram to add
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.count(i);
+            if (count != 0) {
+                bucket(i).add(count);
+            }
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        max.accumulate(other.max.get());
+    }
+
+    /**
+     * Removes all recorded values, e.g. at the end of a warmup.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            LongAdder bucket = counts.get(i);
+            if (bucket != null) {
+                bucket.reset();
+            }
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return the mean, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return the maximum
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below or at which the given percentage of the recorded values fall. As in
+     * HdrHistogram, this is the highest value of the bucket holding that percentile, and never more
+     * than the maximum.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the value, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += count(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Appends the count, mean, usual percentiles and maximum as a JSON object.
+     *
+     * @param json the builder to append to
+     */
+    public void appendJson(StringBuilder json) {
+        json.append("{\"count\":").append(getCount())
+                .append(",\"mean\":").append(Math.round(getMean()))
+                .append(",\"p50\":").append(getValueAtPercentile(50))
+                .append(",\"p90\":").append(getValueAtPercentile(90))
+                .append(",\"p99\":").append(getValueAtPercentile(99))
+                .append(",\"p999\":").append(getValueAtPercentile(99.9))
+                .append(",\"max\":").append(getMax()).append('}');
+    }
+
+    private LongAdder bucket(int index) {
+        LongAdder bucket = counts.get(index);
+        if (bucket == null) {
+            counts.compareAndSet(index, null, new LongAdder());
+            bucket = counts.get(index);
+        }
+        return bucket;
+    }
+
+    private long count(int index) {
+        LongAdder bucket = counts.get(index);
+        return bucket == null ? 0 : bucket.sum();
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        // the shift that leaves the value with 8 significant bits, the top one always set
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 7;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return (mantissa << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,160 @@
+package brokerSystem;
+
+import java.util.Arrays;
+
+/**
+ * The IntCounts class counts occurrences of non-negative int keys, such as client handles, in an
+ * open-addressing table of primitive ints, so counting needs neither boxing nor entry objects.
+ * A key whose count drops to zero is removed. The class is not thread-safe.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class IntCounts {
+    private static final int FREE = -1;
+    private static final int REMOVED = -2;
+
+    private int[] keys;
+    private int[] counts;
+    private int size;
+    private int used;
+
+    /**
+     * Constructs an empty IntCounts.
+     */
+    public IntCounts() {
+        keys = new int[8];
+        counts = new int[8];
+        Arrays.fill(keys, FREE);
+    }
+
+    /**
+     * Adds one to the count of a key.
+     *
+     * @param key the key, at least 0
+     * @return the new count
+     */
+    public int increment(int key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            return ++counts[slot];
+        }
+        if ((used + 1) * 4 > keys.length * 3) {
+            resize(size * 4 > keys.length ? keys.length * 2 : keys.length);
+        }
+        slot = insertSlot(key);
+        if (keys[slot] == FREE) {
+            used++;
+        }
+        keys[slot] = key;
+        counts[slot] = 1;
+        size++;
+        return 1;
+    }
+
+    /**
+     * Subtracts one from the count of a key, removing the key when it reaches zero.
+     *
+     * @param key the key
+     * @return true if the key was counted
+     */
+    public boolean decrement(int key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        if (--counts[slot] == 0) {
+            keys[slot] = REMOVED;
+            size--;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the count of a key.
+     *
+     * @param key the key
+     * @return the count, 0 if the key is not counted
+     */
+    public int get(int key) {
+        int slot = find(key);
+        return slot < 0 ? 0 : counts[slot];
+    }
+
+    /**
+     * Returns the number of keys counted.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns every key as often as it is counted.
+     *
+     * @return the keys in no particular order
+     */
+    public int[] toArray() {
+        int total = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] >= 0) {
+                total += counts[i];
+            }
+        }
+        int[] result = new int[total];
+        int position = 0;
+        for (int i = 0; i < keys.length; i++) {
+            for (int n = keys[i] >= 0 ? counts[i] : 0; n > 0; n--) {
+                result[position++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    private int find(int key) {
+        if (key < 0) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            if (keys[slot] == FREE) {
+                return -1;
+            }
+        }
+    }
+
+    private int insertSlot(int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new int[capacity];
+        counts = new int[capacity];
+        Arrays.fill(keys, FREE);
+        used = size;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] >= 0) {
+                int slot = insertSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        // handles are dense, so spread neighbouring keys over the table
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
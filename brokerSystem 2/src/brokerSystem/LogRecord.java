@@ -0,0 +1,53 @@
+package brokerSystem;
+
+/**
+ * The LogRecord class is one message read back from a {@link TopicLog}.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class LogRecord {
+    private long offset;
+    private long timestamp;
+    private String content;
+
+    /**
+     * Constructs a LogRecord.
+     *
+     * @param offset    the position of the message in its topic log
+     * @param timestamp the time the message was appended, in milliseconds since the epoch
+     * @param content   the formatted content of the message
+     */
+    public LogRecord(long offset, long timestamp, String content) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.content = content;
+    }
+
+    /**
+     * Returns the position of the message in its topic log.
+     *
+     * @return the offset
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the time the message was appended.
+     *
+     * @return the timestamp in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the formatted content of the message.
+     *
+     * @return the content
+     */
+    public String getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,534 @@
+package brokerSystem;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The LogSegment class is one file of a {@link TopicLog}, holding the messages from its base offset
+ * on. While messages are appended, the file is memory-mapped, so appending a message is a copy into
+ * the page cache and never waits for the disk. The mapping starts at {@link #INITIAL_CAPACITY}
+ * bytes and doubles as the segment fills up, and it is only made on the first append: a segment
+ * that is full, idle, or was recovered after a restart holds no mapping, and is read from its file
+ * instead. Each record is laid out as:
+ *
+ * <pre>
+ * int  length of the whole record
+ * int  CRC32 of the content
+ * long offset
+ * long timestamp
+ * the content as UTF-8 bytes
+ * </pre>
+ *
+ * A sparse index maps the offset and timestamp of one record every {@link #INDEX_INTERVAL} bytes
+ * to its position, so reads from an offset or a time start close to it. The index is kept in
+ * memory and written to its file when the segment is flushed. Appends must come from one thread
+ * at a time; reads may run concurrently with them.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class LogSegment {
+    public static final int HEADER_SIZE = 24;
+    public static final int INDEX_INTERVAL = 4096;
+    public static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int READ_WINDOW = 64 * 1024;
+
+    private Path logFile;
+    private Path indexFile;
+    private long baseOffset;
+    private int capacity;
+    private volatile MappedByteBuffer buffer;
+    private ByteBuffer writeBuffer;
+    // two longs per entry: the offset relative to the base offset and the position, then the timestamp
+    private volatile long[] index = new long[32];
+    private volatile int indexEntries;
+    private int flushedEntries;
+    private int lastIndexed;
+    private volatile int size;
+    private volatile long nextOffset;
+    private volatile long lastTimestamp;
+    private long created;
+    private volatile boolean dirty;
+
+    /**
+     * Opens the segment starting at the given offset. The records of an existing segment are
+     * checked, and anything after the last valid record is discarded. The files of a new segment
+     * are only created by its first append.
+     *
+     * @param directory  the directory of the topic log
+     * @param baseOffset the offset of the first record in the segment
+     * @param capacity   the largest size of the segment file in bytes
+     * @throws IOException if the files cannot be read
+     */
+    public LogSegment(Path directory, long baseOffset, int capacity) throws IOException {
+        this.baseOffset = baseOffset;
+        this.capacity = capacity;
+        logFile = directory.resolve(String.format("%020d.log", baseOffset));
+        indexFile = directory.resolve(String.format("%020d.index", baseOffset));
+        created = System.currentTimeMillis();
+        nextOffset = baseOffset;
+        if (Files.exists(logFile)) {
+            recover();
+        }
+    }
+
+    /**
+     * Appends a record at the end of the segment, mapping the file or growing its mapping if
+     * needed.
+     *
+     * @param offset    the offset of the record
+     * @param timestamp the time of the record in milliseconds since the epoch
+     * @param content   the content as UTF-8 bytes
+     * @param crc       the checksum calculator of the appending thread
+     * @return false if the record does not fit into the segment
+     * @throws IOException if the file cannot be mapped
+     */
+    public boolean append(long offset, long timestamp, byte[] content, CRC32 crc) throws IOException {
+        int position = size;
+        int recordLength = HEADER_SIZE + content.length;
+        if (recordLength > capacity - position) {
+            return false;
+        }
+        MappedByteBuffer mapped = map(position + recordLength);
+        crc.reset();
+        crc.update(content, 0, content.length);
+        mapped.putInt(position + 4, (int) crc.getValue());
+        mapped.putLong(position + 8, offset);
+        mapped.putLong(position + 16, timestamp);
+        writeBuffer.position(position + HEADER_SIZE);
+        writeBuffer.put(content);
+        // the length goes last, so a record cut short by a crash is never taken as complete
+        mapped.putInt(position, recordLength);
+        if (position == 0) {
+            created = timestamp;
+        }
+        addIndexEntry(position, offset, timestamp);
+        lastTimestamp = timestamp;
+        nextOffset = offset + 1;
+        dirty = true;
+        size = position + recordLength;
+        return true;
+    }
+
+    /**
+     * Reads records from one offset up to another, until the end of the segment or until at least
+     * maxBytes bytes of records were read.
+     *
+     * @param fromOffset the offset of the first record to read
+     * @param toOffset   the offset to stop before
+     * @param maxBytes   the number of bytes after which reading stops
+     * @param records    the list the records are added to
+     * @return the number of bytes of records read
+     */
+    public int read(long fromOffset, long toOffset, int maxBytes, List<LogRecord> records) {
+        int end = size;
+        int position = lookup(fromOffset);
+        int read = 0;
+        try (RecordSource source = open()) {
+            while (position < end && read < maxBytes) {
+                source.load(position, HEADER_SIZE);
+                int recordLength = source.getInt(position);
+                long offset = source.getLong(position + 8);
+                if (offset >= toOffset) {
+                    break;
+                }
+                if (offset >= fromOffset) {
+                    byte[] content = new byte[recordLength - HEADER_SIZE];
+                    source.load(position, recordLength);
+                    source.get(position + HEADER_SIZE, content);
+                    records.add(new LogRecord(offset, source.getLong(position + 16), new String(content, StandardCharsets.UTF_8)));
+                    read += recordLength;
+                }
+                position += recordLength;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return read;
+    }
+
+    /**
+     * Returns the offset of the first record with a timestamp at or after the given time. The
+     * search starts at the last indexed record older than that time.
+     *
+     * @param timestamp the time in milliseconds since the epoch
+     * @return the offset of the record, or -1 if every record is older
+     */
+    public long offsetForTimestamp(long timestamp) {
+        int end = size;
+        int entries = indexEntries;
+        long[] indexed = index;
+        int low = 0;
+        int high = entries - 1;
+        int position = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (indexed[middle * 2 + 1] < timestamp) {
+                position = (int) indexed[middle * 2];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        try (RecordSource source = open()) {
+            while (position < end) {
+                source.load(position, HEADER_SIZE);
+                if (source.getLong(position + 16) >= timestamp) {
+                    return source.getLong(position + 8);
+                }
+                position += source.getInt(position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return -1;
+    }
+
+    /**
+     * Writes changed pages of the segment and the new entries of its index to the disk.
+     *
+     * @throws UncheckedIOException if the files cannot be written
+     */
+    public void force() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            MappedByteBuffer mapped = buffer;
+            if (mapped != null) {
+                mapped.force();
+            } else {
+                // written through a mapping that has been released since
+                try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                }
+            }
+            writeIndex();
+        } catch (IOException e) {
+            dirty = true;
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Releases the mapping of the file and cuts the file down to its records. The next append maps
+     * it again; reads meanwhile go to the file. Called with appends held off, when the segment is
+     * full or has been idle.
+     *
+     * @throws IOException if the file cannot be truncated
+     */
+    public void unmap() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        buffer = null;
+        writeBuffer = null;
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    /**
+     * Deletes the files of the segment.
+     *
+     * @throws IOException if a file cannot be deleted
+     */
+    public void delete() throws IOException {
+        buffer = null;
+        Files.deleteIfExists(logFile);
+        Files.deleteIfExists(indexFile);
+    }
+
+    /**
+     * Returns the offset of the first record in the segment.
+     *
+     * @return the base offset
+     */
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * Returns the offset the next appended record will get.
+     *
+     * @return the offset after the last record
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Returns the number of bytes used by records.
+     *
+     * @return the size of the records in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns true if the file is currently mapped.
+     *
+     * @return true if mapped
+     */
+    public boolean isMapped() {
+        return buffer != null;
+    }
+
+    /**
+     * Returns the time of the first record, or the time the segment was opened if it is empty.
+     *
+     * @return the creation time in milliseconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Returns the time of the last record.
+     *
+     * @return the time in milliseconds since the epoch, or 0 if the segment is empty
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    private MappedByteBuffer map(int required) throws IOException {
+        MappedByteBuffer mapped = buffer;
+        if (mapped != null && mapped.capacity() >= required) {
+            return mapped;
+        }
+        int current = mapped == null ? size : mapped.capacity();
+        long length = Math.min(capacity, Math.max(required, Math.max(INITIAL_CAPACITY, current * 2L)));
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+        writeBuffer = mapped.duplicate();
+        // published before the size of the records written through it
+        buffer = mapped;
+        return mapped;
+    }
+
+    private RecordSource open() throws IOException {
+        MappedByteBuffer mapped = buffer;
+        if (mapped != null) {
+            return new RecordSource(mapped.duplicate(), null);
+        }
+        try {
+            return new RecordSource(null, FileChannel.open(logFile, StandardOpenOption.READ));
+        } catch (NoSuchFileException e) {
+            // nothing appended yet
+            return new RecordSource(ByteBuffer.allocate(0), null);
+        }
+    }
+
+    private void addIndexEntry(int position, long offset, long timestamp) {
+        if (position != 0 && position - lastIndexed < INDEX_INTERVAL) {
+            return;
+        }
+        int entry = position == 0 ? 0 : indexEntries;
+        long[] indexed = index;
+        if ((entry + 1) * 2 > indexed.length) {
+            indexed = Arrays.copyOf(indexed, indexed.length * 2);
+        }
+        indexed[entry * 2] = (offset - baseOffset) << 32 | position;
+        indexed[entry * 2 + 1] = timestamp;
+        // published before the count, which readers load first
+        index = indexed;
+        lastIndexed = position;
+        indexEntries = entry + 1;
+    }
+
+    private int lookup(long offset) {
+        int entries = indexEntries;
+        long[] indexed = index;
+        int low = 0;
+        int high = entries - 1;
+        int position = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (baseOffset + (indexed[middle * 2] >>> 32) <= offset) {
+                position = (int) indexed[middle * 2];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return position;
+    }
+
+    private void writeIndex() throws IOException {
+        int entries = indexEntries;
+        long[] indexed = index;
+        if (entries == flushedEntries) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate((entries - flushedEntries) * INDEX_ENTRY_SIZE);
+        for (int entry = flushedEntries; entry < entries; entry++) {
+            bytes.putInt((int) (indexed[entry * 2] >>> 32));
+            bytes.putInt((int) indexed[entry * 2]);
+            bytes.putLong(indexed[entry * 2 + 1]);
+        }
+        bytes.flip();
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = (long) flushedEntries * INDEX_ENTRY_SIZE;
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+            channel.truncate(position);
+        }
+        flushedEntries = entries;
+    }
+
+    private void recover() throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                RecordSource source = new RecordSource(null, channel)) {
+            long fileSize = channel.size();
+            int trusted = readIndex();
+            int position = 0;
+            long offset = baseOffset;
+            // entries of the index are trusted as long as they increase, then checked against the records
+            if (trusted > 0) {
+                int indexedPosition = (int) index[(trusted - 1) * 2];
+                long indexedOffset = baseOffset + (index[(trusted - 1) * 2] >>> 32);
+                if (recordLength(source, fileSize, indexedPosition, indexedOffset) > 0
+                        && source.getLong(indexedPosition + 16) == index[(trusted - 1) * 2 + 1]) {
+                    position = indexedPosition;
+                    offset = indexedOffset;
+                    lastIndexed = indexedPosition;
+                } else {
+                    trusted = 0;
+                }
+            }
+            indexEntries = trusted;
+            flushedEntries = trusted;
+            if (trusted > 0) {
+                created = index[1];
+            }
+            int recordLength;
+            while ((recordLength = recordLength(source, fileSize, position, offset)) > 0) {
+                long timestamp = source.getLong(position + 16);
+                if (position == 0) {
+                    created = timestamp;
+                }
+                addIndexEntry(position, offset, timestamp);
+                lastTimestamp = timestamp;
+                position += recordLength;
+                offset++;
+            }
+            // drops the space mapped beyond the records and anything after the last valid one
+            channel.truncate(position);
+            size = position;
+            nextOffset = offset;
+        }
+        writeIndex();
+    }
+
+    private int readIndex() throws IOException {
+        if (!Files.exists(indexFile)) {
+            return 0;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+        int entries = 0;
+        int previous = -1;
+        while (bytes.remaining() >= INDEX_ENTRY_SIZE) {
+            long relativeOffset = bytes.getInt() & 0xFFFFFFFFL;
+            int position = bytes.getInt();
+            long timestamp = bytes.getLong();
+            if (entries == 0 ? position != 0 || relativeOffset != 0 : position <= previous) {
+                break;
+            }
+            if ((entries + 1) * 2 > index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            index[entries * 2] = relativeOffset << 32 | position;
+            index[entries * 2 + 1] = timestamp;
+            previous = position;
+            entries++;
+        }
+        return entries;
+    }
+
+    private int recordLength(RecordSource source, long fileSize, int position, long expectedOffset) throws IOException {
+        if (position < 0 || fileSize - position < HEADER_SIZE || !source.load(position, HEADER_SIZE)) {
+            return -1;
+        }
+        int recordLength = source.getInt(position);
+        if (recordLength < HEADER_SIZE || recordLength > fileSize - position || recordLength > capacity
+                || source.getLong(position + 8) != expectedOffset || !source.load(position, recordLength)) {
+            return -1;
+        }
+        byte[] content = new byte[recordLength - HEADER_SIZE];
+        source.get(position + HEADER_SIZE, content);
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return (int) crc.getValue() == source.getInt(position + 4) ? recordLength : -1;
+    }
+
+    /**
+     * Reads the records of a segment from its mapping, or through a window into its file.
+     */
+    private static class RecordSource implements Closeable {
+        private ByteBuffer view;
+        private FileChannel channel;
+        private long start;
+
+        RecordSource(ByteBuffer mapped, FileChannel channel) {
+            this.view = mapped;
+            this.channel = channel;
+        }
+
+        /**
+         * Makes the given bytes available, reading them from the file if needed.
+         *
+         * @return false if the file ends before them
+         */
+        boolean load(int position, int length) throws IOException {
+            if (channel == null) {
+                return position + length <= view.capacity();
+            }
+            if (view != null && position >= start && position + length <= start + view.limit()) {
+                return true;
+            }
+            ByteBuffer window = view != null && view.capacity() >= length ? view : ByteBuffer.allocate(Math.max(READ_WINDOW, length));
+            window.clear();
+            while (window.hasRemaining()) {
+                if (channel.read(window, position + window.position()) < 0) {
+                    break;
+                }
+            }
+            window.flip();
+            view = window;
+            start = position;
+            return length <= window.limit();
+        }
+
+        int getInt(int position) {
+            return view.getInt((int) (position - start));
+        }
+
+        long getLong(int position) {
+            return view.getLong((int) (position - start));
+        }
+
+        void get(int position, byte[] bytes) {
+            view.get((int) (position - start), bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package brokerSystem;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The MessageFields class is the view of a published message that subscription filters are
+ * evaluated against. Besides 'topic' and 'payload', the payload is read as whitespace or ';'
+ * separated key=value pairs, e.g. "temp=21.5 city=berlin", and each key can be used as a field.
+ * The payload is only split up when a filter first asks for such a field, and then only once for
+ * all filters evaluated against the message.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class MessageFields {
+    private String topicID;
+    private String topicName;
+    private String content;
+    private String payload;
+    private Map<String, String> fields;
+
+    /**
+     * Constructs the view of a published message.
+     *
+     * @param topicID   the ID of the topic
+     * @param topicName the name of the topic, or null if unknown
+     * @param content   the formatted content of the message
+     */
+    public MessageFields(String topicID, String topicName, String content) {
+        this.topicID = topicID;
+        this.topicName = topicName;
+        this.content = content;
+    }
+
+    /**
+     * Returns the value of a field.
+     *
+     * @param field 'topic', 'payload', or a key of the payload
+     * @return the value, or null if the message has no such field
+     */
+    public String get(String field) {
+        if (field.equals("topic")) {
+            return topicID;
+        }
+        if (field.equals("payload")) {
+            return getPayload();
+        }
+        if (fields == null) {
+            fields = new HashMap<>();
+            for (String pair : getPayload().split("[\\s;]+")) {
+                int split = pair.indexOf('=');
+                if (split > 0) {
+                    fields.put(pair.substring(0, split), pair.substring(split + 1));
+                }
+            }
+        }
+        return fields.get(field);
+    }
+
+    /**
+     * Returns the text the Publisher published, without the time and topic prefix the Broker adds.
+     *
+     * @return the payload
+     */
+    public String getPayload() {
+        if (payload == null) {
+            payload = content;
+            if (topicName != null) {
+                String prefix = " " + topicID + ":" + topicName + ": ";
+                int start = content.indexOf(prefix);
+                if (start >= 0) {
+                    payload = content.substring(start + prefix.length());
+                }
+            }
+        }
+        return payload;
+    }
+}
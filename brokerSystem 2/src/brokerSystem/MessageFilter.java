@@ -0,0 +1,315 @@
+package brokerSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The MessageFilter class is a compiled subscription filter. A filter is parsed once when the
+ * subscription is made and then evaluated against each published message of the topic. The
+ * syntax is:
+ *
+ * <pre>
+ * filter     := term ('or' term)*
+ * term       := factor ('and' factor)*
+ * factor     := 'not' factor | '(' filter ')' | comparison
+ * comparison := field ('=' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=' | 'contains') value
+ * </pre>
+ *
+ * Fields are described in {@link MessageFields}. Values may be quoted with " or '. Two values
+ * that are both numbers are compared as numbers, anything else as text. A comparison with a field
+ * the message does not have is false.
+ * <p>
+ * Filters that only differ in spacing, quoting or case of the keywords have the same
+ * {@link #getExpression()}, so subscribers using them can share one evaluation.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class MessageFilter {
+    private Node root;
+    private String expression;
+
+    private MessageFilter(Node root) {
+        this.root = root;
+        this.expression = root.toString();
+    }
+
+    /**
+     * Compiles a filter.
+     *
+     * @param text the filter text
+     * @return the compiled filter
+     * @throws IllegalArgumentException if the text is not a valid filter
+     */
+    public static MessageFilter compile(String text) {
+        Parser parser = new Parser(tokenize(text));
+        Node root = parser.parseOr();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.tokens.get(parser.position).text + "' in filter");
+        }
+        return new MessageFilter(root);
+    }
+
+    /**
+     * Evaluates the filter against a message.
+     *
+     * @param fields the fields of the message
+     * @return true if the message passes the filter
+     */
+    public boolean test(MessageFields fields) {
+        return root.test(fields);
+    }
+
+    /**
+     * Returns the normalized text of the filter.
+     *
+     * @return the normalized filter
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private static List<Token> tokenize(String text) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(new Token(String.valueOf(c), false));
+                i++;
+            } else if (c == '=' || c == '!' || c == '<' || c == '>') {
+                boolean twoChars = i + 1 < text.length() && text.charAt(i + 1) == '=' && c != '=';
+                String operator = text.substring(i, twoChars ? i + 2 : i + 1);
+                if (operator.equals("!")) {
+                    throw new IllegalArgumentException("Unexpected '!' in filter");
+                }
+                tokens.add(new Token(operator, false));
+                i += operator.length();
+            } else if (c == '"' || c == '\'') {
+                int end = text.indexOf(c, i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated quote in filter");
+                }
+                tokens.add(new Token(text.substring(i + 1, end), true));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i)) && "()=!<>\"'".indexOf(text.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(new Token(text.substring(start, i), false));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * One token of a filter; quoted tokens are always values, never keywords.
+     */
+    private static class Token {
+        private final String text;
+        private final boolean quoted;
+
+        Token(String text, boolean quoted) {
+            this.text = text;
+            this.quoted = quoted;
+        }
+
+        boolean is(String keyword) {
+            return !quoted && text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    /**
+     * A recursive descent parser over the tokens of one filter.
+     */
+    private static class Parser {
+        private final List<Token> tokens;
+        private int position;
+
+        Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        Node parseOr() {
+            Node node = parseAnd();
+            while (accept("or")) {
+                node = new Or(node, parseAnd());
+            }
+            return node;
+        }
+
+        Node parseAnd() {
+            Node node = parseFactor();
+            while (accept("and")) {
+                node = new And(node, parseFactor());
+            }
+            return node;
+        }
+
+        Node parseFactor() {
+            if (accept("not")) {
+                return new Not(parseFactor());
+            }
+            if (accept("(")) {
+                Node node = parseOr();
+                if (!accept(")")) {
+                    throw new IllegalArgumentException("Missing ')' in filter");
+                }
+                return node;
+            }
+            Token field = next("a field");
+            Token operator = next("an operator");
+            if (field.quoted || !(operator.is("contains") || !operator.quoted && Comparison.isOperator(operator.text))) {
+                throw new IllegalArgumentException("Expected a comparison like 'field = value' in filter");
+            }
+            return new Comparison(field.text, operator.text.toLowerCase(), next("a value").text);
+        }
+
+        private boolean accept(String keyword) {
+            if (position < tokens.size() && tokens.get(position).is(keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private Token next(String expected) {
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("Expected " + expected + " at the end of the filter");
+            }
+            return tokens.get(position++);
+        }
+    }
+
+    /**
+     * A node of the compiled filter.
+     */
+    private interface Node {
+        boolean test(MessageFields fields);
+    }
+
+    private static class Or implements Node {
+        private final Node left;
+        private final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(MessageFields fields) {
+            return left.test(fields) || right.test(fields);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " or " + right + ")";
+        }
+    }
+
+    private static class And implements Node {
+        private final Node left;
+        private final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(MessageFields fields) {
+            return left.test(fields) && right.test(fields);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " and " + right + ")";
+        }
+    }
+
+    private static class Not implements Node {
+        private final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public boolean test(MessageFields fields) {
+            return !operand.test(fields);
+        }
+
+        @Override
+        public String toString() {
+            return "not " + operand;
+        }
+    }
+
+    private static class Comparison implements Node {
+        private final String field;
+        private final String operator;
+        private final String value;
+        private final Double number;
+
+        Comparison(String field, String operator, String value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+            this.number = parseNumber(value);
+        }
+
+        static boolean isOperator(String text) {
+            return text.equals("=") || text.equals("!=") || text.equals("<") || text.equals("<=")
+                    || text.equals(">") || text.equals(">=");
+        }
+
+        @Override
+        public boolean test(MessageFields fields) {
+            String actual = fields.get(field);
+            if (actual == null) {
+                return false;
+            }
+            if (operator.equals("contains")) {
+                return actual.contains(value);
+            }
+            Double actualNumber = number == null ? null : parseNumber(actual);
+            int order = actualNumber != null ? Double.compare(actualNumber, number) : actual.compareTo(value);
+            switch (operator) {
+                case "=":
+                    return order == 0;
+                case "!=":
+                    return order != 0;
+                case "<":
+                    return order < 0;
+                case "<=":
+                    return order <= 0;
+                case ">":
+                    return order > 0;
+                default:
+                    return order >= 0;
+            }
+        }
+
+        private static Double parseNumber(String text) {
+            try {
+                return Double.valueOf(text);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return field + " " + operator + " \"" + value + "\"";
+        }
+    }
+}
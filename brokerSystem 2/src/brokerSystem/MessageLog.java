@@ -0,0 +1,276 @@
+package brokerSystem;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MessageLog class keeps a durable {@link TopicLog} for every topic a Broker publishes to, each
+ * in its own directory below the log directory. Appending only copies into memory-mapped segment
+ * files, while a background thread writes them to the disk according to the fsync policy and
+ * deletes segments that fall out of the retention limits, so the log never holds up the delivery
+ * of a message.
+ * <p>
+ * A topic created again with the same ID after a restart continues its log. The first retention
+ * pass reopens the other topic logs found in the log directory, so their old segments are deleted
+ * too, and a reopened log whose topic is not used again is deleted as a whole once its newest
+ * message falls out of the retention time.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class MessageLog {
+    private static final BrokerLog LOG = BrokerLog.get("messagelog");
+    private static final long IDLE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private Path directory;
+    private Map<String, TopicLog> logs = new ConcurrentHashMap<>();
+    private Set<String> unclaimed = ConcurrentHashMap.newKeySet();
+    private boolean reopened;
+    private ScheduledExecutorService maintenance;
+    private ScheduledFuture<?> periodicFlush;
+    private int segmentBytes = 16 * 1024 * 1024;
+    private long segmentMillis = TimeUnit.HOURS.toMillis(1);
+    private long fsyncMillis;
+    private int fsyncMessages;
+    private long retentionBytes;
+    private long retentionMillis;
+
+    /**
+     * Constructs a MessageLog storing its topics below the given directory.
+     *
+     * @param directory the log directory
+     */
+    public MessageLog(Path directory) {
+        this.directory = directory;
+        maintenance = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "message-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::enforceRetention, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets when a new segment file is started.
+     *
+     * @param segmentBytes  the size of a segment file in bytes
+     * @param segmentMillis the age after which the next message starts a new segment, or 0 for none
+     */
+    public void setSegments(int segmentBytes, long segmentMillis) {
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+    }
+
+    /**
+     * Sets when appended messages are written to the disk. With both values 0 this is left to the
+     * operating system.
+     *
+     * @param fsyncMillis   the interval of the periodic flush, or 0 for none
+     * @param fsyncMessages the number of messages to a topic after which it is flushed, or 0 for none
+     */
+    public void setFsync(long fsyncMillis, int fsyncMessages) {
+        this.fsyncMillis = fsyncMillis;
+        this.fsyncMessages = fsyncMessages;
+        if (periodicFlush != null) {
+            periodicFlush.cancel(false);
+            periodicFlush = null;
+        }
+        if (fsyncMillis > 0) {
+            periodicFlush = maintenance.scheduleWithFixedDelay(this::flushAll, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets how much of each topic log is kept. Old segments are deleted as a whole.
+     *
+     * @param retentionBytes  the size limit of each topic log in bytes, or 0 for none
+     * @param retentionMillis the age limit of messages, or 0 for none
+     */
+    public void setRetention(long retentionBytes, long retentionMillis) {
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Returns the size of a new segment file.
+     *
+     * @return the segment size in bytes
+     */
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Returns the age after which a segment is replaced by a new one.
+     *
+     * @return the segment age in milliseconds, 0 if segments are only replaced when full
+     */
+    public long getSegmentMillis() {
+        return segmentMillis;
+    }
+
+    /**
+     * Returns the interval of the periodic flush.
+     *
+     * @return the interval in milliseconds, 0 if there is no periodic flush
+     */
+    public long getFsyncMillis() {
+        return fsyncMillis;
+    }
+
+    /**
+     * Returns the number of messages to a topic after which it is flushed.
+     *
+     * @return the number of messages, 0 if topics are not flushed by count
+     */
+    public int getFsyncMessages() {
+        return fsyncMessages;
+    }
+
+    /**
+     * Appends a published message to the log of its topic.
+     *
+     * @param message the published message
+     * @return the offset of the message in the topic log
+     * @throws IOException if the topic log cannot be opened or extended
+     */
+    public long append(EncodedMessage message) throws IOException {
+        return topic(message.getTopicID()).append(message);
+    }
+
+    /**
+     * Returns the log of a topic, opening or creating it if needed.
+     *
+     * @param topicID the ID of the topic
+     * @return the topic log
+     * @throws IOException if the topic log cannot be opened
+     */
+    public TopicLog topic(String topicID) throws IOException {
+        try {
+            TopicLog log = logs.computeIfAbsent(topicID, id -> {
+                try {
+                    return new TopicLog(this, topicDirectory(id));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            unclaimed.remove(topicID);
+            return log;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Deletes the log of a deleted topic, so a new topic with the same ID starts empty.
+     *
+     * @param topicID the ID of the topic
+     */
+    public void delete(String topicID) {
+        logs.computeIfPresent(topicID, (id, log) -> {
+            try {
+                log.delete();
+            } catch (IOException e) {
+                LOG.warn("Could not delete the log of topic " + id + ": " + e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Writes a topic log to the disk in the background, unless a flush of it is already pending.
+     *
+     * @param log the topic log to flush
+     */
+    public void scheduleFlush(TopicLog log) {
+        if (log.markFlushPending()) {
+            maintenance.execute(() -> flush(log));
+        }
+    }
+
+    private void flushAll() {
+        for (TopicLog log : logs.values()) {
+            flush(log);
+        }
+    }
+
+    private void flush(TopicLog log) {
+        try {
+            log.flush();
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic flush
+            LOG.warn("Could not flush message log: " + e.getMessage());
+        }
+    }
+
+    private void enforceRetention() {
+        if (!reopened) {
+            reopened = true;
+            reopen();
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, TopicLog> entry : logs.entrySet()) {
+            TopicLog log = entry.getValue();
+            if (unclaimed.contains(entry.getKey()) && retentionMillis > 0 && now - log.getLastTimestamp() > retentionMillis) {
+                LOG.info("Deleting the log of topic " + entry.getKey() + ", which was not used since the restart");
+                unclaimed.remove(entry.getKey());
+                delete(entry.getKey());
+                continue;
+            }
+            try {
+                log.enforceRetention(retentionBytes, retentionMillis, now);
+                log.unmapIdle(IDLE_MILLIS, now);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not delete old log segments: " + e.getMessage());
+            }
+        }
+    }
+
+    private void reopen() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> topics = Files.newDirectoryStream(directory, "topic-*")) {
+            for (Path topicDirectory : topics) {
+                String topicID = URLDecoder.decode(topicDirectory.getFileName().toString().substring(6), "UTF-8");
+                try {
+                    // a topic published to since the start has opened its log already
+                    logs.computeIfAbsent(topicID, id -> {
+                        try {
+                            TopicLog log = new TopicLog(this, topicDirectory);
+                            unclaimed.add(id);
+                            return log;
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    LOG.warn("Could not reopen the log of topic " + topicID + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read the log directory " + directory + ": " + e.getMessage());
+        }
+        if (!unclaimed.isEmpty()) {
+            LOG.info("Reopened the logs of " + unclaimed.size() + " topics");
+        }
+    }
+
+    private Path topicDirectory(String topicID) {
+        try {
+            // topic IDs are chosen by Publishers, so they are encoded into safe file names
+            return directory.resolve("topic-" + URLEncoder.encode(topicID, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
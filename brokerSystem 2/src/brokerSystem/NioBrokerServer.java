@@ -0,0 +1,164 @@
+package brokerSystem;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * The NioBrokerServer class is the non-blocking network engine of the Broker. A single acceptor
+ * thread hands new connections to a small pool of selector event loops, which read and write every
+ * Publisher, Subscriber and Broker connection without dedicating a thread to each of them.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class NioBrokerServer {
+    private static final BrokerLog LOG = BrokerLog.get("broker");
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private Broker broker;
+    private int port;
+    private EventLoop[] eventLoops;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    /**
+     * Constructs a NioBrokerServer for the given Broker.
+     *
+     * @param broker     the Broker whose connections are served
+     * @param port       the port number on which to accept connections
+     * @param eventLoops the number of selector threads
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioBrokerServer(Broker broker, int port, int eventLoops) throws IOException {
+        this.broker = broker;
+        this.port = port;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < this.eventLoops.length; i++) {
+            this.eventLoops[i] = new EventLoop(Selector.open());
+        }
+    }
+
+    /**
+     * Binds the server socket and starts the event loops and the acceptor thread.
+     *
+     * @throws IOException if the server socket cannot be bound
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread thread = new Thread(eventLoops[i], "broker-event-loop-" + i);
+            thread.start();
+        }
+        new Thread(this::acceptConnections, "broker-acceptor").start();
+    }
+
+    /**
+     * Accepts connections and assigns them to the event loops in turn.
+     */
+    private void acceptConnections() {
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = eventLoops[nextLoop];
+                nextLoop = (nextLoop + 1) % eventLoops.length;
+                loop.register(new NioConnection(broker, channel, loop));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * An EventLoop owns one selector and processes the readiness events of its connections.
+     * Work coming from other threads is queued and run on the loop between selects.
+     */
+    static class EventLoop implements Runnable, Executor {
+        private Selector selector;
+        private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Registers a connection with this loop's selector.
+         *
+         * @param connection the connection to register
+         */
+        void register(NioConnection connection) {
+            execute(() -> {
+                try {
+                    connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+                } catch (IOException e) {
+                    connection.close();
+                }
+            });
+        }
+
+        /**
+         * Requests a write-readiness notification for a connection with queued output.
+         *
+         * @param key the selection key of the connection
+         */
+        void wantWrite(SelectionKey key) {
+            if (key.isValid()) {
+                // atomic, as the loop may be pausing or resuming reads at the same time
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (RuntimeException e) {
+                            // a failing handler closes only its own connection, not the whole loop
+                            LOG.error("Closing connection after an unexpected error: " + e);
+                            connection.close();
+                        }
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package brokerSystem;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * The NioConnection class holds the state of one non-blocking connection served by the
+ * {@link NioBrokerServer}. It decodes the PUBLISHER/SUBSCRIBER/BROKER handshake, splits the
+ * incoming bytes into lines or, for binary clients, {@link FrameCodec} frames for the matching
+ * handler, and queues outgoing bytes until the socket can take them. Buffers are only allocated while there is partial input or pending
+ * output, so idle connections stay small.
+ * <p>
+ * The event loop never waits for a full queue. While it handles the input of a connection, a full
+ * {@link BoundedQueue} pauses reading from that connection instead, and the rest of the input is
+ * handled once the queue has room again.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class NioConnection implements Closeable {
+    private static final int STREAM_MAGIC = 0xACED0005;
+    private static final int TC_BLOCKDATA = 0x77;
+    private static final int TC_BLOCKDATALONG = 0x7A;
+    private static final int MAX_QUEUED_WRITES = 64;
+    private static final BrokerLog PUBLISHER_LOG = BrokerLog.get("publisher");
+    private static final BrokerLog SUBSCRIBER_LOG = BrokerLog.get("subscriber");
+    private static final BrokerLog LINK_LOG = BrokerLog.get("link");
+
+    private Broker broker;
+    private SocketChannel channel;
+    private NioBrokerServer.EventLoop loop;
+    private SelectionKey key;
+    private PrintWriter out;
+    private byte[] input;
+    private int inputLength;
+    private ArrayDeque<ByteBuffer> writeQueue;
+    private boolean handshakeDone;
+    private boolean binary;
+    private boolean closed;
+    private int readPauses;
+    private final Supplier<Runnable> pauseReading = this::pauseReading;
+    private final FrameCodec.FrameHandler frameHandler = new FrameCodec.FrameHandler() {
+        @Override
+        public void handleFrame(String[] parts) {
+            dispatch(parts);
+        }
+
+        @Override
+        public void handlePublish(int topicHandle, String content) {
+            // only Brokers publish by topic handle
+            if (!closed && brokerConnection != null) {
+                brokerConnection.handlePublish(topicHandle, content);
+            }
+        }
+    };
+
+    private PublisherHandler publisher;
+    private SubscriberHandler subscriber;
+    private BrokerConnection brokerConnection;
+
+    /**
+     * Constructs a NioConnection for an accepted channel.
+     *
+     * @param broker  the Broker the connection belongs to
+     * @param channel the non-blocking socket channel
+     * @param loop    the event loop serving the channel
+     */
+    public NioConnection(Broker broker, SocketChannel channel, NioBrokerServer.EventLoop loop) {
+        this.broker = broker;
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Reads all available bytes from the channel and dispatches every complete line.
+     *
+     * @param readBuffer the event loop's shared read buffer
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            int n;
+            while ((n = channel.read(readBuffer.clear())) > 0) {
+                readBuffer.flip();
+                appendInput(readBuffer);
+            }
+            handleInput();
+            if (n < 0) {
+                close();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Handles the complete commands in the input, unless reading is paused.
+     */
+    private void handleInput() throws IOException {
+        if (readPauses > 0) {
+            return;
+        }
+        BoundedQueue.setPausableProducer(pauseReading);
+        try {
+            processInput();
+        } finally {
+            BoundedQueue.setPausableProducer(null);
+        }
+    }
+
+    /**
+     * Stops reading from the connection because a command filled a queue. Called on the event
+     * loop; the returned action may be run by any thread.
+     *
+     * @return the action resuming the reading
+     */
+    private Runnable pauseReading() {
+        if (readPauses++ == 0 && key != null && key.isValid()) {
+            key.interestOpsAnd(~SelectionKey.OP_READ);
+        }
+        AtomicBoolean resumed = new AtomicBoolean();
+        return () -> {
+            if (resumed.compareAndSet(false, true)) {
+                loop.execute(this::resumeReading);
+            }
+        };
+    }
+
+    /**
+     * Reads again once every queue that paused the connection has room, starting with the input
+     * left over when it was paused.
+     */
+    private void resumeReading() {
+        if (--readPauses > 0 || closed) {
+            return;
+        }
+        try {
+            if (key.isValid()) {
+                key.interestOpsOr(SelectionKey.OP_READ);
+            }
+            handleInput();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes as much queued output as the socket accepts, and lets a Subscriber's outbound queue
+     * continue once the output has shrunk enough.
+     */
+    void onWritable() {
+        synchronized (this) {
+            try {
+                while (writeQueue != null && !writeQueue.isEmpty()) {
+                    ByteBuffer buffer = writeQueue.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    writeQueue.poll();
+                }
+                if (writeQueue != null && writeQueue.isEmpty()) {
+                    writeQueue = null;
+                    if (key.isValid()) {
+                        key.interestOpsAnd(~SelectionKey.OP_WRITE);
+                    }
+                }
+            } catch (IOException e) {
+                loop.execute(this::close);
+            }
+        }
+        if (subscriber != null && isWritable()) {
+            subscriber.getOutboundQueue().resume();
+        }
+    }
+
+    /**
+     * Returns true if the connection can take more output from a Subscriber's outbound queue,
+     * that is, no more than {@value #MAX_QUEUED_WRITES} writes are waiting for the socket.
+     *
+     * @return false while the outbound queue should hold its messages back
+     */
+    synchronized boolean isWritable() {
+        return !closed && (writeQueue == null || writeQueue.size() <= MAX_QUEUED_WRITES);
+    }
+
+    /**
+     * Sends bytes to the peer, writing directly when nothing is queued and queueing the rest.
+     * May be called from any thread and never waits: the caller may be an event loop, or a thread
+     * an event loop waits for. A Subscriber's outbound queue stops its writer while the connection
+     * is not {@link #isWritable() writable}, so the queue fills up and its overflow policy applies.
+     *
+     * @param buffer the bytes to send
+     */
+    void send(ByteBuffer buffer) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (writeQueue == null) {
+                    channel.write(buffer);
+                    if (!buffer.hasRemaining()) {
+                        return;
+                    }
+                    writeQueue = new ArrayDeque<>();
+                }
+                writeQueue.add(buffer);
+                if (key != null) {
+                    loop.wantWrite(key);
+                }
+            } catch (IOException e) {
+                loop.execute(this::close);
+            }
+        }
+    }
+
+    /**
+     * Closes the channel and lets the handler clean up after its client.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeQueue = null;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (publisher != null) {
+            PUBLISHER_LOG.info("Publisher " + publisher.getName() + " disconnected");
+            publisher.handleDisconnect();
+        } else if (subscriber != null) {
+            subscriber.handleDisconnect();
+        } else if (brokerConnection != null) {
+            broker.removeBrokerConnection(brokerConnection);
+        }
+    }
+
+    private void appendInput(ByteBuffer buffer) {
+        int needed = inputLength + buffer.remaining();
+        if (input == null) {
+            input = new byte[Math.max(256, needed)];
+        } else if (needed > input.length) {
+            byte[] larger = new byte[Math.max(needed, input.length * 2)];
+            System.arraycopy(input, 0, larger, 0, inputLength);
+            input = larger;
+        }
+        buffer.get(input, inputLength, buffer.remaining());
+        inputLength = needed;
+    }
+
+    private void processInput() throws IOException {
+        int position = 0;
+        if (!handshakeDone) {
+            if (inputLength > 0 && input[0] == FrameCodec.PREFACE[0]) {
+                position = readBinaryHandshake();
+            } else {
+                position = readHandshake();
+            }
+            if (position < 0) {
+                return;
+            }
+        }
+        if (binary) {
+            processFrames(position);
+        } else {
+            processLines(position);
+        }
+    }
+
+    private void processFrames(int position) throws IOException {
+        int frameSize;
+        while ((frameSize = FrameCodec.frameSize(input, position, inputLength - position)) > 0) {
+            int start = position;
+            position += frameSize;
+            if (FrameCodec.isBatch(input, start + 4)) {
+                // the frames of a batch are all handled, even if one of them pauses reading
+                FrameCodec.unpackBatch(input, start + 4, frameSize - 4, frameHandler);
+            } else {
+                FrameCodec.decode(input, start + 4, frameSize - 4, frameHandler);
+            }
+            if (closed) {
+                return;
+            }
+            if (readPauses > 0) {
+                break;
+            }
+        }
+        compactInput(position);
+    }
+
+    private void processLines(int position) {
+        int lineStart = position;
+        for (int i = position; i < inputLength; i++) {
+            if (input[i] == '\n') {
+                int end = i;
+                if (end > lineStart && input[end - 1] == '\r') {
+                    end--;
+                }
+                dispatch(new String(input, lineStart, end - lineStart, EncodedMessage.TEXT_CHARSET));
+                lineStart = i + 1;
+                if (closed) {
+                    return;
+                }
+                if (readPauses > 0) {
+                    break;
+                }
+            }
+        }
+        compactInput(lineStart);
+    }
+
+    private void compactInput(int consumed) {
+        int remaining = inputLength - consumed;
+        if (remaining == 0) {
+            // drop the buffer so idle connections hold no input memory
+            input = null;
+        } else if (consumed > 0) {
+            System.arraycopy(input, consumed, input, 0, remaining);
+        }
+        inputLength = remaining;
+    }
+
+    /**
+     * Decodes the ObjectOutputStream handshake sent by clients and other Brokers: the stream
+     * header followed by block data holding the client type and, for Publishers and Subscribers,
+     * the client name.
+     *
+     * @return the number of bytes consumed, or -1 if the handshake is not complete yet
+     * @throws IOException if the bytes are not a valid handshake
+     */
+    private int readHandshake() throws IOException {
+        if (inputLength < 4) {
+            return -1;
+        }
+        int magic = ((input[0] & 0xff) << 24) | ((input[1] & 0xff) << 16) | ((input[2] & 0xff) << 8) | (input[3] & 0xff);
+        if (magic != STREAM_MAGIC) {
+            throw new IOException("Invalid connection handshake");
+        }
+        ByteArrayOutputStream blockData = new ByteArrayOutputStream();
+        int position = 4;
+        while (true) {
+            List<String> fields = readUTFs(blockData.toByteArray());
+            if (!fields.isEmpty() && (fields.get(0).equals("BROKER") || fields.size() >= 2)) {
+                startHandler(fields);
+                handshakeDone = true;
+                return position;
+            }
+            if (position >= inputLength) {
+                return -1;
+            }
+            int tag = input[position] & 0xff;
+            int headerLength;
+            int blockLength;
+            if (tag == TC_BLOCKDATA) {
+                if (position + 2 > inputLength) {
+                    return -1;
+                }
+                headerLength = 2;
+                blockLength = input[position + 1] & 0xff;
+            } else if (tag == TC_BLOCKDATALONG) {
+                if (position + 5 > inputLength) {
+                    return -1;
+                }
+                headerLength = 5;
+                blockLength = ((input[position + 1] & 0xff) << 24) | ((input[position + 2] & 0xff) << 16)
+                        | ((input[position + 3] & 0xff) << 8) | (input[position + 4] & 0xff);
+            } else {
+                throw new IOException("Invalid connection handshake");
+            }
+            if (position + headerLength + blockLength > inputLength) {
+                return -1;
+            }
+            blockData.write(input, position + headerLength, blockLength);
+            position += headerLength + blockLength;
+        }
+    }
+
+    /**
+     * Decodes the handshake of a binary client: the {@link FrameCodec} preface followed by a
+     * 'hello' frame holding the client type and name.
+     *
+     * @return the number of bytes consumed, or -1 if the handshake is not complete yet
+     * @throws IOException if the bytes are not a valid handshake
+     */
+    private int readBinaryHandshake() throws IOException {
+        int prefaceLength = FrameCodec.PREFACE.length;
+        if (inputLength < prefaceLength) {
+            return -1;
+        }
+        FrameCodec.checkPreface(input, 0);
+        int frameSize = FrameCodec.frameSize(input, prefaceLength, inputLength - prefaceLength);
+        if (frameSize < 0) {
+            return -1;
+        }
+        String[] hello = FrameCodec.decode(input, prefaceLength + 4, frameSize - 4);
+        if (!hello[0].equals("hello") || hello.length < 2) {
+            throw new IOException("Invalid connection handshake");
+        }
+        binary = true;
+        startHandler(Arrays.asList(hello).subList(1, hello.length));
+        handshakeDone = true;
+        return prefaceLength + frameSize;
+    }
+
+    private static List<String> readUTFs(byte[] data) throws IOException {
+        List<String> fields = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        while (in.available() >= 2) {
+            in.mark(2);
+            int length = in.readUnsignedShort();
+            in.reset();
+            if (in.available() < 2 + length) {
+                break;
+            }
+            fields.add(in.readUTF());
+        }
+        return fields;
+    }
+
+    private void startHandler(List<String> fields) {
+        String clientType = fields.get(0);
+        ConnectionWriter writer = binary ? new FrameWriter(new ChannelOutputStream()) : new TextWriter(new ChannelOutputStream());
+        out = new PrintWriter(writer, true);
+        if (clientType.equals("PUBLISHER")) {
+            String publisherName = fields.get(1);
+            broker.addPublisher(channel.socket(), publisherName);
+            publisher = new PublisherHandler(broker, out);
+            publisher.setName(publisherName);
+            PUBLISHER_LOG.info("Publisher connected: " + publisherName);
+        } else if (clientType.equals("BROKER")) {
+            brokerConnection = new BrokerConnection(broker, writer);
+            broker.addBrokerConnection(brokerConnection);
+            LINK_LOG.info("New broker connected");
+        } else if (clientType.equals("SUBSCRIBER")) {
+            String subscriberName = fields.get(1);
+            subscriber = new SubscriberHandler(broker, writer);
+            subscriber.setName(subscriberName);
+            subscriber.setConnection(this);
+            subscriber.getOutboundQueue().useNonBlockingWriter(this::isWritable);
+            broker.addSubscriber(subscriber);
+            SUBSCRIBER_LOG.info("Subsciber " + subscriberName + " connected.");
+        }
+    }
+
+    private void dispatch(String line) {
+        if (publisher != null) {
+            publisher.handleMessage(line);
+        } else if (subscriber != null) {
+            subscriber.handleMessage(line);
+        } else if (brokerConnection != null) {
+            brokerConnection.handleBrokerMessage(line);
+        }
+    }
+
+    private void dispatch(String[] parts) {
+        if (closed) {
+            return;
+        }
+        if (publisher != null) {
+            publisher.handleCommand(parts);
+        } else if (subscriber != null) {
+            subscriber.handleCommand(parts);
+        } else if (brokerConnection != null) {
+            brokerConnection.handleBrokerCommand(parts);
+        }
+    }
+
+    /**
+     * An OutputStream that sends every write through the connection, used under the
+     * {@link ConnectionWriter} of the handler. Arrays are sent without copying: the writers only
+     * pass freshly encoded or shared, never modified, arrays.
+     */
+    private class ChannelOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            send(ByteBuffer.wrap(bytes, offset, length));
+        }
+
+        @Override
+        public void close() {
+            NioConnection.this.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package brokerSystem;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * The OutboundQueue class is a bounded queue of messages waiting to be written to one connection.
+ * Producers only enqueue, while a writer task on a shared executor drains the queue, so a slow
+ * connection never holds up the thread that published the message. At most one writer task runs
+ * per queue, which keeps messages in order. The messages are held in a {@link BoundedQueue}, so an
+ * idle connection holds no slots for the messages it may queue. Control entries, such as the
+ * request to replay a topic, are kept apart from the messages and are never dropped.
+ *
+ * @param <T> the type of the queued messages
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class OutboundQueue<T> {
+
+    /**
+     * What to do with a new message when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** wait until the writer has made room; an event loop pauses the input of the publishing connection instead */
+        BLOCK,
+        /** discard the oldest queued message */
+        DROP_OLDEST,
+        /** drop the message and disconnect the slow consumer */
+        DISCONNECT
+    }
+
+    private BoundedQueue<T> messages;
+    private Queue<T> control = new ConcurrentLinkedQueue<>();
+    private OverflowPolicy policy;
+    private Executor writerExecutor;
+    private Consumer<T> writer;
+    private Runnable onDisconnect;
+    private volatile BooleanSupplier writable;
+    private AtomicBoolean draining = new AtomicBoolean();
+    private LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Constructs an OutboundQueue.
+     *
+     * @param capacity       the maximum number of queued messages
+     * @param policy         the policy applied when the queue is full
+     * @param writerExecutor the executor running the writer tasks
+     * @param writer         writes one message to the connection
+     * @param onDisconnect   closes the connection when the DISCONNECT policy triggers
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, Executor writerExecutor, Consumer<T> writer, Runnable onDisconnect) {
+        this.messages = new BoundedQueue<>(capacity);
+        this.policy = policy;
+        this.writerExecutor = writerExecutor;
+        this.writer = writer;
+        this.onDisconnect = onDisconnect;
+    }
+
+    /**
+     * Makes the writer task suitable for a connection of the non-blocking network engine, whose
+     * writes never wait for the socket. Instead of waiting, the writer task stops while the
+     * connection has too much output pending, so messages stay in this queue and the overflow
+     * policy applies, and it continues after {@link #resume()}.
+     *
+     * @param writable returns false while the connection cannot take more output
+     */
+    public void useNonBlockingWriter(BooleanSupplier writable) {
+        this.writable = writable;
+    }
+
+    /**
+     * Restarts the writer task once the connection can take more output, see
+     * {@link #useNonBlockingWriter(BooleanSupplier)}.
+     */
+    public void resume() {
+        if (!closed && !isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Queues a message for writing, applying the overflow policy if the queue is full.
+     *
+     * @param message the message to queue
+     * @return false if the message was not queued because the queue is closed or overflowed
+     */
+    public boolean offer(T message) {
+        if (closed) {
+            return false;
+        }
+        switch (policy) {
+            case BLOCK:
+                try {
+                    messages.put(message);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!messages.offer(message)) {
+                    if (messages.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                break;
+            case DISCONNECT:
+                if (!messages.offer(message)) {
+                    dropped.increment();
+                    close();
+                    onDisconnect.run();
+                    return false;
+                }
+                break;
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Queues a control entry, which is written before the messages waiting at that time. It does
+     * not count against the capacity, and the overflow policy never drops it. Only used for
+     * entries that no waiting message must precede.
+     *
+     * @param entry the control entry to queue
+     * @return false if the queue is closed
+     */
+    public boolean offerControl(T entry) {
+        if (closed) {
+            return false;
+        }
+        control.add(entry);
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Discards all queued messages and refuses new ones.
+     */
+    public void close() {
+        closed = true;
+        control.clear();
+        messages.clear();
+    }
+
+    /**
+     * Returns the number of messages currently waiting to be written.
+     *
+     * @return the queue depth
+     */
+    public int depth() {
+        return messages.size() + control.size();
+    }
+
+    /**
+     * Returns the number of messages dropped because the queue was full.
+     *
+     * @return the number of dropped messages
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            writerExecutor.execute(this::drain);
+        }
+    }
+
+    private boolean isEmpty() {
+        return control.isEmpty() && messages.isEmpty();
+    }
+
+    private T poll() {
+        T entry = control.poll();
+        return entry != null ? entry : messages.poll();
+    }
+
+    private boolean canWrite() {
+        BooleanSupplier writable = this.writable;
+        return writable == null || writable.getAsBoolean();
+    }
+
+    private void drain() {
+        try {
+            T message;
+            while (!closed && canWrite() && (message = poll()) != null) {
+                writer.accept(message);
+            }
+        } finally {
+            draining.set(false);
+        }
+        // a message may have arrived, or the connection become writable, after the last check but before the flag was cleared
+        if (!closed && !isEmpty() && canWrite()) {
+            scheduleDrain();
+        }
+    }
+}
@@ -2,8 +2,6 @@ package brokerSystem;
 
 import java.io.*;
 import java.net.*;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 
 /**
  * The PublisherHandler class handles the communication between a Publisher and the Broker in a publish-subscribe system.
@@ -15,11 +13,17 @@ import java.time.format.DateTimeFormatter;
  * 
  */
 public class PublisherHandler implements Runnable {
+    private static final BrokerLog LOG = BrokerLog.get("publisher");
+
     private Socket socket;
     private Broker broker;
     private BufferedReader in;
+    private DataInputStream frameIn;
     private PrintWriter out;
     private String name;
+    private int handle = -1;
+    private String[] pendingCreate;
+    private StringBuilder messageBuilder = new StringBuilder(256);
 
     /**
      * Constructs a PublisherHandler to manage the connection and communication between a Publisher and the Broker.
@@ -28,16 +32,45 @@ public class PublisherHandler implements Runnable {
      * @param broker the Broker managing the publish-subscribe system
      */
     public PublisherHandler(Socket socket, Broker broker) {
+        this(socket, broker, false);
+    }
+
+    /**
+     * Constructs a PublisherHandler for a connection using the text or the binary protocol.
+     * 
+     * @param socket the Socket representing the connection to the Publisher
+     * @param broker the Broker managing the publish-subscribe system
+     * @param binary true if the Publisher speaks the binary protocol of {@link FrameCodec}
+     */
+    public PublisherHandler(Socket socket, Broker broker, boolean binary) {
         this.socket = socket;
         this.broker = broker;
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            if (binary) {
+                frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new PrintWriter(new FrameWriter(socket.getOutputStream()), true);
+            } else {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = new PrintWriter(socket.getOutputStream(), true);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Constructs a PublisherHandler whose replies are written to the given writer instead of a
+     * blocking socket. Used by the non-blocking network engine, which feeds lines in through
+     * {@link #handleMessage(String)}.
+     * 
+     * @param broker the Broker managing the publish-subscribe system
+     * @param out    the writer for sending responses to the Publisher
+     */
+    public PublisherHandler(Broker broker, PrintWriter out) {
+        this.broker = broker;
+        this.out = out;
+    }
+
     /**
      * Listens for messages from the Publisher and processes commands such as creating, deleting, and publishing topics.
      * This method is executed in a separate thread to handle requests concurrently.
@@ -46,82 +79,155 @@ public class PublisherHandler implements Runnable {
     public void run() {
         String message;
         try {
-            while ((message = in.readLine()) != null) {
-            	System.out.println("Recieve and handle the message from publisher " + name + ":" + message);
-                String[] parts = message.split(",", 3);
-                String command = parts[0];
-
-                if (command.equals("create") && parts.length == 3) {
-                    String topicID = parts[1];
-                    String topicName = parts[2];
-                    String authorName = in.readLine();
-                    this.name = authorName;
-                    if (!broker.checkTopicExist(topicID)) {
-                    	broker.handleCreateTopic(topicID, topicName, authorName);
-                        message = message + "," + authorName;
-                        out.println("success");
-                        broker.broadcastToOtherBrokers(message);
-                    } else {
-                    	out.println("error: The topicID is already exists");
-                    }
-                    
-                }
-                
-                else if (command.equals("delete") && parts.length == 2) {
-                	String topicID = parts[1];
-                	if (broker.handleDelete(topicID,name,out)) {
-                		out.println("success");
-                		broker.broadcastToOtherBrokers(message);
-                	}
-                	
-                }
-                else if (command.equals("show") && parts.length == 2) {
-                	String topicID = parts[1];
-                	broker.handleShow(topicID, out,this);
-                }
-                else if (command.equals("publish") && parts.length == 3) {
-                	String topicID = parts[1];
-                	String content = parts[2];
-                	DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM HH:mm:ss");
-                    String currentTime = LocalDateTime.now().format(formatter);
-
-                    String formattedMessage = String.format("%s %s:%s: %s", currentTime, topicID, broker.getTopic(topicID).getName(), content);
-                    String transitMessage = "publish," + topicID + "," + formattedMessage;
-                    if (broker.checkTopicExist(topicID)) {
-                    	if (broker.getTopic(topicID).getAuthorName().equals(name)) {
-                    		broker.handlePublic(topicID, formattedMessage);
-                        	broker.broadcastToOtherBrokers(transitMessage);
-                        	out.println("success");
-                    	}
-                    	else {
-                    		out.println("error: This topic is not belonging to you.");
-                    	}
-                    	
-                    }
-                    else {
-                    	out.println("error: The topic you enter is not exist.");
-                    }
+            if (frameIn != null) {
+                while (true) {
+                    handleCommand(FrameCodec.readFrame(frameIn));
                 }
-                else if (command.equals("disconnect") && parts.length == 1) {
-                   
-                    broker.handlePublisherDisconnect(name);
-                }
-                out.println("Please select command: create, publish, show, delete.");
-                
             }
+            while ((message = in.readLine()) != null) {
+                handleMessage(message);
+            }
+            // the text stream ended cleanly, which needs the same cleanup as a failed read
+            LOG.info("Publisher " + name + " disconnected");
+            handleDisconnect();
         } catch (IOException e) {
-        	System.out.println("Publisher " + name + " disconnected");
-        	broker.handlePublisherDisconnect(this);
+        	LOG.info("Publisher " + name + " disconnected");
+        	handleDisconnect();
         }
     }
     
+    /**
+     * Processes a single command line received from the Publisher. A 'create' command is followed
+     * by a line carrying the author name, so it is held until that line arrives.
+     * 
+     * @param message the command line received from the Publisher
+     */
+    public void handleMessage(String message) {
+        if (pendingCreate != null) {
+            String[] parts = pendingCreate;
+            pendingCreate = null;
+            handleCommand(new String[] {parts[0], parts[1], parts[2], message});
+            return;
+        }
+        String[] parts = message.split(",", 3);
+        if (parts[0].equals("create") && parts.length == 3) {
+            // the author name follows on the next line
+            pendingCreate = parts;
+            return;
+        }
+        handleCommand(parts);
+    }
+    
+    /**
+     * Processes a single command from the Publisher, given as the command name followed by its
+     * arguments, as parsed from a text line or decoded from a binary frame.
+     * 
+     * @param parts the command name followed by its arguments
+     */
+    public void handleCommand(String[] parts) {
+        String command = parts[0];
+    	if (LOG.sampled(BrokerLog.Level.DEBUG)) {
+    	    LOG.debug("Recieve and handle the message from publisher " + name + ":" + String.join(",", parts));
+    	}
+        if (command.equals("publish") && parts.length == 3) {
+            publish(parts[1], parts[2]);
+            out.println("Please select command: create, publish, show, delete.");
+            return;
+        }
+
+        if (command.equals("create") && parts.length == 4) {
+            createTopic(parts[1], parts[2], parts[3]);
+        }
+        else if (command.equals("delete") && parts.length == 2) {
+        	String topicID = parts[1];
+        	if (broker.handleDelete(topicID,name,out)) {
+        		out.println("success");
+        		broker.broadcastToOtherBrokers("delete", topicID);
+        	}
+        	
+        }
+        else if (command.equals("show") && parts.length == 2) {
+        	String topicID = parts[1];
+        	broker.handleShow(topicID, out,this);
+        }
+        else if (command.equals("stats") && parts.length == 1) {
+            out.println(broker.getMetrics().toJson(broker));
+        }
+        else if (command.equals("disconnect") && parts.length == 1) {
+           
+            broker.handlePublisherDisconnect(name);
+        }
+        out.println("Please select command: create, publish, show, delete.");
+    }
+    
+    /**
+     * Publishes a message to a topic of this Publisher. The topic is looked up once and checked
+     * before anything is formatted, and the message text is built in a buffer reused by the
+     * connection, so the only per-message allocations are the message itself and its encoding.
+     * 
+     * @param topicID the ID of the topic
+     * @param content the content of the message
+     */
+    private void publish(String topicID, String content) {
+        Topic topic = broker.getTopic(topicID);
+        if (topic == null) {
+            out.println("error: The topic you enter is not exist.");
+            return;
+        }
+        if (topic.getAuthorHandle() != handle) {
+            out.println("error: This topic is not belonging to you.");
+            return;
+        }
+        StringBuilder builder = messageBuilder;
+        builder.setLength(0);
+        builder.append(CoarseClock.now()).append(' ').append(topicID).append(':').append(topic.getName()).append(": ").append(content);
+        EncodedMessage published = new EncodedMessage(topicID, builder.toString());
+        broker.handlePublic(published);
+        broker.broadcastPublish(published);
+        out.println("success");
+    }
+    
+    /**
+     * Creates a topic on behalf of the Publisher and announces it to the other Brokers.
+     * 
+     * @param topicID    the ID of the topic
+     * @param topicName  the name of the topic
+     * @param authorName the name of the publisher creating the topic
+     */
+    private void createTopic(String topicID, String topicName, String authorName) {
+        setName(authorName);
+        if (TopicTrie.isPattern(topicID)) {
+            out.println("error: The topicID cannot contain + or #, they are wildcards for subscribers");
+        } else if (broker.handleCreateTopic(topicID, topicName, authorName)) {
+            // decided by the Broker, as another Publisher may create the same ID at the same time
+            out.println("success");
+            broker.broadcastToOtherBrokers("create", topicID, topicName, authorName);
+        } else {
+        	out.println("error: The topicID is already exists");
+        }
+    }
+    
+    /**
+     * Cleans up the topics of the Publisher once its connection is closed.
+     */
+    public void handleDisconnect() {
+        broker.handlePublisherDisconnect(this);
+        broker.releaseClientHandle(handle);
+        handle = -1;
+    }
+    
     /**
      * Sets the name of the Publisher associated with this handler.
      * 
      * @param name the name of the Publisher
      */
     public void setName(String name) {
+        if (name != null && name.equals(this.name)) {
+            return;
+        }
+        broker.releaseClientHandle(handle);
     	this.name = name;
+    	this.handle = name == null ? -1 : broker.acquireClientHandle(name);
     }
     
     /**
@@ -132,4 +238,13 @@ public class PublisherHandler implements Runnable {
     public String getName() {
     	return name;
     }
+    
+    /**
+     * Returns the client handle of the Publisher's name.
+     * 
+     * @return the Publisher's handle, or -1 if its name is not known yet
+     */
+    public int getHandle() {
+    	return handle;
+    }
 }
@@ -0,0 +1,248 @@
+package brokerSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The RecentMessages class keeps the last messages published to a topic in memory, so a new
+ * subscription can be served the recent tail without reading the message log. It is a fixed-size
+ * ring indexed by message offset: adding a message writes one slot and readers check the offset
+ * stored in each slot, so neither side takes a lock. The messages are kept as
+ * {@link EncodedMessage}s, whose encodings are shared with live delivery, so replaying them costs
+ * no encoding.
+ * <p>
+ * Besides the number of slots, the ring is bounded by the age of its messages, by its own size in
+ * bytes and by a {@link MemoryBudget} shared by all topics. The size of a message counts its
+ * content and every encoding it holds, including those built while it is kept. When a limit is
+ * exceeded, the topic that adds a message evicts its own oldest messages, so a busy topic cannot
+ * push out the tail of quieter ones. A deleted topic returns its whole share of the budget with
+ * {@link #clear()}.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class RecentMessages {
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private AtomicReferenceArray<Entry> slots;
+    private int capacity;
+    private long maxMillis;
+    private long maxBytes;
+    private MemoryBudget budget;
+    private AtomicLong nextOffset = new AtomicLong();
+    private AtomicLong head = new AtomicLong();
+    private AtomicLong tail = new AtomicLong();
+    private AtomicLong bytes = new AtomicLong();
+    private volatile boolean cleared;
+
+    /**
+     * Constructs an empty RecentMessages ring.
+     *
+     * @param capacity  the maximum number of messages kept
+     * @param maxMillis the maximum age of kept messages, or 0 for none
+     * @param maxBytes  the maximum size of the kept messages in bytes
+     * @param budget    the memory budget shared by the rings of all topics
+     */
+    public RecentMessages(int capacity, long maxMillis, long maxBytes, MemoryBudget budget) {
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.capacity = capacity;
+        this.maxMillis = maxMillis;
+        this.maxBytes = maxBytes;
+        this.budget = budget;
+    }
+
+    /**
+     * Returns a new offset for a message of the topic. Used when the Broker keeps no message log
+     * to number the messages.
+     *
+     * @return the offset of the next message
+     */
+    public long nextOffset() {
+        return nextOffset.getAndIncrement();
+    }
+
+    /**
+     * Adds a published message, replacing the message that was kept in its slot, and evicts old
+     * messages beyond the limits.
+     *
+     * @param message the message, whose offset must be set
+     */
+    public void add(EncodedMessage message) {
+        long offset = message.getOffset();
+        if (offset < 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(offset, now, message);
+        // set first, so an encoding built meanwhile is counted twice rather than not at all
+        message.setEncodingListener(entry::grow);
+        entry.grow(ENTRY_OVERHEAD + 2L * message.getContent().length() + message.getEncodedBytes());
+        Entry replaced = slots.getAndSet(slot(offset), entry);
+        if (replaced != null) {
+            release(replaced);
+        }
+        if (cleared && slots.compareAndSet(slot(offset), entry, null)) {
+            // added while the topic was being deleted
+            release(entry);
+            return;
+        }
+        head.accumulateAndGet(offset + 1, Math::max);
+        evict(now);
+    }
+
+    /**
+     * Drops every kept message and returns their size to the budget. Called when the topic is
+     * deleted; messages added afterwards are dropped at once.
+     */
+    public void clear() {
+        cleared = true;
+        for (int i = 0; i < capacity; i++) {
+            Entry entry = slots.getAndSet(i, null);
+            if (entry != null) {
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the kept messages from the given offset on, up to but not including toOffset. The
+     * result stops at the first message that is no longer or not yet kept.
+     *
+     * @param fromOffset the offset of the first message
+     * @param toOffset   the offset to stop before
+     * @param maxBytes   the size after which no more messages are added
+     * @return the consecutive messages from fromOffset, empty if that message is not kept
+     */
+    public List<EncodedMessage> read(long fromOffset, long toOffset, int maxBytes) {
+        List<EncodedMessage> messages = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        long end = Math.min(toOffset, head.get());
+        long size = 0;
+        for (long offset = fromOffset; offset < end && size < maxBytes; offset++) {
+            Entry entry = slots.get(slot(offset));
+            if (entry == null || entry.offset != offset || expired(entry, now)) {
+                break;
+            }
+            messages.add(entry.message);
+            size += entry.size.get();
+        }
+        return messages;
+    }
+
+    /**
+     * Returns the offset of the oldest message still kept.
+     *
+     * @return the first offset, or the next offset if no message is kept
+     */
+    public long getStartOffset() {
+        long now = System.currentTimeMillis();
+        long end = head.get();
+        for (long offset = Math.max(tail.get(), end - capacity); offset < end; offset++) {
+            Entry entry = slots.get(slot(offset));
+            if (entry != null && entry.offset == offset && !expired(entry, now)) {
+                return offset;
+            }
+        }
+        return end;
+    }
+
+    private void evict(long now) {
+        while (true) {
+            long end = head.get();
+            // offsets before the ring were released when their slots were reused, so they are
+            // skipped at once, e.g. when the first offset continues a message log
+            long oldest = tail.accumulateAndGet(end - capacity, Math::max);
+            if (oldest >= end) {
+                return;
+            }
+            Entry entry = slots.get(slot(oldest));
+            boolean kept = entry != null && entry.offset == oldest;
+            boolean tooLarge = bytes.get() > maxBytes || budget.used.get() > budget.limit;
+            if (kept && !tooLarge && !expired(entry, now)) {
+                return;
+            }
+            if (!kept && !tooLarge) {
+                // not written yet by a concurrent publisher
+                return;
+            }
+            if (tail.compareAndSet(oldest, oldest + 1) && kept && slots.compareAndSet(slot(oldest), entry, null)) {
+                release(entry);
+            }
+        }
+    }
+
+    private void release(Entry entry) {
+        entry.message.setEncodingListener(null);
+        long size = entry.size.getAndSet(-1);
+        if (size > 0) {
+            bytes.addAndGet(-size);
+            budget.used.addAndGet(-size);
+        }
+    }
+
+    private boolean expired(Entry entry, long now) {
+        return maxMillis > 0 && now - entry.timestamp > maxMillis;
+    }
+
+    private int slot(long offset) {
+        return (int) (offset % capacity);
+    }
+
+    /**
+     * One kept message, never replaced once stored in a slot. Its size grows with the encodings
+     * of the message until it is released.
+     */
+    private class Entry {
+        private final long offset;
+        private final long timestamp;
+        private final EncodedMessage message;
+        private final AtomicLong size = new AtomicLong();
+
+        Entry(long offset, long timestamp, EncodedMessage message) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+
+        void grow(long delta) {
+            long current;
+            do {
+                current = size.get();
+                if (current < 0) {
+                    // released, the encoding belongs to a message no longer kept
+                    return;
+                }
+            } while (!size.compareAndSet(current, current + delta));
+            bytes.addAndGet(delta);
+            budget.used.addAndGet(delta);
+        }
+    }
+
+    /**
+     * The memory limit shared by the RecentMessages rings of all topics of a Broker.
+     */
+    public static class MemoryBudget {
+        private final AtomicLong used = new AtomicLong();
+        private final long limit;
+
+        /**
+         * Constructs a MemoryBudget.
+         *
+         * @param limit the total size in bytes the rings may keep
+         */
+        public MemoryBudget(long limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Returns the total size of the messages kept by all rings.
+         *
+         * @return the used size in bytes
+         */
+        public long getUsed() {
+            return used.get();
+        }
+    }
+}
@@ -3,8 +3,14 @@ package brokerSystem;
 
 import java.io.*;
 import java.net.*;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -17,12 +23,24 @@ import java.util.ArrayList;
  * student id:1166053
  */
 public class SubscriberHandler implements Runnable {
+    private static final String PROMPT = "Please select command: list, sub, current, unsub.";
+    private static final int REPLAY_CHUNK_BYTES = 1024 * 1024;
+    private static final BrokerLog LOG = BrokerLog.get("subscriber");
+
     private Socket socket;
     private Broker broker;
     private BufferedReader in;
+    private DataInputStream frameIn;
     private PrintWriter out;
+    private ConnectionWriter writer;
+    private boolean binary;
     private List<String> subscribeTopic;
     private String name;
+    private ReentrantLock writeLock = new ReentrantLock();
+    private OutboundQueue<EncodedMessage> outbound;
+    private Closeable connection;
+    private Map<String, long[]> nextOffsets = new ConcurrentHashMap<>();
+    private Map<String, MessageFilter> filters = new ConcurrentHashMap<>();
     
 
     /**
@@ -32,29 +50,230 @@ public class SubscriberHandler implements Runnable {
      * @param broker the Broker managing the publish-subscribe system
      */
     public SubscriberHandler(Socket socket, Broker broker) {
+        this(socket, broker, false);
+    }
+    
+    /**
+     * Constructs a SubscriberHandler for a connection using the text or the binary protocol.
+     * 
+     * @param socket the Socket representing the connection to the Subscriber
+     * @param broker the Broker managing the publish-subscribe system
+     * @param binary true if the Subscriber speaks the binary protocol of {@link FrameCodec}
+     */
+    public SubscriberHandler(Socket socket, Broker broker, boolean binary) {
         this.socket = socket;
+        this.connection = socket;
         this.broker = broker;
-        subscribeTopic = new ArrayList<>();
+        this.binary = binary;
+        subscribeTopic = new CopyOnWriteArrayList<>();
+        outbound = broker.newOutboundQueue(this::deliver, this::disconnectSlowConsumer);
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            if (binary) {
+                frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                writer = new FrameWriter(socket.getOutputStream());
+            } else {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                writer = new TextWriter(socket.getOutputStream());
+            }
+            out = new PrintWriter(writer, true);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
     
     /**
-     * Sends a published message to the subscriber if the subscriber is subscribed to the given topic.
+     * Constructs a SubscriberHandler whose output goes to the given writer instead of a blocking
+     * socket. Used by the non-blocking network engine, which feeds lines in through
+     * {@link #handleMessage(String)} or decoded frames through {@link #handleCommand(String[])}.
      * 
-     * @param topicID the ID of the topic the message is being published to
-     * @param content the content of the published message
+     * @param broker the Broker managing the publish-subscribe system
+     * @param writer the writer for sending messages to the Subscriber, a FrameWriter for binary connections
      */
-    public void publicMessage(String topicID, String content) {
+    public SubscriberHandler(Broker broker, ConnectionWriter writer) {
+        this.broker = broker;
+        this.writer = writer;
+        this.binary = writer instanceof FrameWriter;
+        this.out = new PrintWriter(writer, true);
+        subscribeTopic = new CopyOnWriteArrayList<>();
+        outbound = broker.newOutboundQueue(this::deliver, this::disconnectSlowConsumer);
+    }
+    
+    /**
+     * Queues a published message for the subscriber. The Broker only calls this for handlers
+     * registered under the topic, so no subscription check is needed here. The message is written
+     * by the Broker's writer threads, so a slow subscriber does not hold up the publisher.
+     * 
+     * @param message the published message
+     */
+    public void publicMessage(EncodedMessage message) {
+        outbound.offer(message);
+    }
 
-    	if (subscribeTopic.contains(topicID)) {
-    		out.println(content);
-    		out.println("Please select command: list, sub, current, unsub.");
-    	}
+    /**
+     * Tells the subscriber about a message its filter rejected. For a topic subscribed from a
+     * start position this moves the tracked offset past the message in order with the queued
+     * messages, so the next message it does receive is not taken as coming after a gap.
+     * 
+     * @param message the published message
+     */
+    public void skipMessage(EncodedMessage message) {
+        if (message.getOffset() >= 0 && nextOffsets.containsKey(message.getTopicID())) {
+            outbound.offer(new Skip(message.getTopicID(), message.getOffset()));
+        }
+    }
+    
+    /**
+     * Writes a queued message to the subscriber. The message and its prompt are written as one
+     * pre-encoded byte array shared with every other subscriber using the same protocol.
+     * <p>
+     * For topics subscribed from a start position, the offsets of logged messages are tracked:
+     * a message at or before one already written is skipped, and a message after a gap is preceded
+     * by the missing messages read from the log. This way the switch from replay to live delivery
+     * neither loses nor repeats messages.
+     * 
+     * @param message the published message
+     */
+    private void deliver(EncodedMessage message) {
+        // A ReentrantLock rather than synchronized lets virtual threads unmount while the write blocks.
+        writeLock.lock();
+        try {
+            if (message instanceof Replay) {
+                long[] next = {((Replay) message).from};
+                nextOffsets.put(message.getTopicID(), next);
+                next[0] = catchUp(message.getTopicID(), next[0], Long.MAX_VALUE);
+                out.println(PROMPT);
+                return;
+            }
+            long offset = message.getOffset();
+            long[] next = offset < 0 ? null : nextOffsets.get(message.getTopicID());
+            if (next != null) {
+                if (offset < next[0]) {
+                    return;
+                }
+                if (offset > next[0]) {
+                    catchUp(message.getTopicID(), next[0], offset);
+                }
+                next[0] = offset + 1;
+            }
+            if (message instanceof Skip) {
+                return;
+            }
+            writer.writeBytes(binary ? message.subscriberFrames() : message.subscriberText());
+            broker.getMetrics().recordWrite(message.getQueuedNanos());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the kept messages of a topic from one offset up to another. Messages still held by
+     * the topic's {@link RecentMessages} are written from memory with their shared encodings,
+     * older ones are read from the message log in sequential chunks that end at toOffset at the
+     * latest, so filling a small gap reads only the missing messages. Each chunk is written to
+     * the subscriber in one piece.
+     * 
+     * @param topicID    the ID of the topic
+     * @param fromOffset the offset of the first message to write
+     * @param toOffset   the offset to stop before
+     * @return the offset after the last message written
+     */
+    private long catchUp(String topicID, long fromOffset, long toOffset) {
+        RecentMessages recent = broker.getRecentMessages(topicID);
+        TopicLog log = null;
+        if (broker.getMessageLog() != null) {
+            try {
+                log = broker.getMessageLog().topic(topicID);
+            } catch (IOException e) {
+                LOG.warn("Could not read the log of topic " + topicID + ": " + e.getMessage());
+            }
+        }
+        MessageFilter filter = filters.get(topicID);
+        Topic topic = broker.getTopic(topicID);
+        String topicName = topic == null ? null : topic.getName();
+        long next = fromOffset;
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        while (next < toOffset) {
+            long before = next;
+            if (recent != null) {
+                for (EncodedMessage message : recent.read(next, toOffset, REPLAY_CHUNK_BYTES)) {
+                    next = message.getOffset() + 1;
+                    if (filter == null || filter.test(new MessageFields(topicID, topicName, message.getContent()))) {
+                        byte[] bytes = binary ? message.subscriberFrames() : message.subscriberText();
+                        chunk.write(bytes, 0, bytes.length);
+                    }
+                }
+            }
+            if (next == before && log != null) {
+                next = Math.max(next, log.getStartOffset());
+                for (LogRecord record : log.read(next, toOffset, REPLAY_CHUNK_BYTES)) {
+                    next = record.getOffset() + 1;
+                    if (filter == null || filter.test(new MessageFields(topicID, topicName, record.getContent()))) {
+                        byte[] bytes = binary ? FrameCodec.encode("message", topicID, record.getContent())
+                                : (record.getContent() + System.lineSeparator()).getBytes(EncodedMessage.TEXT_CHARSET);
+                        chunk.write(bytes, 0, bytes.length);
+                    }
+                }
+            }
+            if (next == before) {
+                // nothing is kept at this offset any more, continue from the oldest message still in memory
+                long oldest = recent == null || log != null ? next : recent.getStartOffset();
+                if (oldest <= next) {
+                    break;
+                }
+                next = oldest;
+                continue;
+            }
+            if (chunk.size() > 0) {
+                writer.writeBytes(chunk.toByteArray());
+                chunk.reset();
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Queues the replay of a topic from the given start position, ahead of any live message of
+     * the topic.
+     * 
+     * @param topicID the ID of the topic
+     * @param start   earliest, latest, recent, an offset, or @ followed by a time as epoch milliseconds or yyyy-MM-ddTHH:mm:ss
+     * @return an error message, or null if the replay was queued or is not needed
+     */
+    private String startReplay(String topicID, String start) {
+        if (start.equals("latest")) {
+            return null;
+        }
+        RecentMessages recent = broker.getRecentMessages(topicID);
+        if (start.equals("recent")) {
+            if (recent == null) {
+                return "error: This topic keeps no recent messages.";
+            }
+            outbound.offerControl(new Replay(topicID, recent.getStartOffset()));
+            return null;
+        }
+        MessageLog messageLog = broker.getMessageLog();
+        if (messageLog == null) {
+            return "error: This broker keeps no message log to replay from.";
+        }
+        try {
+            TopicLog log = messageLog.topic(topicID);
+            long fromOffset;
+            if (start.equals("earliest")) {
+                fromOffset = log.getStartOffset();
+            } else if (start.startsWith("@")) {
+                String time = start.substring(1);
+                fromOffset = log.offsetForTimestamp(time.matches("\\d+") ? Long.parseLong(time)
+                        : LocalDateTime.parse(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            } else {
+                fromOffset = Long.parseLong(start);
+            }
+            outbound.offerControl(new Replay(topicID, fromOffset));
+            return null;
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return "error: The start position must be earliest, latest, recent, an offset or @time.";
+        } catch (IOException e) {
+            return "error: The message log of this topic cannot be read.";
+        }
     }
 
     /**
@@ -64,10 +283,16 @@ public class SubscriberHandler implements Runnable {
      * @param topicID the ID of the topic to be removed
      */
     public void removeTopic(String topicID) {
-    	if (subscribeTopic.contains(topicID)) {
-    		subscribeTopic.remove(topicID);
-    		out.println(topicID + " is deleted by the publisher");
-    		out.println("Please select command: list, sub, current, unsub.");
+    	if (subscribeTopic.remove(topicID)) {
+    		nextOffsets.remove(topicID);
+    		filters.remove(topicID);
+    		writeLock.lock();
+    		try {
+    		    out.println(topicID + " is deleted by the publisher");
+    		    out.println(PROMPT);
+    		} finally {
+    		    writeLock.unlock();
+    		}
     	}
     }
     
@@ -79,63 +304,212 @@ public class SubscriberHandler implements Runnable {
     public void run() {
         try {
             String message;
+            if (frameIn != null) {
+                while (true) {
+                    handleCommand(FrameCodec.readFrame(frameIn));
+                }
+            }
             while ((message = in.readLine()) != null) {
-            	System.out.println("Receive and handle message from subscriber: " + message);
-                String[] parts = message.split(",");
-                String command = parts[0];
-          
-                
-                if (command.equals("list") && parts.length == 2 && parts[1].equals("all")) {
-                    broker.listAllTopic(out);
-                } else if (command.equals("sub") && parts.length == 2) {
-                    String topicID = parts[1];
-                    if (!subscribeTopic.contains(topicID)) {
-                    	if (broker.subTopic(topicID,name)) {
-                        	broker.broadcastToOtherBrokers("add," + topicID + "," + name);
-                        	subscribeTopic.add(topicID);
-                        	out.println("success");
-                       }
-                    	else {
-                    		out.println("error: The topic does not exists");
-                    	}
-                    
+                handleMessage(message);
+            }
+            // the text stream ended cleanly, which needs the same cleanup as a failed read
+            LOG.info("Subscriber " + name + " disconnected.");
+            handleDisconnect();
+        } catch (IOException e) {
+            LOG.info("Subscriber " + name + " disconnected.");
+            handleDisconnect();
+        }
+        
+        
+    }
+    
+    /**
+     * Processes a single command line received from the Subscriber.
+     * 
+     * @param message the command line received from the Subscriber
+     */
+    public void handleMessage(String message) {
+        // at most three parts, so the filter of a 'sub' may contain commas
+        handleCommand(message.split(",", 3));
+    }
+    
+    /**
+     * Processes a single command from the Subscriber, given as the command name followed by its
+     * arguments, as parsed from a text line or decoded from a binary frame.
+     * 
+     * @param parts the command name followed by its arguments
+     */
+    public void handleCommand(String[] parts) {
+    	if (LOG.sampled(BrokerLog.Level.DEBUG)) {
+    	    LOG.debug("Receive and handle message from subscriber: " + String.join(",", parts));
+    	}
+        String command = parts[0];
+  
+        
+        if (command.equals("list") && (parts.length == 2 || parts.length == 3)) {
+            listTopics(parts[1], parts.length == 3 ? parts[2].trim() : "");
+        } else if (command.equals("sub") && (parts.length == 2 || parts.length == 3)) {
+            String topicID = parts[1];
+            if (!subscribeTopic.contains(topicID)) {
+                String error = null;
+                // the option is a start position, a filter after 'where', or both
+                String option = parts.length == 3 ? " " + parts[2].trim() : "";
+                int where = option.indexOf(" where ");
+                String start = (where < 0 ? option : option.substring(0, where)).trim();
+                MessageFilter filter = null;
+                if (where >= 0) {
+                    try {
+                        filter = MessageFilter.compile(option.substring(where + 7));
+                    } catch (IllegalArgumentException e) {
+                        error = "error: " + e.getMessage();
                     }
-                    else {
-                    	out.println("error: You already subscibe this topic.");
+                }
+                if (error != null) {
+                    // reported below
+                } else if (TopicTrie.isPattern(topicID)) {
+                    if (!TopicTrie.isValidPattern(topicID)) {
+                        error = "error: Wildcards must take a whole level, and # must be the last level.";
+                    } else if (!start.isEmpty()) {
+                        error = "error: A start position cannot be used with a wildcard subscription.";
+                    } else if (filter != null) {
+                        error = "error: A filter cannot be used with a wildcard subscription.";
+                    }
+                } else if (!start.isEmpty() && broker.checkTopicExist(topicID)) {
+                    if (filter != null) {
+                        filters.put(topicID, filter);
+                    }
+                    // the replay is queued before the subscription, so it comes before any live message
+                    error = startReplay(topicID, start);
+                    if (error != null) {
+                        filters.remove(topicID);
                     }
-                } else if (command.equals("current")) {
-                	if (subscribeTopic.isEmpty()) {
-                		out.println("Currently you have't subscribed any topic.");
-                	}
-                	else {
-                		broker.listTopic(subscribeTopic, out);
-                	}
-                	
-                } else if (command.equals("unsub")) {
-                	String topicID = parts[1];
-                	if (subscribeTopic.contains(topicID)) {
-                		broker.unsubTopic(topicID,name);
-                		subscribeTopic.remove(topicID);
-                		broker.broadcastToOtherBrokers("unsub,"+topicID + "," + name);
-                		out.println("success");
-                	}
-                	else {
-                		out.println("error: You haven't subscribe this topic");
-                	}
-                } else if (command.equals("disconnect") && parts.length == 1) {
-                    broker.handleSubscriberDisconnect(this,name);
                 }
-                
-                out.println("Please select command: list, sub, current, unsub.");
-            }
+                if (error != null) {
+                    out.println(error);
+                }
+            	else {
+            	    // recorded first, so a delete of the topic during the subscription also clears it here
+            	    subscribeTopic.add(topicID);
+            	    if (broker.subTopic(topicID, name, this, filter)) {
+                	    broker.broadcastToOtherBrokers("add", topicID, name);
+                	    out.println("success");
+            	    }
+            	    else {
+            		    subscribeTopic.remove(topicID);
+            		    nextOffsets.remove(topicID);
+            		    filters.remove(topicID);
+            		    out.println("error: The topic does not exists");
+            	    }
+            	}
             
-        } catch (IOException e) {
-            System.out.println("Subscriber " + name + "disconnected.");
-            broker.handleSubscriberDisconnect(this, name);
+            }
+            else {
+            	out.println("error: You already subscibe this topic.");
+            }
+        } else if (command.equals("current")) {
+        	if (subscribeTopic.isEmpty()) {
+        		out.println("Currently you have't subscribed any topic.");
+        	}
+        	else {
+        		broker.listTopic(subscribeTopic, out);
+        	}
+        	
+        } else if (command.equals("unsub") && parts.length == 2) {
+        	String topicID = parts[1];
+        	if (subscribeTopic.remove(topicID)) {
+        		broker.unsubTopic(topicID, name, this);
+        		nextOffsets.remove(topicID);
+        		filters.remove(topicID);
+        		broker.broadcastToOtherBrokers("unsub", topicID, name);
+        		out.println("success");
+        	}
+        	else {
+        		out.println("error: You haven't subscribe this topic");
+        	}
+        } else if (command.equals("stats") && parts.length == 1) {
+            out.println(broker.getMetrics().toJson(broker));
+        } else if (command.equals("disconnect") && parts.length == 1) {
+            broker.handleSubscriberDisconnect(this,name);
         }
         
-        
+        out.println(PROMPT);
     }
+    
+    /**
+     * Lists a page of topics. The options are an optional page size followed by an optional
+     * 'after topic_id' cursor, as printed at the end of the previous page.
+     * 
+     * @param prefix  'all', or the prefix of the topic IDs to list
+     * @param options the page size and cursor, may be empty
+     */
+    private void listTopics(String prefix, String options) {
+        int limit = 0;
+        String after = null;
+        String[] words = options.isEmpty() ? new String[0] : options.split("\\s+");
+        int next = 0;
+        try {
+            if (next < words.length && !words[next].equals("after")) {
+                limit = Integer.parseInt(words[next++]);
+            }
+        } catch (NumberFormatException e) {
+            limit = -1;
+        }
+        if (next + 1 < words.length && words[next].equals("after")) {
+            after = words[next + 1];
+            next += 2;
+        }
+        if (limit < 0 || next != words.length) {
+            out.println("error: Usage: list {all|prefix} [count] [after topic_id]");
+            return;
+        }
+        broker.listTopics(prefix.equals("all") ? "" : prefix, limit, after, out);
+    }
+    
+    /**
+     * Cleans up the subscriptions of the Subscriber once its connection is closed.
+     */
+    public void handleDisconnect() {
+        outbound.close();
+        broker.handleSubscriberDisconnect(this, name);
+    }
+    
+    /**
+     * Closes the connection of a Subscriber whose outbound queue overflowed. The reading side then
+     * sees the closed connection and cleans up as for any other disconnect.
+     */
+    private void disconnectSlowConsumer() {
+        LOG.warn("Subscriber " + name + " is too slow, disconnecting.");
+        // close the connection itself, the writer may be blocked inside the PrintWriter
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Sets the connection closed when the Subscriber falls too far behind. Needed by the
+     * non-blocking network engine, which has no socket to give to the constructor.
+     * 
+     * @param connection the connection of the Subscriber
+     */
+    public void setConnection(Closeable connection) {
+        this.connection = connection;
+    }
+    
+    /**
+     * Returns the outbound queue of messages waiting to be written to the Subscriber.
+     * 
+     * @return the outbound queue
+     */
+    public OutboundQueue<EncodedMessage> getOutboundQueue() {
+        return outbound;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
     public void setName(String name) {
     	this.name = name;
     }
@@ -143,4 +517,27 @@ public class SubscriberHandler implements Runnable {
     public List<String> getSubscriberTopic() {
     	return subscribeTopic;
     }
+    
+    /**
+     * A queue entry standing for a message the subscriber's filter rejected, which only advances
+     * the tracked offset of its topic.
+     */
+    private static class Skip extends EncodedMessage {
+        Skip(String topicID, long offset) {
+            super(topicID, null);
+            setOffset(offset);
+        }
+    }
+
+    /**
+     * A queue entry asking the writer to replay a topic from its log before further messages.
+     */
+    private static class Replay extends EncodedMessage {
+        private long from;
+
+        Replay(String topicID, long from) {
+            super(topicID, null);
+            this.from = from;
+        }
+    }
 }
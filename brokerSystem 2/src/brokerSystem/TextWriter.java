@@ -0,0 +1,31 @@
+package brokerSystem;
+
+import java.io.*;
+
+/**
+ * The TextWriter class is the output side of a text protocol connection. Buffered text is encoded
+ * and written in one piece on every flush.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class TextWriter extends ConnectionWriter {
+
+    /**
+     * Constructs a TextWriter writing to the given stream.
+     *
+     * @param out the stream of the text connection
+     */
+    public TextWriter(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    protected void writeText() throws IOException {
+        if (text.length() == 0) {
+            return;
+        }
+        out.write(text.toString().getBytes(EncodedMessage.TEXT_CHARSET));
+        text.setLength(0);
+    }
+}
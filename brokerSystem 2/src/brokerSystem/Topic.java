@@ -1,64 +1,113 @@
 package brokerSystem;
 
-import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The Topic class represents a topic in a publish-subscribe system. It contains
  * information about the topic's ID, name, author, and a list of subscribers.
- * It also tracks the number of subscribers to the topic.
+ * It also tracks the number of subscribers to the topic. The topic, its author and its subscribers
+ * are also known by their int handles, see {@link Handles}, so the author check of every publish
+ * compares two ints and the subscriptions are counted per client handle. Subscriptions of many
+ * handler threads may change a topic at the same time, so changing the counts locks the topic.
+ * The messages published to the topic and delivered from it are counted for {@link BrokerMetrics}.
  * 
  * @author Hanzhou Fang
  * student id:1166053
  */
 public class Topic {
 	private String topicID;
+    private int handle;
     private String name;
     private String authorName;
-    private int numSubscribe;
-    private List<String> subscriber;
+    private String listing;
+    private int authorHandle;
+    private volatile int numSubscribe;
+    private IntCounts subscriber;
+    private boolean closed;
+    private RecentMessages recentMessages;
+    private LongAdder messagesIn = new LongAdder();
+    private LongAdder messagesOut = new LongAdder();
 
     /**
      * Constructs a Topic with the specified ID, name, and author.
      * 
-     * @param topicID    the unique identifier for the topic
-     * @param name       the name of the topic
-     * @param authorName the name of the author (publisher) who created the topic
+     * @param topicID      the unique identifier for the topic
+     * @param handle       the handle of the topic ID
+     * @param name         the name of the topic
+     * @param authorName   the name of the author (publisher) who created the topic
+     * @param authorHandle the client handle of the author
      */
-    public Topic(String topicID, String name, String authorName) {
+    public Topic(String topicID, int handle, String name, String authorName, int authorHandle) {
         this.topicID = topicID;
+        this.handle = handle;
         this.name = name;
         this.authorName = authorName;
+        this.authorHandle = authorHandle;
+        this.listing = topicID + " " + name + " " + authorName;
         numSubscribe = 0;
-        subscriber = new ArrayList<>();
+        subscriber = new IntCounts();
     }
     
     /**
      * Adds a subscriber to the topic and increments the subscription count.
      * 
-     * @param name the name of the subscriber to add
+     * @param client the client handle of the subscriber to add
+     * @return false if the topic was closed, as it was deleted
      */
-    public void addSub(String name) {
-    	subscriber.add(name);
+    public synchronized boolean addSub(int client) {
+        if (closed) {
+            return false;
+        }
+    	subscriber.increment(client);
     	numSubscribe++;
+    	return true;
     }
     
     /**
      * Removes a subscriber from the topic and decrements the subscription count.
+     * Nothing changes if the subscriber is not subscribed.
      * 
-     * @param name the name of the subscriber to remove
+     * @param client the client handle of the subscriber to remove
+     * @return true if the subscriber was subscribed
      */
-    public void unsub(String name) {
-    	subscriber.remove(name);
-    	numSubscribe--;
+    public synchronized boolean unsub(int client) {
+    	if (subscriber.decrement(client)) {
+    		numSubscribe--;
+    		return true;
+    	}
+    	return false;
     }
     
     /**
-     * Returns a string that lists the topic's ID, name, and author.
+     * Closes the deleted topic to new subscriptions and removes the ones it holds.
+     * 
+     * @return the client handles of the removed subscriptions, one per subscription
+     */
+    public synchronized int[] close() {
+        closed = true;
+        int[] removed = subscriber.toArray();
+        subscriber = new IntCounts();
+        numSubscribe = 0;
+        return removed;
+    }
+    
+    /**
+     * Returns the number of subscriptions to the topic.
+     * 
+     * @return the subscription count
+     */
+    public int getNumSubscribe() {
+        return numSubscribe;
+    }
+    
+    /**
+     * Returns a string that lists the topic's ID, name, and author. None of them change, so the
+     * string is built once when the topic is created.
      * 
      * @return a string listing the topic's ID, name, and author
      */
     public String listTopic() {
-    	return topicID + " " + name + " " + authorName;
+    	return listing;
     }
     
     /**
@@ -97,9 +146,73 @@ public class Topic {
     public String getAuthorName() {
         return authorName;
     }
+
+    /**
+     * Returns the handle of the topic ID.
+     * 
+     * @return the topic handle
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    /**
+     * Returns the client handle of the author (publisher) who created the topic.
+     * 
+     * @return the author's handle
+     */
+    public int getAuthorHandle() {
+        return authorHandle;
+    }
     
 
 
+    /**
+     * Counts a message published to the topic and the number of Subscribers it was handed to.
+     * 
+     * @param recipients the number of Subscribers the message was queued for
+     */
+    public void recordPublish(int recipients) {
+        messagesIn.increment();
+        messagesOut.add(recipients);
+    }
+
+    /**
+     * Returns the number of messages published to the topic on this Broker or forwarded to it.
+     * 
+     * @return the messages in
+     */
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    /**
+     * Returns the number of messages of the topic queued for local Subscribers.
+     * 
+     * @return the messages out
+     */
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    /**
+     * Returns the ring of recent messages kept for late joiners.
+     * 
+     * @return the recent messages, or null if the topic keeps none
+     */
+    public RecentMessages getRecentMessages() {
+        return recentMessages;
+    }
+
+    /**
+     * Sets the ring of recent messages kept for late joiners.
+     * 
+     * @param recentMessages the recent messages, or null to keep none
+     */
+    public void setRecentMessages(RecentMessages recentMessages) {
+        this.recentMessages = recentMessages;
+    }
+
     @Override
     public String toString() {
         return "TopicID: " + topicID + ", Name: " + name + ", Author: " + authorName;
@@ -0,0 +1,269 @@
+package brokerSystem;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * The TopicLog class is the append-only log of the messages published to one topic. Messages get
+ * consecutive offsets and are stored in a sequence of {@link LogSegment} files in the topic's
+ * directory. A new segment is started when the current one is full or older than the configured
+ * segment time, and whole old segments are deleted by the retention of the {@link MessageLog}.
+ * Only the segment being appended to is memory-mapped, and only while messages arrive, so an idle
+ * topic holds no mapping.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class TopicLog {
+    private MessageLog messageLog;
+    private Path directory;
+    private List<LogSegment> segments = new CopyOnWriteArrayList<>();
+    private volatile LogSegment active;
+    private ReentrantLock appendLock = new ReentrantLock();
+    private CRC32 crc = new CRC32();
+    private int unflushed;
+    private AtomicBoolean flushPending = new AtomicBoolean();
+
+    /**
+     * Opens the log in the given directory, recovering the segments already stored there. No
+     * segment is mapped until the next append.
+     *
+     * @param messageLog the MessageLog holding the configuration
+     * @param directory  the directory of the topic
+     * @throws IOException if the directory or a segment cannot be opened
+     */
+    public TopicLog(MessageLog messageLog, Path directory) throws IOException {
+        this.messageLog = messageLog;
+        this.directory = directory;
+        Files.createDirectories(directory);
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        Collections.sort(baseOffsets);
+        for (long baseOffset : baseOffsets) {
+            segments.add(new LogSegment(directory, baseOffset, messageLog.getSegmentBytes()));
+        }
+        if (segments.isEmpty()) {
+            segments.add(new LogSegment(directory, 0, messageLog.getSegmentBytes()));
+        }
+        active = segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Appends a message to the log. This only copies the message into a mapped file; writing it
+     * to the disk is left to the fsync policy of the {@link MessageLog}.
+     *
+     * @param message the published message
+     * @return the offset of the message
+     * @throws IOException if a new segment is needed and cannot be created
+     */
+    public long append(EncodedMessage message) throws IOException {
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        appendLock.lock();
+        try {
+            long timestamp = System.currentTimeMillis();
+            LogSegment segment = active;
+            long offset = segment.getNextOffset();
+            long segmentMillis = messageLog.getSegmentMillis();
+            boolean expired = segmentMillis > 0 && segment.getSize() > 0 && timestamp - segment.getCreated() >= segmentMillis;
+            if (expired || !segment.append(offset, timestamp, content, crc)) {
+                segment = roll(offset, LogSegment.HEADER_SIZE + content.length);
+                segment.append(offset, timestamp, content, crc);
+            }
+            int fsyncMessages = messageLog.getFsyncMessages();
+            if (fsyncMessages > 0 && ++unflushed >= fsyncMessages) {
+                unflushed = 0;
+                messageLog.scheduleFlush(this);
+            }
+            return offset;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Reads messages from the given offset on, across segments, until the end of the log or until
+     * at least maxBytes bytes of records were read. Reads do not block appends.
+     *
+     * @param fromOffset the offset of the first message to read
+     * @param maxBytes   the number of bytes after which reading stops
+     * @return the messages read, in offset order
+     */
+    public List<LogRecord> read(long fromOffset, int maxBytes) {
+        return read(fromOffset, Long.MAX_VALUE, maxBytes);
+    }
+
+    /**
+     * Reads messages from one offset up to another, across segments, stopping early once at least
+     * maxBytes bytes of records were read. Reads do not block appends.
+     *
+     * @param fromOffset the offset of the first message to read
+     * @param toOffset   the offset to stop before
+     * @param maxBytes   the number of bytes after which reading stops
+     * @return the messages read, in offset order
+     */
+    public List<LogRecord> read(long fromOffset, long toOffset, int maxBytes) {
+        List<LogRecord> records = new ArrayList<>();
+        int read = 0;
+        LogSegment[] snapshot = segments.toArray(new LogSegment[0]);
+        for (int i = 0; i < snapshot.length && read < maxBytes && snapshot[i].getBaseOffset() < toOffset; i++) {
+            if (i + 1 < snapshot.length && snapshot[i + 1].getBaseOffset() <= fromOffset) {
+                continue;
+            }
+            read += snapshot[i].read(fromOffset, toOffset, maxBytes - read, records);
+        }
+        return records;
+    }
+
+    /**
+     * Returns the offset of the first message appended at or after the given time.
+     *
+     * @param timestamp the time in milliseconds since the epoch
+     * @return the offset of the message, or the end offset if every message is older
+     */
+    public long offsetForTimestamp(long timestamp) {
+        for (LogSegment segment : segments) {
+            if (segment.getLastTimestamp() >= timestamp) {
+                long offset = segment.offsetForTimestamp(timestamp);
+                if (offset >= 0) {
+                    return offset;
+                }
+            }
+        }
+        return getEndOffset();
+    }
+
+    /**
+     * Returns the time of the newest message.
+     *
+     * @return the time in milliseconds since the epoch, or 0 if the log is empty
+     */
+    public long getLastTimestamp() {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            long timestamp = segments.get(i).getLastTimestamp();
+            if (timestamp > 0) {
+                return timestamp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the offset of the oldest message still kept.
+     *
+     * @return the first offset
+     */
+    public long getStartOffset() {
+        return segments.get(0).getBaseOffset();
+    }
+
+    /**
+     * Returns the offset the next appended message will get.
+     *
+     * @return the offset after the last message
+     */
+    public long getEndOffset() {
+        return active.getNextOffset();
+    }
+
+    /**
+     * Writes all changed segments to the disk.
+     */
+    public void flush() {
+        flushPending.set(false);
+        for (LogSegment segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Marks the log as waiting for a flush.
+     *
+     * @return false if a flush was already pending
+     */
+    public boolean markFlushPending() {
+        return flushPending.compareAndSet(false, true);
+    }
+
+    /**
+     * Releases the mapping of the segment being appended to if no message arrived for the given
+     * time. The next message maps it again.
+     *
+     * @param idleMillis the time without messages after which the mapping is released
+     * @param now        the current time in milliseconds since the epoch
+     * @throws IOException if the segment file cannot be truncated
+     */
+    public void unmapIdle(long idleMillis, long now) throws IOException {
+        appendLock.lock();
+        try {
+            LogSegment segment = active;
+            if (segment.isMapped() && now - segment.getLastTimestamp() >= idleMillis) {
+                segment.unmap();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while the log is larger than retentionBytes or their newest
+     * message is older than retentionMillis. The segment being appended to is always kept.
+     *
+     * @param retentionBytes  the size limit of the log, or 0 for none
+     * @param retentionMillis the age limit of messages, or 0 for none
+     * @param now             the current time in milliseconds since the epoch
+     * @throws IOException if a segment cannot be deleted
+     */
+    public void enforceRetention(long retentionBytes, long retentionMillis, long now) throws IOException {
+        long total = 0;
+        for (LogSegment segment : segments) {
+            total += segment.getSize();
+        }
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.get(0);
+            boolean tooLarge = retentionBytes > 0 && total > retentionBytes;
+            boolean tooOld = retentionMillis > 0 && now - oldest.getLastTimestamp() > retentionMillis;
+            if (!tooLarge && !tooOld) {
+                break;
+            }
+            segments.remove(0);
+            total -= oldest.getSize();
+            oldest.delete();
+        }
+    }
+
+    /**
+     * Deletes all segments and the directory of the log.
+     *
+     * @throws IOException if a file cannot be deleted
+     */
+    public void delete() throws IOException {
+        for (LogSegment segment : segments) {
+            segment.delete();
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    private LogSegment roll(long baseOffset, int recordLength) throws IOException {
+        active.unmap();
+        LogSegment segment = new LogSegment(directory, baseOffset, Math.max(messageLog.getSegmentBytes(), recordLength));
+        segments.add(segment);
+        active = segment;
+        if (messageLog.getFsyncMillis() > 0 || messageLog.getFsyncMessages() > 0) {
+            messageLog.scheduleFlush(this);
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,162 @@
+package brokerSystem;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The TopicTrie class indexes wildcard subscriptions by the levels of their topic filter. Topic
+ * IDs are hierarchical, with levels separated by '/'. In a filter, '+' matches exactly one level
+ * and '#', only allowed as the last level, matches any number of levels including none, so
+ * "sensors/#" matches "sensors" and "sensors/eu/berlin/temp", and "sensors/+/temp" matches
+ * "sensors/eu/temp". Matching a topic walks the trie once per level, so its cost depends on the
+ * depth of the topic and not on the number of subscriptions.
+ * <p>
+ * Matching never locks and may run concurrently with adding and removing filters.
+ *
+ * @param <T> the type of the values stored for each filter
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class TopicTrie<T> {
+    private Node<T> root = new Node<>();
+    private volatile int size;
+
+    /**
+     * Returns true if the topic filter contains a wildcard level.
+     *
+     * @param filter the topic filter
+     * @return true if the filter is a wildcard filter
+     */
+    public static boolean isPattern(String filter) {
+        return filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0;
+    }
+
+    /**
+     * Checks that every wildcard of a filter takes up a whole level and that '#' only appears as
+     * the last level.
+     *
+     * @param filter the topic filter
+     * @return true if the filter is well-formed
+     */
+    public static boolean isValidPattern(String filter) {
+        String[] levels = filter.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals("#") && i == levels.length - 1 || level.equals("+")) {
+                continue;
+            }
+            if (isPattern(level)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a value under a topic filter.
+     *
+     * @param filter the topic filter
+     * @param value  the value, e.g. the subscriber
+     */
+    public synchronized void add(String filter, T value) {
+        Node<T> node = root;
+        for (String level : filter.split("/", -1)) {
+            node = node.children.computeIfAbsent(level, k -> new Node<>());
+        }
+        if (node.values.add(value)) {
+            size++;
+        }
+    }
+
+    /**
+     * Removes a value from a topic filter, dropping trie nodes that are no longer used.
+     *
+     * @param filter the topic filter
+     * @param value  the value to remove
+     */
+    public synchronized void remove(String filter, T value) {
+        String[] levels = filter.split("/", -1);
+        Node<?>[] path = new Node<?>[levels.length + 1];
+        Node<T> node = root;
+        path[0] = node;
+        for (int i = 0; i < levels.length; i++) {
+            node = node.children.get(levels[i]);
+            if (node == null) {
+                return;
+            }
+            path[i + 1] = node;
+        }
+        if (!node.values.remove(value)) {
+            return;
+        }
+        size--;
+        for (int i = levels.length; i > 0 && path[i].values.isEmpty() && path[i].children.isEmpty(); i--) {
+            path[i - 1].children.remove(levels[i - 1]);
+        }
+    }
+
+    /**
+     * Calls the action for every value stored under a filter matching the topic. A value stored
+     * under several matching filters is passed once per filter.
+     *
+     * @param topicID the ID of the published topic
+     * @param action  the action to call
+     */
+    public void match(String topicID, Consumer<T> action) {
+        if (size == 0) {
+            return;
+        }
+        match(root, topicID.split("/", -1), 0, action);
+    }
+
+    /**
+     * Returns true if at least one filter matches the topic.
+     *
+     * @param topicID the ID of the published topic
+     * @return true if a filter matches
+     */
+    public boolean matches(String topicID) {
+        boolean[] found = new boolean[1];
+        match(topicID, value -> found[0] = true);
+        return found[0];
+    }
+
+    /**
+     * Returns true if no filter is stored.
+     *
+     * @return true if the trie is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void match(Node<T> node, String[] levels, int depth, Consumer<T> action) {
+        Node<T> multiLevel = node.children.get("#");
+        if (multiLevel != null) {
+            multiLevel.values.forEach(action);
+        }
+        if (depth == levels.length) {
+            node.values.forEach(action);
+            return;
+        }
+        Node<T> exact = node.children.get(levels[depth]);
+        if (exact != null) {
+            match(exact, levels, depth + 1, action);
+        }
+        Node<T> singleLevel = node.children.get("+");
+        if (singleLevel != null) {
+            match(singleLevel, levels, depth + 1, action);
+        }
+    }
+
+    /**
+     * One level of the trie: the filters ending here and the next levels.
+     */
+    private static class Node<T> {
+        private final Map<String, Node<T>> children = new ConcurrentHashMap<>();
+        private final Set<T> values = ConcurrentHashMap.newKeySet();
+    }
+}
@@ -0,0 +1,85 @@
+package check;
+
+import directoryService.DirectoryService;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The CheckSupport class holds what the checks share: starting a Directory Service in the same
+ * JVM, waiting for a condition, and counting failed expectations.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+class CheckSupport {
+    private static int failures;
+
+    /**
+     * Starts a Directory Service on a daemon thread and waits until it accepts connections.
+     *
+     * @param port the port of the Directory Service
+     * @throws Exception if it does not start within five seconds
+     */
+    static void startDirectory(int port) throws Exception {
+        DirectoryService directoryService = new DirectoryService();
+        Thread thread = new Thread(() -> directoryService.startDirectoryService(port), "directory-service");
+        thread.setDaemon(true);
+        thread.start();
+        for (int attempt = 0; ; attempt++) {
+            try (Socket socket = new Socket("localhost", port);
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                out.println("query");
+                return;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Waits until a condition holds.
+     *
+     * @param condition the condition
+     * @param millis    the longest time to wait
+     * @return true if the condition held in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static boolean await(BooleanSupplier condition, long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Prints the result of one expectation and counts it if it failed.
+     *
+     * @param passed      true if the expectation was met
+     * @param description what was expected
+     */
+    static synchronized void expect(boolean passed, String description) {
+        System.err.println((passed ? "ok     " : "FAILED ") + description);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    /**
+     * Exits with status 1 if any expectation failed, 0 otherwise.
+     */
+    static synchronized void exit() {
+        System.err.println(failures == 0 ? "All checks passed." : failures + " checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,241 @@
+package check;
+
+import brokerSystem.Broker;
+import brokerSystem.Handles;
+import brokerSystem.SubscriberHandler;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ConcurrencyCheck class checks the Broker's shared state under concurrent handlers. While
+ * two Publishers publish to their topics, several Subscribers keep subscribing and unsubscribing
+ * the same topics, and several Publishers race to create and delete one shared topic ID. Once
+ * they are done, a Subscriber that stayed subscribed must have received every message exactly
+ * once, every topic must count exactly the Subscribers still subscribed, and neither the topic
+ * catalog, the author index nor a Subscriber may still hold the shared topic. The same is checked
+ * for the thread-per-connection and the non-blocking network engine, and once every client has
+ * disconnected, no client name may still hold a handle. Acquiring names from {@link Handles} on
+ * many threads at once must give every name one handle, which is freed by its last release.
+ * <p>
+ * Usage: java -cp out check.ConcurrencyCheck [port]
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class ConcurrencyCheck {
+    private static final String SHARED_TOPIC = "check/shared";
+    private static final int PUBLISHERS = 2;
+    private static final int TOPICS_PER_PUBLISHER = 2;
+    private static final int MESSAGES = 2000;
+    private static final int CHURNERS = 6;
+    private static final int CREATORS = 3;
+    private static final int ROUNDS = 50;
+    private static final int NAMES = 1000;
+    private static final int INTERN_THREADS = 8;
+
+    /**
+     * Runs the check, exiting with status 1 if it fails.
+     *
+     * @param args an optional first port; the check uses the next 20 ports
+     * @throws Exception if the Broker cannot be started or reached
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18200;
+        // the in-process Broker logs every connection to System.out
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        checkHandles();
+        run(port, false);
+        run(port + 10, true);
+        CheckSupport.exit();
+    }
+
+    private static void checkHandles() throws Exception {
+        Handles handles = new Handles();
+        ExecutorService threads = Executors.newFixedThreadPool(INTERN_THREADS);
+        List<Future<int[]>> results = new ArrayList<>();
+        for (int t = 0; t < INTERN_THREADS; t++) {
+            int first = t;
+            results.add(threads.submit(() -> {
+                int[] interned = new int[NAMES];
+                // each thread interns the names in another order
+                for (int i = 0; i < NAMES; i++) {
+                    int name = (first * 131 + i) % NAMES;
+                    interned[name] = handles.acquire("name-" + name);
+                }
+                return interned;
+            }));
+        }
+        int[] expected = results.get(0).get();
+        boolean same = true;
+        for (Future<int[]> result : results) {
+            int[] interned = result.get();
+            for (int i = 0; i < NAMES; i++) {
+                same &= interned[i] == expected[i] && ("name-" + i).equals(handles.name(interned[i]));
+            }
+        }
+        CheckSupport.expect(same, "handles: every thread got the same handle for a name, naming it back");
+        CheckSupport.expect(handles.size() == NAMES, "handles: " + handles.size() + " handles for " + NAMES + " names");
+        List<Future<?>> releases = new ArrayList<>();
+        for (int t = 0; t < INTERN_THREADS; t++) {
+            releases.add(threads.submit(() -> {
+                for (int i = 0; i < NAMES; i++) {
+                    handles.release(expected[i]);
+                }
+            }));
+        }
+        for (Future<?> release : releases) {
+            release.get();
+        }
+        threads.shutdown();
+        CheckSupport.expect(handles.size() == 0 && handles.name(expected[0]) == null, "handles: released by every holder, no name is held");
+        int reused = handles.acquire("name-new");
+        CheckSupport.expect(reused < NAMES, "handles: a new name reuses a freed handle");
+    }
+
+    private static void run(int directoryPort, boolean nio) throws Exception {
+        String mode = nio ? "nio" : "thread";
+        int port = directoryPort + 1;
+        CheckSupport.startDirectory(directoryPort);
+        Broker broker = new Broker(port);
+        if (nio) {
+            broker.startNioBroker("localhost", directoryPort, 2);
+        } else {
+            broker.startBroker("localhost", directoryPort);
+        }
+
+        List<FrameClient> clients = new ArrayList<>();
+        List<FrameClient> publishers = new ArrayList<>();
+        List<String> topics = new ArrayList<>();
+        boolean created = true;
+        for (int p = 0; p < PUBLISHERS; p++) {
+            FrameClient publisher = connect(clients, port, "PUBLISHER", "check-pub-" + p);
+            publishers.add(publisher);
+            for (int t = 0; t < TOPICS_PER_PUBLISHER; t++) {
+                String topicID = "check/c" + p + "-" + t;
+                created &= "success".equals(publisher.request("create", topicID, "topic " + t, "check-pub-" + p));
+                topics.add(topicID);
+            }
+        }
+        FrameClient stable = connect(clients, port, "SUBSCRIBER", "check-stable");
+        for (String topicID : topics) {
+            created &= "success".equals(stable.request("sub", topicID));
+        }
+        CheckSupport.expect(created, mode + ": topics created and subscribed");
+
+        ExecutorService threads = Executors.newCachedThreadPool();
+        List<Future<Boolean>> tasks = new ArrayList<>();
+        for (int p = 0; p < PUBLISHERS; p++) {
+            FrameClient publisher = publishers.get(p);
+            List<String> own = topics.subList(p * TOPICS_PER_PUBLISHER, (p + 1) * TOPICS_PER_PUBLISHER);
+            tasks.add(threads.submit(() -> {
+                for (int i = 0; i < MESSAGES; i++) {
+                    publisher.send("publish", own.get(i % own.size()), "message " + i);
+                }
+                return true;
+            }));
+        }
+        AtomicInteger sharedCreated = new AtomicInteger();
+        for (int c = 0; c < CHURNERS; c++) {
+            FrameClient churner = connect(clients, port, "SUBSCRIBER", "check-churn-" + c);
+            boolean staySubscribed = c % 2 == 0;
+            tasks.add(threads.submit(churn(churner, topics, staySubscribed)));
+        }
+        for (int c = 0; c < CREATORS; c++) {
+            String name = "check-creator-" + c;
+            FrameClient creator = connect(clients, port, "PUBLISHER", name);
+            tasks.add(threads.submit(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    if ("success".equals(creator.request("create", SHARED_TOPIC, "shared", name))) {
+                        sharedCreated.incrementAndGet();
+                        if (!"success".equals(creator.request("delete", SHARED_TOPIC))) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }));
+        }
+        boolean completed = true;
+        for (Future<Boolean> task : tasks) {
+            completed &= task.get();
+        }
+        threads.shutdown();
+        CheckSupport.expect(completed, mode + ": every sub, unsub and delete of an own topic succeeded");
+        CheckSupport.expect(sharedCreated.get() > 0, mode + ": the shared topic was created " + sharedCreated.get() + " times");
+
+        int total = PUBLISHERS * MESSAGES;
+        CheckSupport.expect(CheckSupport.await(() -> stable.messages() == total, 30000),
+                mode + ": subscriber received " + stable.messages() + " of " + total + " messages");
+        Thread.sleep(500);
+        CheckSupport.expect(stable.messages() == total, mode + ": no message was received twice");
+        boolean counted = true;
+        for (String topicID : topics) {
+            counted &= broker.getTopic(topicID).getNumSubscribe() == 1 + (CHURNERS + 1) / 2;
+        }
+        CheckSupport.expect(counted, mode + ": every topic counts exactly the subscribers still subscribed");
+        CheckSupport.expect(broker.getTopic(SHARED_TOPIC) == null && broker.getTopicCount() == topics.size(),
+                mode + ": the shared topic is gone from the catalog");
+        boolean unindexed = true;
+        for (int c = 0; c < CREATORS; c++) {
+            unindexed &= broker.getAuthorTopics(broker.getClientHandle("check-creator-" + c)).isEmpty();
+        }
+        CheckSupport.expect(unindexed, mode + ": the author index holds no deleted topic");
+        boolean unsubscribed = true;
+        for (SubscriberHandler handler : broker.getSubscribers()) {
+            unsubscribed &= !handler.getSubscriberTopic().contains(SHARED_TOPIC);
+        }
+        CheckSupport.expect(unsubscribed, mode + ": no subscriber still holds the shared topic");
+        for (FrameClient client : clients) {
+            client.close();
+        }
+        CheckSupport.expect(CheckSupport.await(() -> {
+            boolean freed = broker.getClientHandle("check-stable") < 0;
+            for (int c = 0; c < CHURNERS; c++) {
+                freed &= broker.getClientHandle("check-churn-" + c) < 0;
+            }
+            for (int p = 0; p < PUBLISHERS; p++) {
+                freed &= broker.getClientHandle("check-pub-" + p) < 0;
+            }
+            return freed;
+        }, 10000), mode + ": every disconnected client's handle was freed");
+    }
+
+    /**
+     * Subscribes to and unsubscribes from every topic, and the shared topic while it may be
+     * created and deleted, for a number of rounds.
+     */
+    private static Callable<Boolean> churn(FrameClient churner, List<String> topics, boolean staySubscribed) {
+        return () -> {
+            boolean succeeded = true;
+            for (int round = 0; round < ROUNDS; round++) {
+                for (String topicID : topics) {
+                    succeeded &= "success".equals(churner.request("sub", topicID));
+                    succeeded &= "success".equals(churner.request("unsub", topicID));
+                }
+                // may fail while the topic does not exist, or be deleted while subscribed
+                if ("success".equals(churner.request("sub", SHARED_TOPIC))) {
+                    churner.request("unsub", SHARED_TOPIC);
+                }
+            }
+            if (staySubscribed) {
+                for (String topicID : topics) {
+                    succeeded &= "success".equals(churner.request("sub", topicID));
+                }
+            }
+            return succeeded;
+        };
+    }
+
+    private static FrameClient connect(List<FrameClient> clients, int port, String clientType, String name) throws IOException {
+        FrameClient client = new FrameClient(port, clientType, name, 0, true);
+        clients.add(client);
+        return client;
+    }
+}
@@ -0,0 +1,150 @@
+package check;
+
+import brokerSystem.FrameCodec;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The FrameClient class is a minimal Publisher or Subscriber speaking the binary protocol of
+ * {@link FrameCodec}, used by the checks to drive a Broker without the interactive clients. A
+ * reader thread collects the replies and counts the messages received per topic; a client created
+ * without a reader never reads, like a Subscriber that has stopped consuming.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+class FrameClient implements Closeable {
+    private static final String PROMPT = "Please select command";
+    private static final String DELETED = " is deleted by the publisher";
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+    private final Map<String, AtomicLong> messages = new ConcurrentHashMap<>();
+    private final AtomicLong received = new AtomicLong();
+    private volatile boolean disconnected;
+
+    /**
+     * Connects to a Broker and sends the handshake.
+     *
+     * @param port          the port of the Broker on localhost
+     * @param clientType    PUBLISHER or SUBSCRIBER
+     * @param name          the client name
+     * @param receiveBuffer the socket receive buffer size, or 0 for the default
+     * @param read          false to never read from the connection
+     * @throws IOException if the Broker cannot be reached
+     */
+    FrameClient(int port, String clientType, String name, int receiveBuffer, boolean read) throws IOException {
+        socket = new Socket();
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+        socket.connect(new InetSocketAddress("localhost", port));
+        out = new BufferedOutputStream(socket.getOutputStream());
+        FrameCodec.writeHandshake(out, clientType, name);
+        if (read) {
+            Thread reader = new Thread(this::read, "check-reader-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Sends one frame.
+     *
+     * @param parts the command name followed by its arguments
+     * @throws IOException if the connection is closed
+     */
+    synchronized void send(String... parts) throws IOException {
+        out.write(FrameCodec.encode(parts));
+        out.flush();
+    }
+
+    /**
+     * Sends a command and waits for its reply, skipping the prompts and notices.
+     *
+     * @param parts the command name followed by its arguments
+     * @return the reply, or null if none arrived within 10 seconds
+     * @throws IOException          if the connection is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    String request(String... parts) throws IOException, InterruptedException {
+        send(parts);
+        return awaitReply(10000);
+    }
+
+    /**
+     * Waits for the next reply that is not a prompt or the notice of a deleted topic.
+     *
+     * @param millis the longest time to wait
+     * @return the reply, or null if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    String awaitReply(long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        String reply;
+        do {
+            reply = replies.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } while (reply != null && (reply.startsWith(PROMPT) || reply.endsWith(DELETED)));
+        return reply;
+    }
+
+    /**
+     * Returns the number of messages received for a topic.
+     *
+     * @param topicID the ID of the topic
+     * @return the number of messages
+     */
+    long messages(String topicID) {
+        AtomicLong count = messages.get(topicID);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Returns the number of messages received for all topics.
+     *
+     * @return the number of messages
+     */
+    long messages() {
+        return received.get();
+    }
+
+    /**
+     * Returns true once the Broker has closed the connection.
+     *
+     * @return true if the reader saw the end of the stream
+     */
+    boolean isDisconnected() {
+        return disconnected;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void read() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                String[] frame = FrameCodec.readFrame(in);
+                if (frame[0].equals("reply") && frame.length > 1) {
+                    replies.add(frame[1]);
+                } else if (frame[0].equals("message") && frame.length > 2) {
+                    messages.computeIfAbsent(frame[1], topic -> new AtomicLong()).incrementAndGet();
+                    received.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            disconnected = true;
+        }
+    }
+}
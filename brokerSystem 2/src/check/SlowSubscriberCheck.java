@@ -0,0 +1,143 @@
+package check;
+
+import brokerSystem.Broker;
+import brokerSystem.OutboundQueue;
+import brokerSystem.SubscriberHandler;
+import brokerSystem.Topic;
+
+import java.io.*;
+
+/**
+ * The SlowSubscriberCheck class checks that a Subscriber that stops reading cannot stall a Broker
+ * on the non-blocking network engine. Two Publishers and three Subscribers share one event loop,
+ * and the outbound queues use the default BLOCK policy. The first Publisher sends far more than
+ * the queues and socket buffers of the slow Subscriber hold. Its connection must be held back,
+ * with the slow Subscriber's queue staying within its bound, while the second Publisher and its
+ * Subscriber carry on and a new client is still answered. Once the slow Subscriber goes away, the
+ * first Publisher must continue, and its other Subscriber must receive every message.
+ * <p>
+ * This is run with messages delivered on the event loop and with the
+ * {@link brokerSystem.Dispatcher}.
+ * <p>
+ * Usage: java -cp out check.SlowSubscriberCheck [port]
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class SlowSubscriberCheck {
+    private static final String SLOW_TOPIC = "check/slow";
+    private static final int MESSAGES = 20000;
+    private static final int OTHER_MESSAGES = 1000;
+    private static final int PAYLOAD_BYTES = 1000;
+    private static final int CAPACITY = 64;
+
+    /**
+     * Runs the check, exiting with status 1 if it fails.
+     *
+     * @param args an optional first port; the check uses the next 20 ports
+     * @throws Exception if the Broker cannot be started or reached
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18100;
+        // the in-process Broker logs every connection to System.out
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        run(port, 0);
+        run(port + 10, 2);
+        CheckSupport.exit();
+    }
+
+    private static void run(int directoryPort, int dispatchThreads) throws Exception {
+        String mode = dispatchThreads == 0 ? "nio" : "nio, " + dispatchThreads + " dispatcher threads";
+        int port = directoryPort + 1;
+        CheckSupport.startDirectory(directoryPort);
+        Broker broker = new Broker(port);
+        broker.setOutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.BLOCK);
+        broker.setDispatcher(dispatchThreads, 16, 0);
+        broker.startNioBroker("localhost", directoryPort, 1);
+        String otherTopic = otherShardTopic(Math.max(1, dispatchThreads));
+
+        FrameClient publisher = new FrameClient(port, "PUBLISHER", "check-pub", 0, true);
+        FrameClient otherPublisher = new FrameClient(port, "PUBLISHER", "check-other-pub", 0, true);
+        FrameClient fast = new FrameClient(port, "SUBSCRIBER", "check-fast", 0, true);
+        FrameClient other = new FrameClient(port, "SUBSCRIBER", "check-other", 0, true);
+        FrameClient slow = new FrameClient(port, "SUBSCRIBER", "check-slow", 4096, false);
+        CheckSupport.expect("success".equals(publisher.request("create", SLOW_TOPIC, "slow", "check-pub"))
+                && "success".equals(otherPublisher.request("create", otherTopic, "other", "check-other-pub")), mode + ": topics created");
+        CheckSupport.expect("success".equals(fast.request("sub", SLOW_TOPIC))
+                && "success".equals(other.request("sub", otherTopic)), mode + ": subscribed");
+        slow.send("sub", SLOW_TOPIC);
+        Topic topic = broker.getTopic(SLOW_TOPIC);
+        CheckSupport.expect(CheckSupport.await(() -> topic.getNumSubscribe() == 2, 10000), mode + ": slow subscriber subscribed");
+        SubscriberHandler slowHandler = null;
+        for (SubscriberHandler handler : broker.getSubscribers()) {
+            if (handler.getName().equals("check-slow")) {
+                slowHandler = handler;
+            }
+        }
+        OutboundQueue<?> slowQueue = slowHandler.getOutboundQueue();
+
+        Thread publishing = publish(publisher, SLOW_TOPIC, MESSAGES);
+        CheckSupport.expect(CheckSupport.await(() -> slowQueue.depth() >= CAPACITY, 30000), mode + ": slow subscriber's queue filled up");
+        // the socket buffers may take in most of what the publisher sends, so the check is that the
+        // Broker stops reading: its other subscriber then stops receiving short of all messages
+        long delivered;
+        do {
+            delivered = fast.messages(SLOW_TOPIC);
+            Thread.sleep(1000);
+        } while (fast.messages(SLOW_TOPIC) != delivered);
+        CheckSupport.expect(delivered < MESSAGES, mode + ": publisher is held back by the slow subscriber after " + delivered + " messages");
+        // one message beyond the bound per paused connection
+        CheckSupport.expect(slowQueue.depth() <= CAPACITY + 1, mode + ": slow subscriber's queue holds " + slowQueue.depth() + " messages");
+
+        Thread otherPublishing = publish(otherPublisher, otherTopic, OTHER_MESSAGES);
+        CheckSupport.expect(CheckSupport.await(() -> other.messages(otherTopic) == OTHER_MESSAGES, 30000),
+                mode + ": another publisher on the same event loop got through");
+        otherPublishing.join();
+        FrameClient probe = new FrameClient(port, "SUBSCRIBER", "check-probe", 0, true);
+        CheckSupport.expect(probe.request("list", "all") != null, mode + ": event loop answers a new client");
+
+        slow.close();
+        publishing.join(60000);
+        CheckSupport.expect(!publishing.isAlive(), mode + ": publisher continued once the slow subscriber left");
+        CheckSupport.expect(CheckSupport.await(() -> fast.messages(SLOW_TOPIC) == MESSAGES, 30000),
+                mode + ": fast subscriber received all " + MESSAGES + " messages");
+        for (FrameClient client : new FrameClient[] {probe, other, fast, otherPublisher, publisher}) {
+            client.close();
+        }
+    }
+
+    private static Thread publish(FrameClient publisher, String topicID, int messages) {
+        String payload = "x".repeat(PAYLOAD_BYTES);
+        Thread thread = new Thread(() -> {
+            try {
+                for (int i = 0; i < messages; i++) {
+                    publisher.send("publish", topicID, payload);
+                }
+            } catch (IOException e) {
+                System.err.println("Publishing to " + topicID + " failed: " + e.getMessage());
+            }
+        }, "check-publisher-" + topicID);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Returns a topic ID on another dispatcher shard than the slow topic, as a blocked shard holds
+     * up all its topics. Uses the shard assignment of the Dispatcher.
+     */
+    private static String otherShardTopic(int shards) {
+        for (int i = 0; ; i++) {
+            String topicID = "check/other" + i;
+            if (shards == 1 || shard(topicID, shards) != shard(SLOW_TOPIC, shards)) {
+                return topicID;
+            }
+        }
+    }
+
+    private static int shard(String topicID, int shards) {
+        int hash = topicID.hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, shards);
+    }
+}
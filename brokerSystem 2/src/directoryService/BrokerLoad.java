@@ -0,0 +1,62 @@
+package directoryService;
+
+/**
+ * The BrokerLoad class holds the last load a Broker reported to the Directory Service: its
+ * number of client connections, the messages it handled per second and the messages waiting in
+ * its queues. Between two reports, every client the Directory Service sends to the Broker is
+ * counted as one more connection, so clients arriving together are not all sent to the same
+ * Broker before it reports again.
+ *
+ * @author Hanzhou Fang
+ * student id:1166053
+ */
+public class BrokerLoad {
+    private int connections;
+    private long messageRate;
+    private long queueDepth;
+    private long updatedMillis;
+
+    /**
+     * Constructs the load of a newly registered Broker, which has no clients yet.
+     */
+    public BrokerLoad() {
+        this.updatedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Replaces the load with a new report of the Broker.
+     *
+     * @param connections the number of connected Publishers and Subscribers
+     * @param messageRate the messages in and out per second
+     * @param queueDepth  the messages waiting to be delivered
+     */
+    public synchronized void update(int connections, long messageRate, long queueDepth) {
+        this.connections = connections;
+        this.messageRate = messageRate;
+        this.queueDepth = queueDepth;
+        this.updatedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Counts a client sent to the Broker until its next report.
+     */
+    public synchronized void assigned() {
+        connections++;
+    }
+
+    public synchronized int getConnections() {
+        return connections;
+    }
+
+    public synchronized long getMessageRate() {
+        return messageRate;
+    }
+
+    public synchronized long getQueueDepth() {
+        return queueDepth;
+    }
+
+    public synchronized long getUpdatedMillis() {
+        return updatedMillis;
+    }
+}
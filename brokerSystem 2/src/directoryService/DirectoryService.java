@@ -3,6 +3,12 @@ package directoryService;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+import brokerSystem.ConnectionThreads;
 
 
 
@@ -15,17 +21,25 @@ import java.util.*;
  * student id:1166053
  */
 public class DirectoryService {
-	private Map<Integer,String[]> brokerList = new HashMap<>();
+	private Map<Integer,String[]> brokerList = new ConcurrentSkipListMap<>();
+	private Map<Integer, BrokerLoad> brokerLoads = new ConcurrentHashMap<>();
+	private long loadStaleMillis = Long.getLong("directory.loadStaleMillis", 5000);
+	private long brokerExpiryMillis = Long.getLong("directory.brokerExpiryMillis", 15000);
 	private int brokerID = 1;
+	private ThreadFactory threadFactory = ConnectionThreads.platform();
 
 	 /**
      * The main method starts the Directory Service by specifying the port number.
      * 
-     * @param args command-line arguments where args[0] is the port number for the Directory Service
+     * @param args command-line arguments where args[0] is the port number for the Directory Service,
+     *             and an optional args[1] of "virtual" handles each connection on a virtual thread
      */
 	public static void main(String[] args) {
 		int port = Integer.parseInt(args[0]);
 		DirectoryService directoryService = new DirectoryService();
+		if (args.length > 1 && args[1].equals("virtual")) {
+			directoryService.useVirtualThreads();
+		}
         directoryService.startDirectoryService(port);
 
 	}
@@ -43,7 +57,7 @@ public class DirectoryService {
 
             while (true) {
                 Socket socket = serverSocket.accept();
-                new Thread(new DirectoryServiceHandler(socket, this)).start();
+                threadFactory.newThread(new DirectoryServiceHandler(socket, this)).start();
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -51,6 +65,16 @@ public class DirectoryService {
 	}
 	
 	
+	/**
+	 * Handles each connection on a virtual thread instead of a platform thread.
+	 * 
+	 * @throws UnsupportedOperationException if the running Java release has no virtual threads
+	 */
+	public void useVirtualThreads() {
+		threadFactory = ConnectionThreads.virtual();
+	}
+	
+	
 	/**
      * Registers a new Broker with the Directory Service. Each Broker is assigned a unique ID 
      * and its IP address and port are stored.
@@ -58,17 +82,131 @@ public class DirectoryService {
      * @param IPAddress the IP address of the new Broker
      * @param port      the port number on which the Broker is listening
      */
-	public void registNewBroker(String IPAddress, int port) {
+	public synchronized void registNewBroker(String IPAddress, int port) {
 		String[] brokerInfo = new String[2];
 		brokerInfo[0] = IPAddress;
 		brokerInfo[1] = Integer.toString(port);
+		brokerLoads.put(brokerID, new BrokerLoad());
 		brokerList.put(brokerID, brokerInfo);
 		System.out.println("New Broker: " + brokerID + " at address " + IPAddress + " port " + brokerInfo[1]);
 		brokerID++;
 	}
 	
+	/**
+	 * Returns the registered Brokers, after dropping those that stopped reporting their load.
+	 * 
+	 * @return the IP address and port of each Broker by its ID
+	 */
 	public Map<Integer,String[]> getBrokerList() {
+		expireSilentBrokers();
 		return brokerList;
 	}
+	
+	/**
+	 * Drops every Broker that has not reported its load for directory.brokerExpiryMillis
+	 * (default 15000, 0 keeps Brokers forever), as it has most likely stopped, so clients are no
+	 * longer sent to it.
+	 */
+	public synchronized void expireSilentBrokers() {
+	    if (brokerExpiryMillis <= 0) {
+	        return;
+	    }
+	    long now = System.currentTimeMillis();
+	    for (Map.Entry<Integer, BrokerLoad> entry : brokerLoads.entrySet()) {
+	        if (now - entry.getValue().getUpdatedMillis() > brokerExpiryMillis) {
+	            String[] brokerInfo = brokerList.remove(entry.getKey());
+	            brokerLoads.remove(entry.getKey());
+	            System.out.println("Broker " + entry.getKey() + " at address " + brokerInfo[0] + " port " + brokerInfo[1] + " expired");
+	        }
+	    }
+	}
+	
+	/**
+	 * Records the load reported by a registered Broker. A Broker that reports again after it
+	 * expired is registered again.
+	 * 
+	 * @param IPAddress   the IP address the Broker registered with
+	 * @param port        the port the Broker registered with
+	 * @param connections the number of connected Publishers and Subscribers
+	 * @param messageRate the messages in and out per second
+	 * @param queueDepth  the messages waiting to be delivered
+	 */
+	public synchronized void updateLoad(String IPAddress, int port, int connections, long messageRate, long queueDepth) {
+	    boolean registered = false;
+	    for (Map.Entry<Integer, String[]> entry : brokerList.entrySet()) {
+	        String[] brokerInfo = entry.getValue();
+	        if (brokerInfo[0].equals(IPAddress) && brokerInfo[1].equals(Integer.toString(port))) {
+	            brokerLoads.get(entry.getKey()).update(connections, messageRate, queueDepth);
+	            registered = true;
+	        }
+	    }
+	    if (!registered) {
+	        registNewBroker(IPAddress, port);
+	        brokerLoads.get(brokerID - 1).update(connections, messageRate, queueDepth);
+	    }
+	}
+	
+	/**
+	 * Chooses a Broker for a new Publisher or Subscriber by load. Each load figure is divided by
+	 * the largest among the Brokers, and the three are added up to a score from 0 to 3. Brokers
+	 * that stopped reporting are expired first and never chosen, see {@link #expireSilentBrokers()}.
+	 * Only Brokers that reported within directory.loadStaleMillis (default 5000) are considered,
+	 * unless none did. The chosen Broker is counted as having one more connection until its next
+	 * report.
+	 * 
+	 * @param weighted false for the Broker with the lowest score, true for a random Broker whose
+	 *                 chance is 1 / (1 + score), so load spreads even when the reports are old
+	 * @return the IP address and port of the chosen Broker, or null if no Broker is registered
+	 */
+	public synchronized String[] chooseBroker(boolean weighted) {
+	    expireSilentBrokers();
+	    long now = System.currentTimeMillis();
+	    List<Integer> candidates = new ArrayList<>();
+	    for (Integer id : brokerList.keySet()) {
+	        if (now - brokerLoads.get(id).getUpdatedMillis() <= loadStaleMillis) {
+	            candidates.add(id);
+	        }
+	    }
+	    if (candidates.isEmpty()) {
+	        // every Broker left reported within the expiry time
+	        candidates.addAll(brokerList.keySet());
+	    }
+	    if (candidates.isEmpty()) {
+	        return null;
+	    }
+	    double maxConnections = 1;
+	    double maxRate = 1;
+	    double maxDepth = 1;
+	    for (Integer id : candidates) {
+	        BrokerLoad load = brokerLoads.get(id);
+	        maxConnections = Math.max(maxConnections, load.getConnections());
+	        maxRate = Math.max(maxRate, load.getMessageRate());
+	        maxDepth = Math.max(maxDepth, load.getQueueDepth());
+	    }
+	    double[] scores = new double[candidates.size()];
+	    for (int i = 0; i < scores.length; i++) {
+	        BrokerLoad load = brokerLoads.get(candidates.get(i));
+	        scores[i] = load.getConnections() / maxConnections + load.getMessageRate() / maxRate + load.getQueueDepth() / maxDepth;
+	    }
+	    int chosen = 0;
+	    if (weighted) {
+	        double total = 0;
+	        for (double score : scores) {
+	            total += 1 / (1 + score);
+	        }
+	        double pick = ThreadLocalRandom.current().nextDouble(total);
+	        while (chosen < scores.length - 1 && (pick -= 1 / (1 + scores[chosen])) >= 0) {
+	            chosen++;
+	        }
+	    } else {
+	        for (int i = 1; i < scores.length; i++) {
+	            if (scores[i] < scores[chosen]) {
+	                chosen = i;
+	            }
+	        }
+	    }
+	    brokerLoads.get(candidates.get(chosen)).assigned();
+	    return brokerList.get(candidates.get(chosen));
+	}
 
 }
@@ -33,6 +33,8 @@ public class DirectoryServiceHandler implements Runnable{
     /**
      * Handles the incoming requests from clients, which can be either Broker registration or queries for
      * available Brokers. This method runs in a separate thread for concurrent request handling.
+     * A Broker keeps one connection open for its load reports, so 'load' lines are read until the
+     * Broker closes it.
      */
     public void run() {
         try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
@@ -60,6 +62,12 @@ public class DirectoryServiceHandler implements Runnable{
                 }
                 directoryService.registNewBroker(IPAddress, port);
                 
+            } else if (parts[0].equals("query") && parts.length == 2 && (parts[1].equals("least") || parts[1].equals("weighted"))) {
+                // a single broker chosen by load instead of the whole list
+                String[] broker = directoryService.chooseBroker(parts[1].equals("weighted"));
+                if (broker != null) {
+                    out.println(String.join(",", broker));
+                }
             } else if (parts[0].equals("query")) {  
             	Map<Integer,String[]> brokerList = directoryService.getBrokerList();
                 for (Map.Entry<Integer, String[]> entry : brokerList.entrySet()) {
@@ -67,6 +75,14 @@ public class DirectoryServiceHandler implements Runnable{
                     String[] value = entry.getValue();
                     out.println(String.join(",", value));
                 }
+            } else if (parts[0].equals("load")) {
+                do {
+                    parts = request.split(",");
+                    if (parts[0].equals("load") && parts.length == 6) {
+                        directoryService.updateLoad(parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                                Long.parseLong(parts[4]), Long.parseLong(parts[5]));
+                    }
+                } while ((request = in.readLine()) != null);
             }
 
         } catch (IOException e) {
@@ -4,6 +4,7 @@ package publisher;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import brokerSystem.FrameCodec;
 
 /**
  * The Publisher class allows a user to act as a publisher in a distributed publish-subscribe system.
@@ -17,6 +18,9 @@ public class Publisher {
 	private Socket socket;
 	private PrintWriter out;
     private BufferedReader in;
+    private DataInputStream frameIn;
+    private OutputStream frameOut;
+    private boolean binary;
     private String name;
 	
     /**
@@ -27,10 +31,40 @@ public class Publisher {
      * @param directoryServicePort the port number of the Directory Service
      */
     public Publisher(String authorName, String directoryServiceIP, int directoryServicePort) {
+        this(authorName, directoryServiceIP, directoryServicePort, true);
+    }
+    
+    /**
+     * Constructs a Publisher object using the binary or the text protocol and connects to a Broker
+     * selected from the Directory Service.
+     * 
+     * @param authorName          the name of the publisher (author)
+     * @param directoryServiceIP  the IP address of the Directory Service
+     * @param directoryServicePort the port number of the Directory Service
+     * @param binary              true to use the binary protocol of {@link FrameCodec}
+     */
+    public Publisher(String authorName, String directoryServiceIP, int directoryServicePort, boolean binary) {
+        this(authorName, directoryServiceIP, directoryServicePort, binary, null);
+    }
+    
+    /**
+     * Constructs a Publisher object and connects to a Broker that is either selected by the user
+     * or assigned by the Directory Service from the load of the Brokers.
+     * 
+     * @param authorName          the name of the publisher (author)
+     * @param directoryServiceIP  the IP address of the Directory Service
+     * @param directoryServicePort the port number of the Directory Service
+     * @param binary              true to use the binary protocol of {@link FrameCodec}
+     * @param assignment          "least" for the least loaded Broker, "weighted" for a Broker
+     *                            picked at random weighted by load, or null to ask the user
+     */
+    public Publisher(String authorName, String directoryServiceIP, int directoryServicePort, boolean binary, String assignment) {
         try {
-        	int choice;
+        	int choice = 1;
         	name = authorName;
-        	List<String> brokerList = queryDirectoryService(directoryServiceIP, directoryServicePort);
+        	this.binary = binary;
+        	String request = assignment == null ? "query" : "query," + assignment;
+        	List<String> brokerList = queryDirectoryService(directoryServiceIP, directoryServicePort, request);
         	
         	// If the broker list is empty we end the function
         	if (brokerList.isEmpty()) {
@@ -39,14 +73,14 @@ public class Publisher {
             }
         	
         	// Print all available brokers
-        	System.out.println("Available Brokers:");
+        	System.out.println(assignment == null ? "Available Brokers:" : "Assigned Broker:");
             for (int i = 0; i < brokerList.size(); i++) {
                 System.out.println((i + 1) + ": " + brokerList.get(i));
             }
         	
             
             Scanner keyboard = new Scanner(System.in);
-            while (true) {
+            while (assignment == null) {
             	System.out.println("Please select a number of broker to connect:");
                 choice = keyboard.nextInt();
                 keyboard.nextLine();  // Consume newline
@@ -68,21 +102,27 @@ public class Publisher {
     		
     		// connect to the socket
     		socket = new Socket(brokerIP, brokerPort);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            
-            // Tell the broker that the connection is from publisher
-            ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
-            output.writeUTF("PUBLISHER");
-            output.writeUTF(name);
-            output.flush();
+    		if (binary) {
+    			frameOut = socket.getOutputStream();
+    			frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    			// Tell the broker that the connection is from publisher
+    			FrameCodec.writeHandshake(frameOut, "PUBLISHER", name);
+    		} else {
+                out = new PrintWriter(socket.getOutputStream(), true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                
+                // Tell the broker that the connection is from publisher
+                ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+                output.writeUTF("PUBLISHER");
+                output.writeUTF(name);
+                output.flush();
+    		}
             // Handle shutdown and notify Broker of disconnection 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 try {
                     System.out.println("Publisher is shutting down, notifying broker...");
                     
-                    out.println("disconnect");
-                    out.flush();
+                    send("disconnect");
                     socket.close();
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -102,16 +142,17 @@ public class Publisher {
      * 
      * @param directoryServiceIP   the IP address of the Directory Service
      * @param directoryServicePort the port number of the Directory Service
+     * @param request             "query" for all Brokers, or "query,least" or "query,weighted" for one
      * @return a list of available Brokers in the format "IP,Port"
      */
-    private List<String> queryDirectoryService(String directoryServiceIP, int directoryServicePort) {
+    private List<String> queryDirectoryService(String directoryServiceIP, int directoryServicePort, String request) {
         List<String> brokerList = new ArrayList<>();
         try (Socket directorySocket = new Socket(directoryServiceIP, directoryServicePort);
              PrintWriter out = new PrintWriter(directorySocket.getOutputStream(), true);
              BufferedReader in = new BufferedReader(new InputStreamReader(directorySocket.getInputStream()))) {
             
             // request query for the directory system
-            out.println("query");
+            out.println(request);
 
             // get the broker list
             String brokerInfo;
@@ -130,12 +171,18 @@ public class Publisher {
      */
     private void receiveMessages() {
         try {
+            if (binary) {
+                while (true) {
+                    String[] frame = FrameCodec.readFrame(frameIn);
+                    System.out.println(frame[frame.length - 1]);
+                }
+            }
             String messageFromBroker;
             while ((messageFromBroker = in.readLine()) != null) {
                 System.out.println(messageFromBroker);
             }
             
-        } catch (SocketException se) {
+        } catch (SocketException | EOFException se) {
             System.out.println("Socket closed, stop receiving messages.");
         } catch (IOException e) {
             System.err.println("Error receiving messages from broker.");
@@ -154,8 +201,12 @@ public class Publisher {
      * @param name the name of the topic
      */
 	public void createTopic(String ID, String name) {
-		out.println("create," + ID + "," + name);
-		out.println(this.name);
+		if (binary) {
+			send("create", ID, name, this.name);
+		} else {
+			out.println("create," + ID + "," + name);
+			out.println(this.name);
+		}
 	}
 	
 	/**
@@ -165,7 +216,7 @@ public class Publisher {
      * @param message the message to publish
      */
 	public void publishMessage(String topicID, String message) {
-        out.println("publish," + topicID + "," + message);
+        send("publish", topicID, message);
     }
 	
 	/**
@@ -174,7 +225,7 @@ public class Publisher {
      * @param topicID the ID of the topic
      */
 	public void showSubscriberCount(String topicID) {
-        out.println("show," + topicID);
+        send("show", topicID);
 	}
 	
 	/**
@@ -183,21 +234,55 @@ public class Publisher {
      * @param topicID the ID of the topic to be deleted
      */
 	public void deleteTopic(String topicID) {
-	    out.println("delete," + topicID);
+	    send("delete", topicID);
+	}
+	
+	/**
+     * Sends a request to the Broker to show its metrics as one line of JSON.
+     */
+	public void showStats() {
+	    send("stats");
+	}
+	
+	/**
+	 * Sends a command to the Broker, as a frame in binary mode or as a comma separated line otherwise.
+	 * 
+	 * @param parts the command name followed by its arguments
+	 */
+	private void send(String... parts) {
+		if (binary) {
+			try {
+				FrameCodec.writeFrame(frameOut, parts);
+			} catch (IOException e) {
+				System.err.println("Error sending command to broker.");
+			}
+		} else {
+			out.println(String.join(",", parts));
+		}
 	}
 	
 	
 	/**
      * The main method to run the Publisher. It takes the author's name, Directory Service IP, and port as arguments.
      * 
-     * @param args command-line arguments: author's name, Directory Service IP, and port
+     * @param args command-line arguments: author's name, Directory Service IP, and port, and the optional
+     *             "text" to use the text protocol and "least" or "weighted" to let the Directory Service assign the Broker
      */
 	public static void main(String[] args) {
 		String authorName = args[0];
 		String directoryServiceIP = args[1];
 		int directoryServicePort = Integer.parseInt(args[2]);
+		boolean binary = true;
+		String assignment = null;
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].equals("text")) {
+				binary = false;
+			} else if (args[i].equals("least") || args[i].equals("weighted")) {
+				assignment = args[i];
+			}
+		}
 		Scanner keyboard = new Scanner(System.in);
-		Publisher publisher = new Publisher(authorName, directoryServiceIP, directoryServicePort);
+		Publisher publisher = new Publisher(authorName, directoryServiceIP, directoryServicePort, binary, assignment);
 		
 		
 		while (true) {
@@ -240,8 +325,11 @@ public class Publisher {
                         System.out.println("Invalid command. Usage: delete {topic_id}");
                     }
                     break;
+                case "stats":
+                    publisher.showStats();
+                    break;
                 default:
-                    System.out.println("Unknown command. Please use 'create', 'publish', 'show', or 'delete'.");
+                    System.out.println("Unknown command. Please use 'create', 'publish', 'show', 'delete' or 'stats'.");
 			}
 			
 		}
@@ -6,7 +6,7 @@ import java.net.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
-import brokerSystem.Broker;
+import brokerSystem.FrameCodec;
 
 /**
  * The Subscriber class allows a user to act as a subscriber in a distributed publish-subscribe system.
@@ -20,6 +20,9 @@ public class Subscriber {
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
+    private DataInputStream frameIn;
+    private OutputStream frameOut;
+    private boolean binary;
     private String name;
 
     /**
@@ -30,10 +33,40 @@ public class Subscriber {
      * @param directoryServicePort the port number of the Directory Service
      */
     public Subscriber(String name,String directoryServiceIP, int directoryServicePort) {
+        this(name, directoryServiceIP, directoryServicePort, true);
+    }
+    
+    /**
+     * Constructs a Subscriber object using the binary or the text protocol and connects to a Broker
+     * selected from the Directory Service.
+     * 
+     * @param name                the name of the subscriber
+     * @param directoryServiceIP   the IP address of the Directory Service
+     * @param directoryServicePort the port number of the Directory Service
+     * @param binary               true to use the binary protocol of {@link FrameCodec}
+     */
+    public Subscriber(String name,String directoryServiceIP, int directoryServicePort, boolean binary) {
+        this(name, directoryServiceIP, directoryServicePort, binary, null);
+    }
+    
+    /**
+     * Constructs a Subscriber object and connects to a Broker that is either selected by the user
+     * or assigned by the Directory Service from the load of the Brokers.
+     * 
+     * @param name                the name of the subscriber
+     * @param directoryServiceIP   the IP address of the Directory Service
+     * @param directoryServicePort the port number of the Directory Service
+     * @param binary               true to use the binary protocol of {@link FrameCodec}
+     * @param assignment           "least" for the least loaded Broker, "weighted" for a Broker
+     *                             picked at random weighted by load, or null to ask the user
+     */
+    public Subscriber(String name,String directoryServiceIP, int directoryServicePort, boolean binary, String assignment) {
         try {
-        	int choice;
+        	int choice = 1;
         	this.name = name;
-            List<String> brokerList = queryDirectoryService(directoryServiceIP, directoryServicePort);
+        	this.binary = binary;
+        	String request = assignment == null ? "query" : "query," + assignment;
+            List<String> brokerList = queryDirectoryService(directoryServiceIP, directoryServicePort, request);
         	
         	// If the broker list is empty we end the function
         	if (brokerList.isEmpty()) {
@@ -42,14 +75,14 @@ public class Subscriber {
             }
         	
         	// Print all available brokers
-        	System.out.println("Available Brokers:");
+        	System.out.println(assignment == null ? "Available Brokers:" : "Assigned Broker:");
             for (int i = 0; i < brokerList.size(); i++) {
                 System.out.println((i + 1) + ": " + brokerList.get(i));
             }
         	
             
             Scanner keyboard = new Scanner(System.in);
-            while (true) {
+            while (assignment == null) {
             	System.out.println("Please select a number of broker to connect:");
                 choice = keyboard.nextInt();
                 keyboard.nextLine();  // Consume newline
@@ -70,14 +103,21 @@ public class Subscriber {
             
             
             socket = new Socket(brokerIP, brokerPort);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            
-            // tell the broker that the connection is subscriber;
-            ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
-            output.writeUTF("SUBSCRIBER");
-            output.writeUTF(name);
-            output.flush();
+            if (binary) {
+                frameOut = socket.getOutputStream();
+                frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                // tell the broker that the connection is subscriber;
+                FrameCodec.writeHandshake(frameOut, "SUBSCRIBER", name);
+            } else {
+                out = new PrintWriter(socket.getOutputStream(), true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                
+                // tell the broker that the connection is subscriber;
+                ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+                output.writeUTF("SUBSCRIBER");
+                output.writeUTF(name);
+                output.flush();
+            }
             
          // Use a new thread to receive message
             new Thread(() -> receiveMessages()).start();
@@ -88,8 +128,7 @@ public class Subscriber {
                 try {
                     System.out.println("Publisher is shutting down, notifying broker...");
                     
-                    out.println("disconnect");
-                    out.flush();
+                    send("disconnect");
                     socket.close(); 
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -107,16 +146,17 @@ public class Subscriber {
      * 
      * @param directoryServiceIP   the IP address of the Directory Service
      * @param directoryServicePort the port number of the Directory Service
+     * @param request             "query" for all Brokers, or "query,least" or "query,weighted" for one
      * @return a list of available Brokers in the format "IP,Port"
      */
-    private List<String> queryDirectoryService(String directoryServiceIP, int directoryServicePort) {
+    private List<String> queryDirectoryService(String directoryServiceIP, int directoryServicePort, String request) {
         List<String> brokerList = new ArrayList<>();
         try (Socket directorySocket = new Socket(directoryServiceIP, directoryServicePort);
              PrintWriter out = new PrintWriter(directorySocket.getOutputStream(), true);
              BufferedReader in = new BufferedReader(new InputStreamReader(directorySocket.getInputStream()))) {
             
             // request query for the directory system
-            out.println("query");
+            out.println(request);
 
             // get the broker list
             String brokerInfo;
@@ -134,11 +174,17 @@ public class Subscriber {
      */
     private void receiveMessages() {
         try {
+            if (binary) {
+                while (true) {
+                    String[] frame = FrameCodec.readFrame(frameIn);
+                    System.out.println(frame[frame.length - 1]);
+                }
+            }
             String messageFromBroker;
             while ((messageFromBroker = in.readLine()) != null) {
                 System.out.println(messageFromBroker);
             }
-        } catch (SocketException se) {
+        } catch (SocketException | EOFException se) {
             System.out.println("Socket closed, stop receiving messages.");
         } 
         catch (IOException e) {
@@ -158,24 +204,36 @@ public class Subscriber {
         switch (command) {
             case "list":
             	
-                if (parts.length == 2 && parts[1].equals("all")) {
-                	out.println("list,all");
+                if (parts.length == 2) {
+                    // 'all' or a topic ID prefix, optionally followed by a page size and 'after topic_id'
+                    String[] arguments = parts[1].split(" ", 2);
+                    if (arguments.length == 2) {
+                        send("list", arguments[0], arguments[1]);
+                    } else {
+                        send("list", arguments[0]);
+                    }
                 } else {
-                    System.out.println("Invalid command. Usage: list {all}");
+                    System.out.println("Invalid command. Usage: list {all|prefix} [count] [after topic_id]");
                 }
                 break;
             case "sub":
                 if (parts.length == 2) {
-                    String topicID = parts[1];
-                    out.println("sub," + topicID);
+                    // an optional start position replays kept messages: earliest, latest, recent, an offset or @time,
+                    // and "where" followed by a filter only delivers matching messages
+                    String[] arguments = parts[1].split(" ", 2);
+                    if (arguments.length == 2) {
+                        send("sub", arguments[0], arguments[1]);
+                    } else {
+                        send("sub", arguments[0]);
+                    }
                     break;
                 } else {
-                    System.out.println("Invalid command. Usage: sub {topic_id}");
+                    System.out.println("Invalid command. Usage: sub {topic_id} [earliest|latest|recent|offset|@time] [where filter]");
                 }
                 break;
             case "current":
                 if (parts.length == 1) {
-                	out.println("current");
+                	send("current");
                 } else {
                     System.out.println("Invalid command. Usage: current");
                 }
@@ -183,27 +241,58 @@ public class Subscriber {
             case "unsub":
                 if (parts.length == 2) {
                     String topicID = parts[1];
-                    out.println("unsub," + topicID);
+                    send("unsub", topicID);
                 } else {
                     System.out.println("Invalid command. Usage: unsub {topic_id}");
                 }
                 break;
+            case "stats":
+                // the broker's metrics as one line of JSON
+                send("stats");
+                break;
             default:
-                System.out.println("Unknown command. Please use 'list', 'sub', 'current', or 'unsub'.");
+                System.out.println("Unknown command. Please use 'list', 'sub', 'current', 'unsub' or 'stats'.");
+        }
+    }
+
+    /**
+     * Sends a command to the Broker, as a frame in binary mode or as a comma separated line otherwise.
+     * 
+     * @param parts the command name followed by its arguments
+     */
+    private void send(String... parts) {
+        if (binary) {
+            try {
+                FrameCodec.writeFrame(frameOut, parts);
+            } catch (IOException e) {
+                System.err.println("Error sending command to broker.");
+            }
+        } else {
+            out.println(String.join(",", parts));
         }
     }
 
     /**
      * The main method to run the Subscriber. It takes the subscriber's name, Directory Service IP, and port as arguments.
      * 
-     * @param args command-line arguments: subscriber's name, Directory Service IP, and port
+     * @param args command-line arguments: subscriber's name, Directory Service IP, and port, and the optional
+     *             "text" to use the text protocol and "least" or "weighted" to let the Directory Service assign the Broker
      */
     public static void main(String[] args) {
     	String name = args[0];
     	String directoryServiceIP = args[1];
         int directoryServicePort = Integer.parseInt(args[2]);
+        boolean binary = true;
+        String assignment = null;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("text")) {
+                binary = false;
+            } else if (args[i].equals("least") || args[i].equals("weighted")) {
+                assignment = args[i];
+            }
+        }
 
-        Subscriber subscriber = new Subscriber(name, directoryServiceIP, directoryServicePort);
+        Subscriber subscriber = new Subscriber(name, directoryServiceIP, directoryServicePort, binary, assignment);
         
         Scanner keyboard = new Scanner(System.in);
 